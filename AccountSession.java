@@ -0,0 +1,22 @@
+/**
+ * The client currently logged into an account.
+ * <p>
+ * The {@code Server} keeps one of these per logged-in account, keyed by the
+ * account ID. Instances are immutable; a new log-in replaces the entry.
+ */
+public final class AccountSession {
+  /**
+  * The client UID of the logged-in client
+  */
+  public final int cUID;
+
+  /**
+  * The remote handle used to deliver messages to the logged-in client
+  */
+  public final ClientInterface client;
+
+  public AccountSession(int cUID, ClientInterface client) {
+    this.cUID = cUID;
+    this.client = client;
+  }
+}
@@ -0,0 +1,25 @@
+import java.util.concurrent.*;
+
+/**
+ * A server that can answer {@link ServerInterface#pollMessages} without
+ * holding a thread while the poll waits.
+ * <p>
+ * A transport that can send a reply whenever it is ready, such as
+ * {@link NioServer}, uses this in place of the blocking call, so that clients
+ * waiting on polls cost a pending reply rather than a thread each.
+ */
+public interface AsyncPoller {
+  /**
+  * Starts a poll, as {@link ServerInterface#pollMessages} does.
+  *
+  * @param  cUID          an integer identifying the current client user ID
+  * @param  cursor        the cursor returned by the previous poll
+  * @param  maxMessages   the largest number of messages to return
+  * @param  timeoutMillis the longest time to wait for a message
+  * @return               a future completed with the messages after the
+  *                       cursor, or with a {@code RemoteException} if the
+  *                       client is not logged in
+  */
+  public CompletableFuture<MessageBatch> pollMessagesAsync(int cUID, long cursor,
+      int maxMessages, long timeoutMillis);
+}
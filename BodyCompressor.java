@@ -0,0 +1,234 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Compresses message bodies with a preset dictionary shared by every client
+ * and server.
+ * <p>
+ * Chat bodies are short, so compressing each on its own barely helps: the
+ * compressor has seen nothing it can refer back to. Deflate can instead be
+ * primed with a dictionary of text that bodies are likely to repeat, and then
+ * even a short body is mostly references into it. The dictionary is built by
+ * {@link #buildDictionary} from a fixed sample of chat traffic, so every
+ * process running this code derives the same bytes; a compressed body is
+ * marked as such by its encoder and can be read only with that dictionary.
+ * <p>
+ * Bodies shorter than {@link #THRESHOLD} bytes of UTF-8, and bodies that do
+ * not shrink, are left raw. Compression is on unless the system property
+ * {@code chat.compressBodies} is {@code false}; compressed bodies are always
+ * readable.
+ * <p>
+ * Each {@link Deflater} and {@link Inflater} holds native zlib memory until
+ * it is ended, so they are borrowed from small shared pools rather than kept
+ * per thread, which under virtual threads would mean one pair per thread
+ * ever run. One not returned to a full pool is ended. The methods are
+ * thread-safe.
+ */
+public class BodyCompressor {
+  /** the shortest body, in UTF-8 bytes, worth compressing */
+  public static final int THRESHOLD = 48;
+
+  /** the most idle deflaters, and idle inflaters, kept for reuse */
+  private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+  /** the largest dictionary built */
+  private static final int DICTIONARY_SIZE = 2048;
+
+  private static final boolean ENABLED =
+      !"false".equals(System.getProperty("chat.compressBodies"));
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+  * Typical chat traffic, from which the shared dictionary is built. Changing
+  * it changes the dictionary, so every client and server must be updated
+  * together.
+  */
+  private static final String[] TRAFFIC_SAMPLE = {
+    "hey, are you there?", "yes, I'm here", "what's up?", "not much, you?",
+    "can you send me the link?", "thanks, I'll take a look",
+    "sounds good to me", "let me know when you're free",
+    "are we still on for lunch today?", "I'll be there in five minutes",
+    "running a bit late, sorry", "no worries, take your time",
+    "did you see the message I sent you?", "I don't think so, can you resend it?",
+    "the meeting has been moved to tomorrow at 10am",
+    "can everyone please review the document before the meeting",
+    "I just pushed the fix, can you check if the build is green again",
+    "the build is broken again", "the tests are passing now",
+    "please take a look at my pull request when you have a chance",
+    "I'm working from home today", "I'll be out of the office tomorrow",
+    "happy birthday!", "congratulations on the launch!", "good morning everyone",
+    "good night", "see you tomorrow", "talk to you later", "have a great weekend",
+    "thank you so much for your help", "I really appreciate it",
+    "what time does the meeting start?", "where should we meet?",
+    "I think that's a great idea", "I'm not sure that will work",
+    "let's discuss this in the team meeting", "does anyone have any questions?",
+    "the server is down again, is anyone looking into it?",
+    "I'm on it, will update you when it's fixed",
+    "the deploy went out this morning and everything looks fine",
+    "could you please send me the latest version of the file",
+    "just wanted to check in and see how things are going",
+    "on my way", "ok", "okay", "yes", "no", "lol", "haha", "thanks!",
+    "https://", "http://www.", ".com/", "@everyone", "tomorrow", "today",
+    "this afternoon", "this evening", "next week", "the project", "the team",
+  };
+
+  private static final byte[] DICTIONARY =
+      buildDictionary(Arrays.asList(TRAFFIC_SAMPLE), DICTIONARY_SIZE);
+
+  private static final BlockingQueue<Deflater> DEFLATERS =
+      new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+
+  private static final BlockingQueue<Inflater> INFLATERS =
+      new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+
+  private BodyCompressor() {}
+
+  /**
+  * Compresses a body if it is long enough and compression pays off.
+  *
+  * @param  utf8          the body's UTF-8 bytes
+  * @return               the raw deflate stream, or {@code null} if the body
+  *                       should be sent as is
+  */
+  public static byte[] compress(byte[] utf8) {
+    if (!ENABLED || utf8.length < THRESHOLD) {
+      return null;
+    }
+
+    Deflater deflater = DEFLATERS.poll();
+    if (deflater == null) {
+      deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+    try {
+      deflater.reset();
+      deflater.setDictionary(DICTIONARY);
+      deflater.setInput(utf8);
+      deflater.finish();
+
+      // anything at least as long as the body is not worth keeping
+      byte[] compressed = new byte[utf8.length];
+      int length = 0;
+      while (!deflater.finished() && length < compressed.length) {
+        length += deflater.deflate(compressed, length, compressed.length - length);
+      }
+      if (!deflater.finished() || length >= utf8.length) {
+        return null;
+      }
+      return Arrays.copyOf(compressed, length);
+    } finally {
+      if (!DEFLATERS.offer(deflater)) {
+        deflater.end();
+      }
+    }
+  }
+
+  /**
+  * Restores a body compressed by {@link #compress}.
+  *
+  * @param  compressed    the raw deflate stream
+  * @param  length        the length of the body's UTF-8 bytes
+  * @return               the body's UTF-8 bytes
+  * @throws IOException   if the stream is corrupt
+  */
+  public static byte[] decompress(byte[] compressed, int length)
+      throws IOException {
+    Inflater inflater = INFLATERS.poll();
+    if (inflater == null) {
+      inflater = new Inflater(true);
+    }
+    byte[] utf8 = new byte[length];
+    try {
+      inflater.reset();
+      inflater.setDictionary(DICTIONARY);
+      inflater.setInput(compressed);
+
+      int inflated = 0;
+      while (inflated < length && !inflater.finished()) {
+        int count = inflater.inflate(utf8, inflated, length - inflated);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += count;
+      }
+      if (inflated != length) {
+        throw new StreamCorruptedException("compressed body is truncated");
+      }
+    } catch (DataFormatException e) {
+      throw new StreamCorruptedException("compressed body is corrupt: " + e.getMessage());
+    } finally {
+      if (!INFLATERS.offer(inflater)) {
+        inflater.end();
+      }
+    }
+    return utf8;
+  }
+
+  /**
+  * Builds a deflate dictionary from sample bodies.
+  * <p>
+  * Words and pairs of adjacent words are scored by how many bytes they
+  * would save across the sample, and the best are packed into the
+  * dictionary. Deflate reaches nearby text most cheaply, so the best go last.
+  * The result depends only on the sample.
+  *
+  * @param  samples       example message bodies
+  * @param  maxSize       the largest dictionary to build, in bytes
+  * @return               the dictionary
+  */
+  public static byte[] buildDictionary(Collection<String> samples, int maxSize) {
+    final Map<String, Integer> counts = new HashMap<String, Integer>();
+    for (String sample : samples) {
+      String[] words = sample.split(" ");
+      for (int i = 0; i < words.length; i++) {
+        count(counts, words[i] + " ");
+        if (i + 1 < words.length) {
+          count(counts, words[i] + " " + words[i + 1] + " ");
+        }
+      }
+      // whole bodies that recur are worth keeping as they are
+      count(counts, sample);
+    }
+
+    List<String> candidates = new ArrayList<String>(counts.keySet());
+    Collections.sort(candidates, new Comparator<String>() {
+      public int compare(String a, String b) {
+        int scoreA = counts.get(a) * a.length();
+        int scoreB = counts.get(b) * b.length();
+        if (scoreA != scoreB) {
+          return scoreA > scoreB ? -1 : 1;
+        }
+        return a.compareTo(b);
+      }
+    });
+
+    // take the best that fit, then lay them out best-last
+    List<String> chosen = new ArrayList<String>();
+    StringBuilder text = new StringBuilder();
+    int size = 0;
+    for (String candidate : candidates) {
+      int length = candidate.getBytes(UTF_8).length;
+      if (size + length > maxSize || text.indexOf(candidate) >= 0) {
+        continue;
+      }
+      chosen.add(candidate);
+      text.append(candidate);
+      size += length;
+    }
+    Collections.reverse(chosen);
+
+    StringBuilder dictionary = new StringBuilder(size);
+    for (String word : chosen) {
+      dictionary.append(word);
+    }
+    return dictionary.toString().getBytes(UTF_8);
+  }
+
+  private static void count(Map<String, Integer> counts, String key) {
+    Integer count = counts.get(key);
+    counts.put(key, count == null ? 1 : count + 1);
+  }
+}
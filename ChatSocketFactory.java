@@ -0,0 +1,194 @@
+import java.io.*;
+import java.net.*;
+import java.rmi.server.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Creates the sockets RMI uses to reach and accept calls on the
+ * {@code Server} and {@code Client}.
+ * <p>
+ * With the default factories, a connection attempt to a dead host waits for
+ * the operating system to give up, and a call to a peer that stops
+ * answering waits forever, holding the calling thread. Sockets made here
+ * have a connect timeout and a read timeout, so a server callback to a hung
+ * client fails after a bounded time and the delivery is retried or stored.
+ * The read timeout bounds a whole call, so it must exceed the longest call
+ * made. Sockets also have Nagle's algorithm disabled, since chat frames are
+ * small and latency matters more than packet count, and may have their
+ * buffers sized.
+ * <p>
+ * The client side of the factory travels inside the exported object's stub,
+ * so each caller connects with the exporter's settings. RMI pools
+ * connections per endpoint, and two endpoints share a pool only if their
+ * factories are equal, so instances with the same settings are equal.
+ * <p>
+ * Counts of connections opened, accepted, still open and failed to open are
+ * kept per JVM, across every instance.
+ */
+public final class ChatSocketFactory implements RMIClientSocketFactory,
+    RMIServerSocketFactory, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** the connect timeout used unless {@code chat.connectTimeout} is set */
+  public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+
+  /** the read timeout used unless {@code chat.readTimeout} is set */
+  public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+
+  private static final AtomicLong connectionsOpened = new AtomicLong();
+  private static final AtomicLong connectionsAccepted = new AtomicLong();
+  private static final AtomicLong connectFailures = new AtomicLong();
+  private static final AtomicLong openConnections = new AtomicLong();
+
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+  private final boolean tcpNoDelay;
+  private final int bufferSize;
+
+  /**
+  * Creates a factory.
+  *
+  * @param  connectTimeoutMillis how long to wait for a connection, or
+  *                       {@code 0} to wait as long as the system does
+  * @param  readTimeoutMillis how long a read waits for data, and so how long
+  *                       a call waits for its result, or {@code 0} for ever
+  * @param  tcpNoDelay    whether to disable Nagle's algorithm
+  * @param  bufferSize    the send and receive buffer size in bytes, or
+  *                       {@code 0} for the system default
+  */
+  public ChatSocketFactory(int connectTimeoutMillis, int readTimeoutMillis,
+      boolean tcpNoDelay, int bufferSize) {
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+    this.tcpNoDelay = tcpNoDelay;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+  * Creates a factory configured by the system properties
+  * {@code chat.connectTimeout} and {@code chat.readTimeout}, in milliseconds,
+  * {@code chat.tcpNoDelay}, which is on unless {@code false}, and
+  * {@code chat.socketBufferSize}, in bytes.
+  */
+  public static ChatSocketFactory fromSystemProperties() {
+    return new ChatSocketFactory(
+        Integer.getInteger("chat.connectTimeout", DEFAULT_CONNECT_TIMEOUT_MILLIS),
+        Integer.getInteger("chat.readTimeout", DEFAULT_READ_TIMEOUT_MILLIS),
+        !"false".equals(System.getProperty("chat.tcpNoDelay")),
+        Integer.getInteger("chat.socketBufferSize", 0));
+  }
+
+  public Socket createSocket(String host, int port) throws IOException {
+    Socket socket = new CountedSocket();
+    try {
+      configure(socket);
+      socket.setSoTimeout(readTimeoutMillis);
+      socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+    } catch (IOException e) {
+      connectFailures.incrementAndGet();
+      socket.close();
+      throw e;
+    }
+    connectionsOpened.incrementAndGet();
+    openConnections.incrementAndGet();
+    return socket;
+  }
+
+  public ServerSocket createServerSocket(int port) throws IOException {
+    ServerSocket serverSocket = new ServerSocket() {
+      public Socket accept() throws IOException {
+        Socket socket = new CountedSocket();
+        implAccept(socket);
+        connectionsAccepted.incrementAndGet();
+        openConnections.incrementAndGet();
+        configure(socket);
+        return socket;
+      }
+    };
+    try {
+      // a receive buffer above 64KB must be set before binding to take effect
+      if (bufferSize > 0) {
+        serverSocket.setReceiveBufferSize(bufferSize);
+      }
+      serverSocket.bind(new InetSocketAddress(port));
+    } catch (IOException e) {
+      serverSocket.close();
+      throw e;
+    }
+    return serverSocket;
+  }
+
+  private void configure(Socket socket) throws SocketException {
+    socket.setTcpNoDelay(tcpNoDelay);
+    socket.setKeepAlive(true);
+    if (bufferSize > 0) {
+      socket.setSendBufferSize(bufferSize);
+      socket.setReceiveBufferSize(bufferSize);
+    }
+  }
+
+  /**
+  * Returns the number of connections opened to other processes.
+  */
+  public static long getConnectionsOpened() {
+    return connectionsOpened.get();
+  }
+
+  /**
+  * Returns the number of connections accepted from other processes.
+  */
+  public static long getConnectionsAccepted() {
+    return connectionsAccepted.get();
+  }
+
+  /**
+  * Returns the number of connection attempts that failed or timed out.
+  */
+  public static long getConnectFailures() {
+    return connectFailures.get();
+  }
+
+  /**
+  * Returns the number of connections opened or accepted and not yet closed.
+  */
+  public static long getOpenConnections() {
+    return openConnections.get();
+  }
+
+  public boolean equals(Object other) {
+    if (!(other instanceof ChatSocketFactory)) {
+      return false;
+    }
+    ChatSocketFactory that = (ChatSocketFactory) other;
+    return connectTimeoutMillis == that.connectTimeoutMillis &&
+        readTimeoutMillis == that.readTimeoutMillis &&
+        tcpNoDelay == that.tcpNoDelay && bufferSize == that.bufferSize;
+  }
+
+  public int hashCode() {
+    int hash = connectTimeoutMillis;
+    hash = 31 * hash + readTimeoutMillis;
+    hash = 31 * hash + (tcpNoDelay ? 1 : 0);
+    return 31 * hash + bufferSize;
+  }
+
+  public String toString() {
+    return String.format("ChatSocketFactory[connect=%dms read=%dms noDelay=%b buffer=%d]",
+        connectTimeoutMillis, readTimeoutMillis, tcpNoDelay, bufferSize);
+  }
+
+  /**
+  * A socket that is counted as open until its first close.
+  */
+  private static class CountedSocket extends Socket {
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    public void close() throws IOException {
+      // only sockets that connected were counted
+      if (isConnected() && closed.compareAndSet(false, true)) {
+        openConnections.decrementAndGet();
+      }
+      super.close();
+    }
+  }
+}
@@ -1,15 +1,67 @@
 import java.rmi.*;
 import java.rmi.server.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class Client extends UnicastRemoteObject implements ClientInterface {
 
+  /**
+  * The number of recent server {@code eSID}s remembered when discarding
+  * duplicate deliveries
+  */
+  private static final int RECEIVE_WINDOW_SIZE = 4096;
+
+  /**
+  * How often the lease on a log-in is renewed until the server has said how
+  * long its leases last
+  */
+  private static final long INITIAL_RENEWAL_MILLIS = 1000;
+
+  /**
+  * The most messages fetched by one poll, and how long a poll waits for one
+  */
+  private static final int POLL_BATCH_SIZE = 256;
+  private static final long POLL_TIMEOUT_MILLIS = 10000;
+
   private ServerInterface server;
   private int cUID;
-  private int eSID;
-  private Set<Integer> receivedServerSIDs;
+  private final AtomicInteger eSID = new AtomicInteger();
+  private EventWindow receivedServerSIDs;
+
+  /**
+  * The delivery sequence number of the last message pushed since this client
+  * last logged in, or {@code -1} if none; guarded by deliveryLock
+  */
+  private long lastDeliverySeq = -1;
+  private final Object deliveryLock = new Object();
+
+  public volatile String accountName = ""; // empty string means client is not logged in
+
+  /**
+  * The directory as last known, kept current by the directory feed once
+  * {@link #watchDirectory} has been called; guarded by this
+  */
+  private final SortedSet<String> knownAccounts = new TreeSet<String>();
+  private final SortedSet<String> knownGroups = new TreeSet<String>();
+
+  /**
+  * The sequence number of the last directory change applied, or {@code -1} if
+  * the directory is not being watched
+  */
+  private long directorySeq = -1;
 
-  public String accountName = ""; // empty string means client is not logged in
+  /**
+  * Whether this client fetches its messages with polls rather than taking
+  * callbacks, and the thread doing so; guarded by this
+  */
+  private volatile boolean polling;
+  private Thread poller;
+
+  /**
+  * Sends queued messages in batches
+  */
+  private final PipelinedSender pipeline;
 
 
   // General
@@ -30,12 +82,35 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
   * @see            Server
   */
   public Client(ServerInterface server) throws RemoteException {
+    this(server, null);
+  }
+
+ /**
+  * Creates a Client instance as {@link #Client(ServerInterface)} does,
+  * exported through the given socket factory, so that the server's callbacks
+  * to this client time out rather than hang.
+  *
+  * @param  server         an instantiated instance of a server
+  * @param  socketFactory  makes the sockets that the server calls this client
+  *                        through, or {@code null} for RMI's defaults
+  */
+  public Client(ServerInterface server, ChatSocketFactory socketFactory)
+      throws RemoteException {
+    super(0, socketFactory, socketFactory);
     this.server = server;
 
     // TODO - if there is saved data from a previous run, resume from there
     cUID = server.getClientUID();
-    eSID = 0;
-    receivedServerSIDs = new HashSet<Integer>();
+    pipeline = new PipelinedSender(server, cUID, eSID);
+    receivedServerSIDs = new EventWindow(RECEIVE_WINDOW_SIZE);
+
+    Thread renewer = new Thread(new Runnable() {
+      public void run() {
+        renewLeases();
+      }
+    }, "lease-renewer");
+    renewer.setDaemon(true);
+    renewer.start();
   }
 
  /**
@@ -52,7 +127,7 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
   * @return         the latest event sequence ID integer  
   */
   private int nextEventSID() {
-    return eSID++;
+    return eSID.getAndIncrement();
   }
 
 
@@ -72,6 +147,9 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
   * @return         a boolean representing whether the login was successful or not  
   */
   public boolean logIn(String accountName) throws RemoteException {
+    finishQueuedMessages();
+    polling = false;
+    resetDeliverySeq();
     boolean retval = server.logIn(cUID, nextEventSID(), this, accountName);
     this.accountName = accountName;
     System.out.println("Login results: " + retval + ", " + accountName);
@@ -89,12 +167,84 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
   * @return         a boolean representing whether the logout was successful or not  
   */
   public boolean logOut() throws RemoteException {
+    finishQueuedMessages();
     //boolean retval = server.logOut(cUID, nextEventSID());
     boolean retval = server.logOut(cUID, nextEventSID(), this.accountName);
     this.accountName = "";
+    polling = false;
+    return retval;
+  }
+
+  /**
+  * Logs a given account name in for this client, which then fetches its
+  * messages by polling the server rather than taking callbacks.
+  * <p>
+  * This suits a client the server cannot call back, such as one behind NAT
+  * or a firewall. Messages held while the account was offline come with the
+  * first poll, so there is no need to ask for undelivered messages.
+  *
+  * @param  accountName the String identifying the account we wish to log in as
+  * @return         a boolean representing whether the login was successful or not
+  */
+  public synchronized boolean logInToPoll(String accountName) throws RemoteException {
+    finishQueuedMessages();
+    resetDeliverySeq();
+    boolean retval = server.logIn(cUID, nextEventSID(), null, accountName);
+    this.accountName = accountName;
+    System.out.println("Login results: " + retval + ", " + accountName);
+
+    if(retval) {
+      polling = true;
+      if(poller == null || !poller.isAlive()) {
+        poller = new Thread(new Runnable() {
+          public void run() {
+            pollMessages();
+          }
+        }, "message-poller");
+        poller.setDaemon(true);
+        poller.start();
+      }
+    }
     return retval;
   }
 
+  /**
+  * Polls for messages, handling each batch as if the server had pushed it,
+  * until this client logs out or back in to take callbacks.
+  */
+  private void pollMessages() {
+    //the first poll confirms nothing, and starts from the oldest message held
+    long cursor = 0;
+    String polledAccount = accountName;
+    while(polling && !accountName.isEmpty()) {
+      if(!accountName.equals(polledAccount)) {
+        //a cursor into one account's messages means nothing for another's
+        polledAccount = accountName;
+        cursor = 0;
+      }
+      try {
+        MessageBatch batch = server.pollMessages(cUID, cursor, POLL_BATCH_SIZE,
+            POLL_TIMEOUT_MILLIS);
+        //the cursor already keeps a poll from repeating a message
+        for(Message message : batch.messages) {
+          message.deliverTo(this);
+        }
+        cursor = batch.nextCursor;
+      }
+      catch(RemoteException e) {
+        //not logged in any more, which the lease renewal will notice, or
+        //briefly unreachable
+        System.out.println("Could not poll for messages: " + e.getMessage());
+        try {
+          Thread.sleep(INITIAL_RENEWAL_MILLIS);
+        }
+        catch(InterruptedException e2) {
+          return;
+        }
+      }
+    }
+  }
+
   /**
   * Updates the login status for our given client user ID and updates our account 
   * name accordingly.
@@ -107,6 +257,44 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
     accountName = server.getLoginStatus(cUID);
   }
 
+  /**
+  * Renews the lease on this client's log-in, three times per lease, for as
+  * long as the client runs.
+  * <p>
+  * If the server no longer knows the log-in, because the lease ran out while
+  * this client could not reach it or because it was logged out meanwhile,
+  * the login status is refreshed.
+  */
+  private void renewLeases() {
+    long periodMillis = INITIAL_RENEWAL_MILLIS;
+    while(true) {
+      try {
+        Thread.sleep(periodMillis);
+      }
+      catch(InterruptedException e) {
+        return;
+      }
+      if(accountName.isEmpty()) {
+        continue;
+      }
+
+      try {
+        long leaseMillis = server.renewLease(cUID);
+        if(leaseMillis > 0) {
+          periodMillis = Math.max(1, leaseMillis / 3);
+        }
+        else if(!accountName.isEmpty()) {
+          System.out.println("Your session has ended.");
+          updateLoginStatus();
+        }
+      }
+      catch(RemoteException e) {
+        //try again next period, which leaves two more before the lease ends
+        System.out.println("Could not renew the session: " + e.getMessage());
+      }
+    }
+  }
+
   /**
   * Notifies the client that they have been logged out, and updates the login status
   * accordingly.
@@ -127,24 +315,219 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
   }
 
 
+  // Directory
+  // ---------
+
+  /**
+  * Starts keeping a copy of the account and group directories, updated as
+  * the server pushes changes.
+  * <p>
+  * If this client watched the directory before, the subscription resumes
+  * after the last change applied. Otherwise, or if the server no longer holds
+  * the changes since, the directories are loaded afresh. The subscription is
+  * made first, so that no change made during the load is missed; changes the
+  * load already reflects are applied again to no effect.
+  */
+  public synchronized void watchDirectory() throws RemoteException {
+    long startSeq = server.subscribeToDirectory(cUID, this, directorySeq);
+    if(startSeq != directorySeq || directorySeq < 0) {
+      directorySeq = startSeq;
+      knownAccounts.clear();
+      knownAccounts.addAll(server.getAccountsList());
+      knownGroups.clear();
+      knownGroups.addAll(server.getGroupsList());
+    }
+  }
+
+  /**
+  * Stops updating the directory copies.
+  */
+  public synchronized void unwatchDirectory() throws RemoteException {
+    server.unsubscribeFromDirectory(cUID);
+    directorySeq = -1;
+  }
+
+  /**
+  * Returns a copy of the account directory as last known.
+  */
+  public synchronized SortedSet<String> getKnownAccounts() {
+    return new TreeSet<String>(knownAccounts);
+  }
+
+  /**
+  * Returns a copy of the group directory as last known.
+  */
+  public synchronized SortedSet<String> getKnownGroups() {
+    return new TreeSet<String>(knownGroups);
+  }
+
+  /**
+  * Applies a batch of directory changes to the directory copies.
+  * <p>
+  * Changes already applied are skipped. If the batch skips ahead, some
+  * changes were missed, so the directories are reloaded. Batches that arrive
+  * while the directory is not watched are ignored.
+  *
+  * @param  changes       the changes, in sequence order
+  */
+  public synchronized void directoryChanged(DirectoryChange[] changes)
+      throws RemoteException {
+    if(directorySeq < 0) {
+      //sent before the directory stopped being watched
+      return;
+    }
+    for(DirectoryChange change : changes) {
+      if(change.seq <= directorySeq) {
+        continue;
+      }
+      if(change.seq != directorySeq + 1) {
+        directorySeq = -1;
+        watchDirectory();
+        return;
+      }
+
+      SortedSet<String> known = change.type.isAccount() ? knownAccounts : knownGroups;
+      if(change.type.isCreation()) {
+        known.add(change.name);
+      }
+      else {
+        known.remove(change.name);
+      }
+      directorySeq = change.seq;
+    }
+  }
+
+
   // Sending messages
   // ---------------- 
+  //single sends go through the pipeline too, so that their eSIDs cannot push
+  //queued messages out of the server's window
   public boolean sendMessageToAccount(String recipientName, String message,
       int timestamp) throws RemoteException {
-    return server.sendMessageToAccount(cUID, nextEventSID(), accountName,
-        recipientName, message, timestamp);
+    return sendThroughPipeline(false, recipientName, message, timestamp);
   }
 
   public boolean sendMessageToGroup(String groupName, String message,
       int timestamp) throws RemoteException {
-    return server.sendMessageToGroup(cUID, nextEventSID(), accountName,
-        groupName, message, timestamp);
+    return sendThroughPipeline(true, groupName, message, timestamp);
+  }
+
+  /**
+  * Sends one message through the pipeline and waits for it, reporting its
+  * result as the server's single sends do.
+  *
+  * @return               a {@code true} boolean if the server registered the
+  *                       send for the first time
+  * @throws RemoteException if the send failed
+  */
+  private boolean sendThroughPipeline(boolean toGroup, String recipientName,
+      String message, int timestamp) throws RemoteException {
+    OutgoingMessage.Result result;
+    try {
+      result = pipeline.send(accountName, toGroup, recipientName, message,
+          timestamp).get();
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("interrupted while sending to " + recipientName, e);
+    }
+    catch(ExecutionException e) {
+      if(e.getCause() instanceof RemoteException) {
+        throw (RemoteException) e.getCause();
+      }
+      throw new RemoteException("could not send to " + recipientName, e.getCause());
+    }
+    if(result == OutgoingMessage.Result.FAILED) {
+      throw new RemoteException("could not send to " + recipientName);
+    }
+    return result == OutgoingMessage.Result.SENT;
+  }
+
+  /**
+  * Queues a message to an account, to be sent in a batch with other queued
+  * messages, and returns without waiting for the server.
+  * <p>
+  * This suits a client sending many messages, which would otherwise wait a
+  * round trip for each. Messages are sent in the order queued, including
+  * those sent by {@link #sendMessageToAccount}, which waits its turn behind
+  * them. Queueing waits only if too many messages are already waiting to be
+  * sent.
+  *
+  * @param  recipientName the account name the message is being sent to
+  * @param  message       the string we are sending
+  * @param  timestamp     the client-generated timestamp when this message was
+  *                       created
+  * @return               a future completed with the message's result once
+  *                       its batch has been sent
+  */
+  public CompletableFuture<OutgoingMessage.Result> queueMessageToAccount(
+      String recipientName, String message, int timestamp)
+      throws InterruptedException {
+    return pipeline.send(accountName, false, recipientName, message, timestamp);
+  }
+
+  /**
+  * Queues a message to a group, as {@link #queueMessageToAccount} does.
+  */
+  public CompletableFuture<OutgoingMessage.Result> queueMessageToGroup(
+      String groupName, String message, int timestamp)
+      throws InterruptedException {
+    return pipeline.send(accountName, true, groupName, message, timestamp);
+  }
+
+  /**
+  * Waits until every message queued so far has been sent or has failed.
+  */
+  public void flushQueuedMessages() throws InterruptedException {
+    pipeline.flush();
+  }
+
+  /**
+  * Sends the queued messages before a log-in or log-out, since the server
+  * treats sends with {@code eSID}s older than a log-in as already received.
+  */
+  private void finishQueuedMessages() {
+    try {
+      pipeline.flush();
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 
 
   // Receiving messages
   // ------------------
 
+  /**
+  * Forgets the pushed messages received so far. The server numbers what it
+  * pushes for each account on, so numbers seen under an earlier log-in mean
+  * nothing for the next.
+  */
+  private void resetDeliverySeq() {
+    synchronized(deliveryLock) {
+      lastDeliverySeq = -1;
+    }
+  }
+
+  /**
+  * Records a server {@code eSID}, reporting whether its message should be
+  * shown.
+  * <p>
+  * The server's {@code eSID}s are shared by all of its recipients, and
+  * messages held for an offline account are replayed with the (older)
+  * {@code eSID}s they were given when sent. An {@code eSID} below the window
+  * is therefore usually a first delivery rather than a repeat, so it is shown:
+  * a rare repeated message is preferable to a lost one.
+  *
+  * @param  eSID          the server's event sequence ID for a delivery
+  * @return               a {@code true} boolean unless the delivery is a
+  *                       known duplicate
+  */
+  private boolean isNewDelivery(int eSID) {
+    return receivedServerSIDs.record(eSID) != EventWindow.Result.DUPLICATE;
+  }
+
   /**
   * Receive a message from another account.
   * <p>
@@ -164,7 +547,7 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
   public boolean messageFromAccount(int eSID, String senderName,
       String recipientName, String message, int timestamp)
       throws RemoteException {
-    if (receivedServerSIDs.contains(eSID)) {
+    if(!isNewDelivery(eSID)) {
       return false;
 
     } else {
@@ -172,10 +555,10 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
       if (!recipientName.equals(accountName)) {
         System.out.println(recipientName + ", " + accountName);
         System.out.println("Error, not to the right account");
+        receivedServerSIDs.forget(eSID);
         throw new RemoteException();
       }
 
-      receivedServerSIDs.add(eSID);
       System.out.println("[" + senderName + " @ " + timestamp + "] " + message);
       return true;
     }
@@ -201,20 +584,51 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
   public boolean messageFromGroup(int eSID, String groupName, String senderName,
       String recipientName, String message, int timestamp)
       throws RemoteException {
-    if (receivedServerSIDs.contains(eSID)) {
+    if(!isNewDelivery(eSID)) {
       return false;
 
     } else {
       // if this client's logged-in account doesn't match the recipient, error
       if (!recipientName.equals(accountName)) {
         System.out.println("Error, not to the right account");
+        receivedServerSIDs.forget(eSID);
         throw new RemoteException();
       }
 
-      receivedServerSIDs.add(eSID);
       System.out.println("[" + groupName + ":" + senderName + " @ " +
           timestamp + "] " + message);
       return true;
     }
   }
+
+  /**
+  * Receive a batch of messages, oldest first.
+  * <p>
+  * Each message numbered above the last one received is handled as if it had
+  * arrived on its own; the rest are duplicates of a batch the server resent.
+  * Handling stops at the first message that cannot be received, and the
+  * exception is passed on so that the server keeps the batch.
+  *
+  * @param  firstSeq      the delivery sequence number of the first message;
+  *                       each later message's is one more
+  * @param  messages      the messages sent to this client's account
+  * @return               for each message, a {@code true} boolean if the
+  *                       client has received it for the first time
+  */
+  public boolean[] messagesFromServer(long firstSeq, Message[] messages)
+      throws RemoteException {
+    boolean[] received = new boolean[messages.length];
+    //held throughout, so that a resend racing the first attempt waits for it
+    synchronized(deliveryLock) {
+      for(int i = 0; i < messages.length; i++) {
+        long seq = firstSeq + i;
+        if(seq <= lastDeliverySeq) {
+          continue;
+        }
+        received[i] = messages[i].deliverTo(this);
+        lastDeliverySeq = seq;
+      }
+    }
+    return received;
+  }
 }
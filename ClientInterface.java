@@ -61,6 +61,51 @@ public interface ClientInterface extends Remote {
       String recipientName, String message, int timestamp)
       throws RemoteException;
 
+  /**
+  * Receive a batch of messages, oldest first.
+  * <p>
+  * Equivalent to receiving each message in turn through
+  * {@link #messageFromAccount} or {@link #messageFromGroup}, but in a single
+  * round trip. The server uses this to push whatever has built up for the
+  * client's account since its previous delivery. If any message cannot be
+  * received, a {@code RemoteException} is thrown and the server may resend the
+  * whole batch.
+  * <p>
+  * Each message pushed to an account has a delivery sequence number, one more
+  * than the previous message pushed to it, and a resent batch keeps its
+  * numbers. Duplicates are discarded by remembering the highest number
+  * received since the client logged in: a message numbered no higher has
+  * been received already.
+  *
+  * @param  firstSeq      the delivery sequence number of the first message;
+  *                       each later message's is one more
+  * @param  messages      the messages sent to this client's account
+  * @return               for each message, a {@code true} boolean if the
+  *                       client has received it for the first time
+  */
+  public boolean[] messagesFromServer(long firstSeq, Message[] messages)
+      throws RemoteException;
+
+
+  // Directory changes
+  // -----------------
+
+  /**
+  * Receive a batch of account and group creations and deletions, oldest
+  * first.
+  * <p>
+  * Sent to clients that have called
+  * {@link ServerInterface#subscribeToDirectory}. Each change's sequence number
+  * is one more than the previous change's, so a batch whose first change does
+  * not follow the last one applied means that changes were missed and the
+  * directory should be reloaded. A change may be sent again after the client
+  * resubscribes; applying it twice has no further effect.
+  *
+  * @param  changes       the changes, in sequence order
+  */
+  public void directoryChanged(DirectoryChange[] changes)
+      throws RemoteException;
+
 
   // Log-in management
   // -----------------
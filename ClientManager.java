@@ -1,18 +1,47 @@
+import java.net.*;
 import java.rmi.*;
 import java.rmi.server.*;
 import java.util.*;
 
 public class ClientManager {  
+  /**
+  * The number of names fetched at a time when listing accounts or groups
+  */
+  private static final int LIST_PAGE_SIZE = 100;
+
   public static void main (String[] argv) {
     // NOTE: this relies on a symlink from /rmi-chat to this project's directory
     System.setProperty("java.security.policy", "file:/rmi-chat/security.policy");
     System.setProperty("java.rmi.server.codebase", "file:/rmi-chat");
 
     try {
-      System.setSecurityManager(new RMISecurityManager());      
+      // "--poll" fetches messages by polling, for a client the server cannot
+      // call back
+      List<String> arguments = new ArrayList<String>(Arrays.asList(argv));
+      final boolean poll = arguments.remove("--poll");
 
-      ServerInterface server = (ServerInterface) Naming.lookup("rmi://localhost/ABC");
-      Client client = new Client(server);
+      // "--nio" or "--nio=<host>[:<port>]" connects over the NIO transport
+      // instead of RMI
+      ServerInterface server;
+      ChatSocketFactory socketFactory = null;
+      if(!arguments.isEmpty() && arguments.get(0).startsWith("--nio")) {
+        String option = arguments.get(0);
+        String address = option.startsWith("--nio=") ?
+            option.substring("--nio=".length()) : "localhost";
+        int port = NioProtocol.DEFAULT_PORT;
+        int colon = address.lastIndexOf(':');
+        if(colon >= 0) {
+          port = Integer.parseInt(address.substring(colon + 1));
+          address = address.substring(0, colon);
+        }
+        server = new NioServerStub(new InetSocketAddress(address, port));
+      }
+      else {
+        System.setSecurityManager(new RMISecurityManager());      
+        server = (ServerInterface) Naming.lookup("rmi://localhost/ABC");
+        socketFactory = ChatSocketFactory.fromSystemProperties();
+      }
+      Client client = new Client(server, socketFactory);
 
       //logs in with an initial name
       Scanner s = new Scanner(System.in);      
@@ -23,6 +52,7 @@ public class ClientManager {
       //  message <user_name> <message>
       //  create_group <group_name> <group_member_1> <group_member_2>...
       //  message_group <group_name> <message>
+      //  list_groups [<pattern>], list_accounts [<pattern>]
       while (true) {
         String inputString = s.nextLine().trim();                  
         
@@ -34,8 +64,13 @@ public class ClientManager {
 
           if(prefix.equals("login")) {
             try {
-              client.logIn(suffix);
-              server.getUndeliveredMessages(client, client.accountName);
+              if(poll) {
+                client.logInToPoll(suffix);
+              }
+              else {
+                client.logIn(suffix);
+                server.getUndeliveredMessages(client, client.accountName);
+              }
             }
             catch(RemoteException e) {
               System.out.println("Error logging in - have you created an account for " + suffix + " yet?");
@@ -87,6 +122,12 @@ public class ClientManager {
               System.out.println("Error messaging group, sorry!");
             }
           }
+          else if(prefix.equals("list_groups")) {
+            System.out.println(server.getGroupsList(suffix));
+          }
+          else if(prefix.equals("list_accounts")) {
+            System.out.println(server.getAccountsList(suffix));
+          }
           else if(prefix.equals("message")) {
             try {
               String[] splitCommand = suffix.split(" ", 2);
@@ -104,10 +145,21 @@ public class ClientManager {
           }
         }
         else if(inputString.equals("list_groups")) {
-          System.out.println(server.getGroupsList());
+          //stream the directory a page at a time rather than in one huge reply
+          String pageToken = null;
+          do {
+            NamePage page = server.getGroupsPage(pageToken, LIST_PAGE_SIZE);
+            System.out.println(page.names);
+            pageToken = page.nextPageToken;
+          } while(pageToken != null);
         }
         else if(inputString.equals("list_accounts")) {
-          System.out.println(server.getAccountsList());
+          String pageToken = null;
+          do {
+            NamePage page = server.getAccountsPage(pageToken, LIST_PAGE_SIZE);
+            System.out.println(page.names);
+            pageToken = page.nextPageToken;
+          } while(pageToken != null);
         }
         else {
           System.out.println("Unrecognized command, please try again.");
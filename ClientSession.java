@@ -0,0 +1,63 @@
+/**
+ * The account a client is logged into.
+ * <p>
+ * The {@code Server} keeps one of these per logged-in client, keyed by the
+ * client UID. It records the {@code eSID} of the log-in so that stale log-in
+ * and log-out requests from that client can be recognized and ignored.
+ * Instances are immutable apart from the lease, which the client renews, and
+ * the cursor of its last poll; a new log-in replaces the entry.
+ */
+public final class ClientSession {
+  /**
+  * The ID of the account the client is logged into
+  */
+  public final int accountId;
+
+  /**
+  * The client's event sequence ID for the log-in that created this session
+  */
+  public final int eSID;
+
+  /**
+  * When the lease runs out, as a {@link System#nanoTime} value
+  */
+  private volatile long leaseExpiresNanos;
+
+  /**
+  * The cursor after the last batch a poll returned, past which the client's
+  * polls confirm nothing; guarded by the account's stripe
+  */
+  private long pollCursor;
+
+  public ClientSession(int accountId, int eSID, long leaseNanos) {
+    this.accountId = accountId;
+    this.eSID = eSID;
+    renewLease(leaseNanos);
+  }
+
+  /**
+  * Extends the lease to a given length from now.
+  */
+  public void renewLease(long leaseNanos) {
+    leaseExpiresNanos = System.nanoTime() + leaseNanos;
+  }
+
+  /**
+  * Returns the cursor after the last batch a poll returned, or {@code 0} if
+  * none has.
+  */
+  public long getPollCursor() {
+    return pollCursor;
+  }
+
+  public void setPollCursor(long pollCursor) {
+    this.pollCursor = pollCursor;
+  }
+
+  /**
+  * Returns the time left on the lease, which is negative once it has run out.
+  */
+  public long getLeaseRemainingNanos() {
+    return leaseExpiresNanos - System.nanoTime();
+  }
+}
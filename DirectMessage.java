@@ -0,0 +1,20 @@
+import java.rmi.*;
+
+/**
+ * A message sent from one account directly to another.
+ * <p>
+ * Delivered through {@link ClientInterface#messageFromAccount}.
+ */
+public final class DirectMessage extends Message {
+  private static final long serialVersionUID = 1L;
+
+  public DirectMessage(int eSID, String senderName, String recipientName,
+      String message, int timestamp) {
+    super(eSID, senderName, recipientName, message, timestamp);
+  }
+
+  public boolean deliverTo(ClientInterface client) throws RemoteException {
+    return client.messageFromAccount(eSID, senderName, recipientName, message,
+        timestamp);
+  }
+}
@@ -0,0 +1,60 @@
+import java.io.*;
+
+/**
+ * One account or group being created or deleted, as pushed to clients that
+ * watch the directory.
+ * <p>
+ * Every change is given the next number in one sequence shared by accounts
+ * and groups, so a client that has applied every change up to some sequence
+ * number can tell from the next batch whether it missed any. Instances are
+ * immutable.
+ *
+ * {@see ServerInterface#subscribeToDirectory}
+ * {@see ClientInterface#directoryChanged}
+ */
+public final class DirectoryChange implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  public enum Type {
+    ACCOUNT_CREATED, ACCOUNT_DELETED, GROUP_CREATED, GROUP_DELETED;
+
+    /**
+    * Returns {@code true} if the change is to the account directory.
+    */
+    public boolean isAccount() {
+      return this == ACCOUNT_CREATED || this == ACCOUNT_DELETED;
+    }
+
+    /**
+    * Returns {@code true} if the change adds a name.
+    */
+    public boolean isCreation() {
+      return this == ACCOUNT_CREATED || this == GROUP_CREATED;
+    }
+  }
+
+  /**
+  * The change's sequence number, one more than the previous change's
+  */
+  public final long seq;
+
+  /**
+  * What happened to the name
+  */
+  public final Type type;
+
+  /**
+  * The account or group name
+  */
+  public final String name;
+
+  public DirectoryChange(long seq, Type type, String name) {
+    this.seq = seq;
+    this.type = type;
+    this.name = name;
+  }
+
+  public String toString() {
+    return seq + " " + type + " " + name;
+  }
+}
@@ -0,0 +1,196 @@
+import java.rmi.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Pushes account and group creations and deletions to the clients watching
+ * the directory.
+ * <p>
+ * A client that shows a roster would otherwise have to fetch the whole
+ * directory again and compare it with its copy to find out what changed.
+ * Instead, every change is numbered and kept in a ring of the most recent
+ * ones, and each subscribed client is sent the changes it has not yet seen,
+ * in order and in batches, through {@link ClientInterface#directoryChanged}.
+ * <p>
+ * A client that reconnects can resume after the last change it applied, as
+ * long as that change is still in the ring. A client that falls further
+ * behind than the ring reaches is sent the oldest change still held, so the
+ * jump in sequence numbers tells it to reload the directory.
+ * <p>
+ * As with an {@link OutboundQueue}, at most one batch per subscriber is in
+ * flight at a time, and draining runs on the supplied {@link FanOutEngine},
+ * counting against the subscriber's callback limit there. A subscriber whose
+ * callback fails is dropped.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class DirectoryFeed {
+  /**
+  * The largest number of changes sent to a subscriber at once
+  */
+  public static final int MAX_BATCH_SIZE = 256;
+
+  private final class Subscriber implements Runnable {
+    final int cUID;
+    final ClientInterface client;
+
+    /** the sequence number of the last change sent; guarded by this */
+    long sentSeq;
+    boolean draining;
+
+    Subscriber(int cUID, ClientInterface client, long sentSeq) {
+      this.cUID = cUID;
+      this.client = client;
+      this.sentSeq = sentSeq;
+    }
+
+    /**
+    * Starts a drain unless one is running or there is nothing to send.
+    */
+    void wake() {
+      synchronized (this) {
+        if (draining || sentSeq >= getLatestSeq()) {
+          return;
+        }
+        draining = true;
+      }
+      engine.execute(this);
+    }
+
+    public void run() {
+      while (subscribers.get(cUID) == this) {
+        DirectoryChange[] batch;
+        synchronized (this) {
+          batch = changesAfter(sentSeq);
+          if (batch.length == 0) {
+            draining = false;
+            return;
+          }
+          sentSeq = batch[batch.length - 1].seq;
+        }
+
+        engine.beginCallback(client);
+        try {
+          client.directoryChanged(batch);
+        } catch (RemoteException | RuntimeException e) {
+          subscribers.remove(cUID, this);
+          System.out.println("[System] Dropped directory subscriber " + cUID + ": " + e);
+        } finally {
+          engine.endCallback(client);
+        }
+      }
+    }
+  }
+
+  private final FanOutEngine engine;
+  private final Map<Integer, Subscriber> subscribers;
+
+  /** the most recent changes; change {@code seq} lives at {@code seq % length} */
+  private final DirectoryChange[] recent;
+
+  /** the sequence number of the latest change; guarded by this */
+  private long latestSeq;
+
+  /**
+  * Creates a feed with no changes.
+  *
+  * @param  capacity      the number of recent changes kept for resuming
+  * @param  initialSeq    the sequence number before the first change
+  * @param  engine        runs the drain tasks
+  */
+  public DirectoryFeed(int capacity, long initialSeq, FanOutEngine engine) {
+    this.recent = new DirectoryChange[capacity];
+    this.latestSeq = initialSeq;
+    this.engine = engine;
+    this.subscribers = new ConcurrentHashMap<Integer, Subscriber>();
+  }
+
+  /**
+  * Records a change and starts sending it to every subscriber.
+  *
+  * @param  type          what happened to the name
+  * @param  name          the account or group name
+  */
+  public void publish(DirectoryChange.Type type, String name) {
+    synchronized (this) {
+      latestSeq++;
+      recent[(int) (latestSeq % recent.length)] =
+          new DirectoryChange(latestSeq, type, name);
+    }
+
+    for (Subscriber subscriber : subscribers.values()) {
+      subscriber.wake();
+    }
+  }
+
+  /**
+  * Returns the sequence number of the latest change.
+  */
+  public synchronized long getLatestSeq() {
+    return latestSeq;
+  }
+
+  /**
+  * Subscribes a client, replacing any earlier subscription for its
+  * {@code cUID}.
+  * <p>
+  * If the client's last change is still held, or is the latest one, it is
+  * sent every change after it and the feed resumes from {@code afterSeq}.
+  * Otherwise the feed starts from the latest change, and the client must
+  * reload the directory.
+  *
+  * @param  cUID          the client's ID
+  * @param  client        the client to send changes to
+  * @param  afterSeq      the last change the client has applied, or
+  *                       {@code -1} to start from the latest change
+  * @return               the sequence number the feed resumes after
+  */
+  public long subscribe(int cUID, ClientInterface client, long afterSeq) {
+    long resumeSeq;
+    synchronized (this) {
+      long oldestSeq = Math.max(0, latestSeq - recent.length + 1);
+      boolean resumable = afterSeq == latestSeq;
+      if (afterSeq < latestSeq && afterSeq >= oldestSeq - 1) {
+        DirectoryChange next = recent[(int) ((afterSeq + 1) % recent.length)];
+        resumable = next != null && next.seq == afterSeq + 1;
+      }
+      resumeSeq = resumable ? afterSeq : latestSeq;
+    }
+
+    Subscriber subscriber = new Subscriber(cUID, client, resumeSeq);
+    subscribers.put(cUID, subscriber);
+    subscriber.wake();
+    return resumeSeq;
+  }
+
+  /**
+  * Stops sending changes to a client.
+  *
+  * @param  cUID          the client's ID
+  * @return               a {@code true} boolean if it was subscribed
+  */
+  public boolean unsubscribe(int cUID) {
+    return subscribers.remove(cUID) != null;
+  }
+
+  /**
+  * Returns the number of subscribed clients.
+  */
+  public int getSubscriberCount() {
+    return subscribers.size();
+  }
+
+  /**
+  * Returns up to {@link #MAX_BATCH_SIZE} changes after a given one, starting
+  * at the oldest change held if some after it have already been overwritten.
+  */
+  private synchronized DirectoryChange[] changesAfter(long afterSeq) {
+    long from = Math.max(afterSeq + 1, latestSeq - recent.length + 1);
+    int count = (int) Math.max(0, Math.min(latestSeq - from + 1, MAX_BATCH_SIZE));
+    DirectoryChange[] batch = new DirectoryChange[count];
+    for (int i = 0; i < count; i++) {
+      batch[i] = recent[(int) ((from + i) % recent.length)];
+    }
+    return batch;
+  }
+}
@@ -0,0 +1,32 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * An immutable copy of the account or group directory at one version.
+ * <p>
+ * The {@code Server} keeps the latest snapshot of each directory and builds a
+ * new one only after the directory changes, so repeated listings share one
+ * copy. A client that keeps the snapshot it was last sent can ask for a new
+ * one only if the directory has moved on, with
+ * {@link ServerInterface#getAccountsIfNewer} or
+ * {@link ServerInterface#getGroupsIfNewer}.
+ */
+public final class DirectorySnapshot implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /**
+  * The directory's version when this snapshot was taken. Versions only
+  * increase, including across server restarts.
+  */
+  public final long version;
+
+  /**
+  * The names in the directory, in sorted order
+  */
+  public final SortedSet<String> names;
+
+  public DirectorySnapshot(long version, Collection<String> names) {
+    this.version = version;
+    this.names = Collections.unmodifiableSortedSet(new TreeSet<String>(names));
+  }
+}
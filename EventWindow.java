@@ -0,0 +1,198 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * A fixed-size record of which event sequence IDs have been seen from one
+ * sender.
+ * <p>
+ * {@code eSID}s increase monotonically, so a sender's recent history can be
+ * summarized by the highest {@code eSID} seen (the high watermark) plus one bit
+ * for each of the {@code size} {@code eSID}s at or below it. The bits are kept
+ * in a ring of {@code long}s indexed by {@code eSID} modulo {@code size}, so
+ * recording an {@code eSID} takes constant time and the window never grows.
+ * <p>
+ * An {@code eSID} that falls below the window can no longer be checked. It is
+ * reported as {@link Result#STALE} and the caller decides whether to treat it
+ * as a duplicate or as new. A window may also be given a floor with
+ * {@link #advanceTo}, below which every {@code eSID} is {@code STALE}.
+ * <p>
+ * The window notes when it was last recorded to or advanced, so that an owner
+ * keeping many windows can drop those that have gone quiet.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class EventWindow {
+  /**
+  * The outcome of recording an {@code eSID}.
+  */
+  public enum Result {
+    /** the {@code eSID} had not been seen and is now recorded */
+    NEW,
+    /** the {@code eSID} was already recorded */
+    DUPLICATE,
+    /** the {@code eSID} is too old to tell whether it was seen */
+    STALE
+  }
+
+  private final long[] bits;
+  private final int size;
+
+  /** the highest {@code eSID} recorded, or {@code floor} if none is higher */
+  private long highWatermark;
+
+  /** every {@code eSID} at or below this is {@code STALE} */
+  private long floor;
+
+  /** the {@link System#nanoTime} of the last record or advance */
+  private long lastUsedNanos;
+
+  /**
+  * Creates an empty window covering at least {@code size} {@code eSID}s.
+  * <p>
+  * The size is rounded up to a multiple of 64 and then to a power of two.
+  *
+  * @param  size          the minimum number of {@code eSID}s to remember
+  */
+  public EventWindow(int size) {
+    int rounded = 64;
+    while (rounded < size) {
+      rounded <<= 1;
+    }
+
+    this.size = rounded;
+    this.bits = new long[rounded / 64];
+    this.highWatermark = -1;
+    this.floor = -1;
+    this.lastUsedNanos = System.nanoTime();
+  }
+
+  /**
+  * Records an {@code eSID}, reporting whether it had been seen before.
+  *
+  * @param  eSID          the event sequence ID to record
+  * @return               {@code NEW} if it is now recorded for the first time,
+  *                       {@code DUPLICATE} if it was already recorded, or
+  *                       {@code STALE} if it is older than the window
+  */
+  public synchronized Result record(int eSID) {
+    lastUsedNanos = System.nanoTime();
+    if (eSID <= floor || eSID <= highWatermark - size) {
+      return Result.STALE;
+    }
+
+    if (eSID > highWatermark) {
+      clearRange(highWatermark + 1, eSID);
+      highWatermark = eSID;
+    } else if (isSet(eSID)) {
+      return Result.DUPLICATE;
+    }
+
+    set(eSID);
+    return Result.NEW;
+  }
+
+  /**
+  * Forgets a previously recorded {@code eSID}, so that a later
+  * {@link #record} of it reports {@code NEW}.
+  * <p>
+  * Used when a request was recorded but then could not be carried out. Does
+  * nothing if the {@code eSID} has already left the window.
+  *
+  * @param  eSID          the event sequence ID to forget
+  */
+  public synchronized void forget(int eSID) {
+    if (eSID > floor && eSID > highWatermark - size && eSID <= highWatermark) {
+      int slot = eSID & (size - 1);
+      bits[slot >>> 6] &= ~(1L << slot);
+    }
+  }
+
+  /**
+  * Marks every {@code eSID} up to and including {@code eSID} as seen.
+  * <p>
+  * Later {@code eSID}s at or below this floor report {@code STALE}.
+  *
+  * @param  eSID          the new floor
+  */
+  public synchronized void advanceTo(int eSID) {
+    lastUsedNanos = System.nanoTime();
+    if (eSID > floor) {
+      floor = eSID;
+    }
+    if (eSID > highWatermark) {
+      clearRange(highWatermark + 1, eSID);
+      highWatermark = eSID;
+    }
+  }
+
+  /**
+  * Returns the highest {@code eSID} recorded or advanced to, or {@code -1} if
+  * there has been none.
+  */
+  public synchronized int getHighWatermark() {
+    return (int) highWatermark;
+  }
+
+  /**
+  * Returns how long it has been since an {@code eSID} was last recorded or
+  * advanced to.
+  */
+  public synchronized long getIdleNanos() {
+    return System.nanoTime() - lastUsedNanos;
+  }
+
+  /**
+  * Writes this window's state, for saving in a snapshot.
+  *
+  * @param  out           where to write
+  */
+  public synchronized void writeTo(DataOutput out) throws IOException {
+    out.writeInt(size);
+    out.writeLong(highWatermark);
+    out.writeLong(floor);
+    for (long word : bits) {
+      out.writeLong(word);
+    }
+  }
+
+  /**
+  * Reads a window written by {@link #writeTo}.
+  *
+  * @param  in            where to read from
+  * @return               a window in the same state as the one written
+  */
+  public static EventWindow readFrom(DataInput in) throws IOException {
+    EventWindow window = new EventWindow(in.readInt());
+    window.highWatermark = in.readLong();
+    window.floor = in.readLong();
+    for (int i = 0; i < window.bits.length; i++) {
+      window.bits[i] = in.readLong();
+    }
+    return window;
+  }
+
+  private boolean isSet(long eSID) {
+    int slot = (int) (eSID & (size - 1));
+    return (bits[slot >>> 6] & (1L << slot)) != 0;
+  }
+
+  private void set(long eSID) {
+    int slot = (int) (eSID & (size - 1));
+    bits[slot >>> 6] |= (1L << slot);
+  }
+
+  /**
+  * Clears the slots for {@code from} through {@code to}, which are about to
+  * be reused for newer {@code eSID}s.
+  */
+  private void clearRange(long from, long to) {
+    if (to - from + 1 >= size) {
+      Arrays.fill(bits, 0L);
+      return;
+    }
+    for (long eSID = from; eSID <= to; eSID++) {
+      int slot = (int) (eSID & (size - 1));
+      bits[slot >>> 6] &= ~(1L << slot);
+    }
+  }
+}
@@ -0,0 +1,224 @@
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Runs callbacks to clients on a bounded pool of worker threads, or on
+ * virtual threads, and measures how long each group message takes to reach
+ * all of its recipients.
+ * <p>
+ * Delivering a group message means one RMI callback per logged-in member.
+ * Making those calls one after another inside the sender's own RMI call ties
+ * the sender up for a full round trip per member, and a single slow member
+ * holds up everyone after it. The {@code Server} instead hands each member's
+ * copy to that member's {@link OutboundQueue}, whose drains run on this
+ * engine, and returns to the sender once every copy is either queued or
+ * stored for an offline member.
+ * <p>
+ * The number of workers is bounded, but the queue of waiting tasks is not,
+ * and a task never runs on the thread that submitted it: submitters often
+ * hold a stripe, or are the {@link TimerWheel}'s ticker, and must not wait on
+ * a client. The queue stays small regardless, since each outbound queue and
+ * each directory subscriber has at most one drain waiting or running. Senders
+ * are slowed instead by their recipients' outbound queues, which store new
+ * messages once they fall behind.
+ * <p>
+ * An engine made by {@link #withVirtualThreads} instead runs every task on a
+ * virtual thread of its own. A callback blocked on the network then parks its
+ * virtual thread and frees the carrier, so tens of thousands of deliveries can
+ * be in flight on a handful of OS threads. Nothing then pushes back on
+ * senders, so callers bracket each callback with {@link #beginCallback} and
+ * {@link #endCallback}, which bound the callbacks in flight to any one client
+ * in either mode.
+ * <p>
+ * The time from the start of a fan-out until its last delivery finishes is
+ * recorded in {@link #getLatencyStats}.
+ */
+public class FanOutEngine implements Executor {
+  private final ExecutorService workers;
+
+  /** the bounded pool behind {@code workers}, or {@code null} for virtual threads */
+  private final ThreadPoolExecutor pool;
+
+  private final LatencyStats latencyStats;
+  private final int callbacksPerRecipient;
+
+  /**
+  * The callback permits of each client with a callback in flight or waiting,
+  * keyed by the client's stub. An entry is removed once no thread holds or
+  * waits for its permits.
+  */
+  private final ConcurrentHashMap<Object, RecipientPermits> permits =
+      new ConcurrentHashMap<Object, RecipientPermits>();
+
+  /**
+  * Creates an engine with a fixed number of workers.
+  *
+  * @param  threads       the number of delivery threads
+  * @param  callbacksPerRecipient the number of callbacks that may be in
+  *                       flight to one client at once
+  */
+  public FanOutEngine(int threads, int callbacksPerRecipient) {
+    this(new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new WorkerFactory()), callbacksPerRecipient);
+  }
+
+  private FanOutEngine(ExecutorService workers, int callbacksPerRecipient) {
+    this.workers = workers;
+    this.pool = workers instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) workers : null;
+    this.latencyStats = new LatencyStats();
+    this.callbacksPerRecipient = callbacksPerRecipient;
+  }
+
+  /**
+  * Creates an engine that runs each task on a new virtual thread.
+  *
+  * @param  callbacksPerRecipient the number of callbacks that may be in
+  *                       flight to one client at once
+  * @throws UnsupportedOperationException if this JVM has no virtual threads
+  *                       (they need Java 21)
+  */
+  public static FanOutEngine withVirtualThreads(int callbacksPerRecipient) {
+    //looked up reflectively so the code still builds and runs on older JVMs
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return new FanOutEngine((ExecutorService) factory.invoke(null), callbacksPerRecipient);
+    }
+    catch(NoSuchMethodException e) {
+      throw new UnsupportedOperationException("virtual threads need Java 21");
+    }
+    catch(IllegalAccessException | InvocationTargetException e) {
+      throw new UnsupportedOperationException("could not create virtual threads", e);
+    }
+  }
+
+  /**
+  * Runs a delivery task on a worker once one is free, never on the calling
+  * thread. With virtual threads the task always gets a thread of its own.
+  *
+  * @param  task          the task to run
+  */
+  public void execute(Runnable task) {
+    workers.execute(task);
+  }
+
+  /**
+  * Returns whether tasks run on virtual threads.
+  */
+  public boolean usesVirtualThreads() {
+    return pool == null;
+  }
+
+  /**
+  * Waits until another callback may be made to a client. Each call must be
+  * followed by one to {@link #endCallback} once the callback returns or
+  * fails.
+  *
+  * @param  recipient     the client's stub
+  */
+  public void beginCallback(Object recipient) {
+    RecipientPermits recipientPermits = permits.compute(recipient,
+        new BiFunction<Object, RecipientPermits, RecipientPermits>() {
+          public RecipientPermits apply(Object key, RecipientPermits existing) {
+            RecipientPermits entry = existing != null ? existing
+                : new RecipientPermits(callbacksPerRecipient);
+            entry.users++;
+            return entry;
+          }
+        });
+    recipientPermits.semaphore.acquireUninterruptibly();
+  }
+
+  /**
+  * Marks a callback started by {@link #beginCallback} as finished.
+  *
+  * @param  recipient     the client's stub
+  */
+  public void endCallback(Object recipient) {
+    permits.computeIfPresent(recipient,
+        new BiFunction<Object, RecipientPermits, RecipientPermits>() {
+          public RecipientPermits apply(Object key, RecipientPermits entry) {
+            entry.semaphore.release();
+            return --entry.users == 0 ? null : entry;
+          }
+        });
+  }
+
+  /**
+  * Starts timing the deliveries of one message.
+  * <p>
+  * The returned callback should be run once as each delivery finishes. When it
+  * has been run {@code deliveries} times the elapsed time is recorded.
+  *
+  * @param  deliveries    the number of recipients
+  * @return               the callback to run per finished delivery
+  */
+  public Runnable startFanOut(int deliveries) {
+    return new FanOut(deliveries);
+  }
+
+  /**
+  * Returns the time taken to complete each fan-out, from its start until its
+  * last delivery finished.
+  */
+  public LatencyStats getLatencyStats() {
+    return latencyStats;
+  }
+
+  /**
+  * Returns the number of tasks waiting for a worker, which is always zero
+  * with virtual threads.
+  */
+  public int getQueuedTasks() {
+    return pool == null ? 0 : pool.getQueue().size();
+  }
+
+  /**
+  * Tracks the outstanding deliveries of one message.
+  */
+  private class FanOut implements Runnable {
+    private final long startNanos;
+    private final AtomicInteger remaining;
+
+    FanOut(int deliveries) {
+      startNanos = System.nanoTime();
+      remaining = new AtomicInteger(deliveries);
+    }
+
+    public void run() {
+      if(remaining.decrementAndGet() == 0) {
+        latencyStats.record(System.nanoTime() - startNanos);
+      }
+    }
+  }
+
+  /**
+  * The permits for callbacks to one client.
+  */
+  private static class RecipientPermits {
+    final Semaphore semaphore;
+
+    /** the threads holding or waiting for a permit; guarded by the map entry */
+    int users;
+
+    RecipientPermits(int permits) {
+      this.semaphore = new Semaphore(permits);
+    }
+  }
+
+  /**
+  * Names the worker threads and marks them as daemons, so an idle pool does
+  * not keep the JVM alive.
+  */
+  private static class WorkerFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "fan-out-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
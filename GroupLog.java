@@ -0,0 +1,196 @@
+import java.util.*;
+
+/**
+ * The messages sent to one group that are still waiting for offline members.
+ * <p>
+ * A message to a large group used to be copied into the inbox of every member
+ * who was not logged in. Instead, each such message is now stored here once,
+ * and each offline member's {@link Inbox} holds only a range of positions in
+ * this log. Consecutive messages to the same member extend one range, so a
+ * member's backlog costs about the same whatever the number of messages it
+ * covers, and memory for a group's backlog grows with the number of messages
+ * rather than with the number of messages times the number of members.
+ * <p>
+ * Each entry counts the inbox ranges that still refer to it. Entries are
+ * released from the front of the log once no range refers to them. An entry
+ * is appended with one reference already held for the sender, who releases it
+ * after queueing the entry for every offline member, so that it cannot be
+ * released before the last of them has been reached.
+ * <p>
+ * Stored messages have no recipient; {@link GroupMessage#forRecipient} makes
+ * each member's copy as it is read. They are held
+ * {@link MessageCodec#pack packed}, with long bodies compressed.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class GroupLog {
+  private static final int INITIAL_CAPACITY = 8;
+
+  /** the group whose messages this log holds */
+  public final String groupName;
+
+  /** retained entries live in {@code entries[start]} to {@code entries[end - 1]} */
+  private byte[][] entries;
+  private int[] references;
+  private int start;
+  private int end;
+
+  /** the log position of {@code entries[start]} */
+  private long head;
+
+  /**
+  * Creates an empty log whose first entry will have a given position, as when
+  * restoring a log whose earlier entries were already released.
+  *
+  * @param  groupName     the group whose messages this log holds
+  * @param  head          the position of the first entry to be appended
+  */
+  public GroupLog(String groupName, long head) {
+    this.groupName = groupName;
+    this.entries = new byte[INITIAL_CAPACITY][];
+    this.references = new int[INITIAL_CAPACITY];
+    this.head = head;
+  }
+
+  /**
+  * Appends a message, holding one reference to it for the caller.
+  *
+  * @param  message       the message, with no recipient
+  * @return               the message's position in the log
+  */
+  public long append(GroupMessage message) {
+    byte[] packed = MessageCodec.pack(message);
+    return append(packed);
+  }
+
+  private synchronized long append(byte[] packed) {
+    if (end == entries.length) {
+      makeRoom();
+    }
+    entries[end] = packed;
+    references[end] = 1;
+    end++;
+    return head + (end - start) - 1;
+  }
+
+  /**
+  * Returns the position of the first retained entry.
+  */
+  public synchronized long getHead() {
+    return head;
+  }
+
+  /**
+  * Returns the position the next appended entry will have.
+  */
+  public synchronized long getEnd() {
+    return head + (end - start);
+  }
+
+  /**
+  * Returns the entries from {@code from} (inclusive) to {@code to} (exclusive).
+  *
+  * @throws IndexOutOfBoundsException if any of them has been released
+  */
+  public GroupMessage[] read(long from, long to) {
+    byte[][] packed;
+    synchronized (this) {
+      if (from < head || to > head + (end - start) || from > to) {
+        throw new IndexOutOfBoundsException("positions " + from + " to " + to +
+            " are not retained in the log for " + groupName);
+      }
+      int offset = start + (int) (from - head);
+      packed = Arrays.copyOfRange(entries, offset, offset + (int) (to - from));
+    }
+
+    GroupMessage[] messages = new GroupMessage[packed.length];
+    for (int i = 0; i < packed.length; i++) {
+      messages[i] = (GroupMessage) MessageCodec.unpack(packed[i]);
+    }
+    return messages;
+  }
+
+  /**
+  * Adds one reference to each entry from {@code from} to {@code to}
+  * (exclusive). Positions that are not retained are ignored.
+  */
+  public synchronized void retain(long from, long to) {
+    for (long position = Math.max(from, head); position < to; position++) {
+      int index = start + (int) (position - head);
+      if (index >= end) {
+        break;
+      }
+      references[index]++;
+    }
+  }
+
+  /**
+  * Drops one reference to each entry from {@code from} to {@code to}
+  * (exclusive), then releases any entries at the front of the log that are no
+  * longer referred to. Positions that are not retained are ignored.
+  */
+  public synchronized void release(long from, long to) {
+    for (long position = Math.max(from, head); position < to; position++) {
+      int index = start + (int) (position - head);
+      if (index >= end) {
+        break;
+      }
+      references[index]--;
+    }
+    trim();
+  }
+
+  /**
+  * Sets every entry's reference count to zero, ready for the counts to be
+  * rebuilt with {@link #retain} and the unused entries released with
+  * {@link #release}.
+  */
+  public synchronized void clearReferences() {
+    Arrays.fill(references, start, end, 0);
+  }
+
+  /**
+  * Releases the entries at the front of the log that are not referred to.
+  */
+  private void trim() {
+    while (start < end && references[start] <= 0) {
+      entries[start] = null;
+      start++;
+      head++;
+    }
+
+    if (start == end) {
+      // fully released; reuse the arrays from the front
+      start = 0;
+      end = 0;
+      if (entries.length > INITIAL_CAPACITY * 64) {
+        entries = new byte[INITIAL_CAPACITY][];
+        references = new int[INITIAL_CAPACITY];
+      }
+    }
+  }
+
+  /**
+  * Frees space at the end of the arrays, either by sliding the retained
+  * entries to the front or, if they fill more than half of them, by doubling
+  * them.
+  */
+  private void makeRoom() {
+    int size = end - start;
+    byte[][] targetEntries = entries;
+    int[] targetReferences = references;
+    if (size > entries.length / 2) {
+      targetEntries = new byte[entries.length * 2][];
+      targetReferences = new int[entries.length * 2];
+    }
+    System.arraycopy(entries, start, targetEntries, 0, size);
+    System.arraycopy(references, start, targetReferences, 0, size);
+    if (targetEntries == entries) {
+      Arrays.fill(entries, size, end, null);
+    }
+    entries = targetEntries;
+    references = targetReferences;
+    start = 0;
+    end = size;
+  }
+}
@@ -0,0 +1,42 @@
+import java.rmi.*;
+
+/**
+ * One member's copy of a message sent to a group.
+ * <p>
+ * Delivered through {@link ClientInterface#messageFromGroup}. Every member's
+ * copy of one message shares its {@code eSID}. A copy with no recipient is
+ * the single stored instance held in a {@link GroupLog}; each member's copy
+ * is made from it with {@link #forRecipient}.
+ */
+public final class GroupMessage extends Message {
+  private static final long serialVersionUID = 1L;
+
+  /**
+  * The group the message was sent to
+  */
+  public final String groupName;
+
+  public GroupMessage(int eSID, String groupName, String senderName,
+      String recipientName, String message, int timestamp) {
+    super(eSID, senderName, recipientName, message, timestamp);
+    this.groupName = groupName;
+  }
+
+  /**
+  * Returns this message addressed to one member of the group.
+  *
+  * @param  recipientName the member's account name
+  * @return               the member's copy
+  */
+  public GroupMessage forRecipient(String recipientName) {
+    GroupMessage copy = new GroupMessage(eSID, groupName, senderName,
+        recipientName, message, timestamp);
+    copy.encodedBody = encodedBody;
+    return copy;
+  }
+
+  public boolean deliverTo(ClientInterface client) throws RemoteException {
+    return client.messageFromGroup(eSID, groupName, senderName, recipientName,
+        message, timestamp);
+  }
+}
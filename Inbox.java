@@ -0,0 +1,251 @@
+import java.util.*;
+
+/**
+ * The ordered log of messages held for one account while it cannot be reached.
+ * <p>
+ * Direct and group messages are appended to the same log in the order the
+ * server saved them, and each message is identified by its position in the
+ * log. A delivery cursor marks the first message the account has not yet
+ * confirmed. Replaying the backlog is a sequential {@link #read} from the
+ * cursor, and once a batch is confirmed the cursor moves past it with
+ * {@link #confirm}. Confirmed entries are dropped in bulk rather than removed
+ * one at a time.
+ * <p>
+ * Group messages are not copied in. The inbox instead holds a range of
+ * positions in the group's {@link GroupLog}, and consecutive messages from the
+ * same group log extend one range. The range holds a reference to each of its
+ * entries until they are confirmed.
+ * <p>
+ * Direct messages are held {@link MessageCodec#pack packed}, with long bodies
+ * compressed, and are unpacked as they are read. Packed records carry the
+ * sender and recipient names; both are names of existing accounts, since the
+ * {@code Server} refuses sends naming any other.
+ * <p>
+ * Instances are not thread-safe; the {@code Server} guards each inbox with its
+ * account's stripe.
+ */
+public class Inbox {
+  private static final int INITIAL_CAPACITY = 8;
+
+  /**
+  * Receives the entries of an inbox, as held rather than as delivered.
+  */
+  public interface Visitor {
+    /**
+    * Visits a message held in the inbox itself.
+    */
+    public void message(Message message);
+
+    /**
+    * Visits a range of entries held in a group log.
+    *
+    * @param  groupLog      the log holding the messages
+    * @param  from          the position of the first message
+    * @param  to            the position after the last message
+    */
+    public void groupMessages(GroupLog groupLog, long from, long to);
+  }
+
+  /**
+  * Consecutive unconfirmed entries of one group log.
+  */
+  private static class GroupRange {
+    final GroupLog groupLog;
+    long from;
+    long to;
+
+    GroupRange(GroupLog groupLog, long from, long to) {
+      this.groupLog = groupLog;
+      this.from = from;
+      this.to = to;
+    }
+  }
+
+  /** the account the messages are for */
+  private final String accountName;
+
+  /**
+  * retained entries live in {@code entries[start]} to {@code entries[end - 1]};
+  * each is a packed message or a {@link GroupRange}
+  */
+  private Object[] entries;
+  private int start;
+  private int end;
+
+  /** the number of unconfirmed messages, counting each in a range */
+  private int size;
+
+  /** the log position of the first unconfirmed message, which is the cursor */
+  private long cursor;
+
+  public Inbox(String accountName) {
+    this(accountName, 0);
+  }
+
+  /**
+  * Creates an empty inbox whose cursor starts at a given position, as when
+  * restoring an inbox whose earlier entries were already confirmed.
+  *
+  * @param  accountName   the account the messages are for
+  * @param  cursor        the position of the first message to be appended
+  */
+  public Inbox(String accountName, long cursor) {
+    this.accountName = accountName;
+    this.entries = new Object[INITIAL_CAPACITY];
+    this.cursor = cursor;
+  }
+
+  /**
+  * Appends a message to the end of the log.
+  *
+  * @param  message       the message to hold
+  * @return               the message's position in the log
+  */
+  public long append(Message message) {
+    add(MessageCodec.pack(message));
+    size++;
+    return cursor + size - 1;
+  }
+
+  /**
+  * Appends messages held in a group log, taking a reference to each.
+  *
+  * @param  groupLog      the log holding the messages
+  * @param  from          the position of the first message
+  * @param  to            the position after the last message
+  */
+  public void appendGroup(GroupLog groupLog, long from, long to) {
+    groupLog.retain(from, to);
+    size += (int) (to - from);
+
+    if (end > start && entries[end - 1] instanceof GroupRange) {
+      GroupRange last = (GroupRange) entries[end - 1];
+      if (last.groupLog == groupLog && last.to == from) {
+        last.to = to;
+        return;
+      }
+    }
+    add(new GroupRange(groupLog, from, to));
+  }
+
+  /**
+  * Returns the position of the first unconfirmed message.
+  */
+  public long getCursor() {
+    return cursor;
+  }
+
+  /**
+  * Returns the number of unconfirmed messages.
+  */
+  public int size() {
+    return size;
+  }
+
+  /**
+  * Returns {@code true} if every message has been confirmed.
+  */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+  * Reads up to {@code max} messages, in order, starting at the cursor.
+  *
+  * @param  max           the largest number of messages to return
+  * @return               the messages, oldest first; empty if none remain
+  */
+  public Message[] read(int max) {
+    Message[] messages = new Message[Math.min(max, size)];
+    int count = 0;
+    for (int i = start; i < end && count < messages.length; i++) {
+      if (entries[i] instanceof GroupRange) {
+        GroupRange range = (GroupRange) entries[i];
+        long to = Math.min(range.to, range.from + (messages.length - count));
+        for (GroupMessage shared : range.groupLog.read(range.from, to)) {
+          messages[count++] = shared.forRecipient(accountName);
+        }
+      } else {
+        messages[count++] = MessageCodec.unpack((byte[]) entries[i]);
+      }
+    }
+    return messages;
+  }
+
+  /**
+  * Confirms delivery of the first {@code count} unconfirmed messages, moving
+  * the cursor past them and releasing them.
+  *
+  * @param  count         the number of messages delivered
+  */
+  public void confirm(int count) {
+    count = Math.min(count, size);
+    size -= count;
+    cursor += count;
+
+    while (count > 0) {
+      if (entries[start] instanceof GroupRange) {
+        GroupRange range = (GroupRange) entries[start];
+        long to = Math.min(range.to, range.from + count);
+        range.groupLog.release(range.from, to);
+        count -= (int) (to - range.from);
+        range.from = to;
+        if (range.from < range.to) {
+          break;
+        }
+      } else {
+        count--;
+      }
+      entries[start++] = null;
+    }
+
+    if (start == end) {
+      // fully drained; reuse the array from the front
+      start = 0;
+      end = 0;
+      if (entries.length > INITIAL_CAPACITY * 64) {
+        entries = new Object[INITIAL_CAPACITY];
+      }
+    }
+  }
+
+  /**
+  * Passes each unconfirmed entry to a visitor, oldest first.
+  */
+  public void visit(Visitor visitor) {
+    for (int i = start; i < end; i++) {
+      if (entries[i] instanceof GroupRange) {
+        GroupRange range = (GroupRange) entries[i];
+        visitor.groupMessages(range.groupLog, range.from, range.to);
+      } else {
+        visitor.message(MessageCodec.unpack((byte[]) entries[i]));
+      }
+    }
+  }
+
+  private void add(Object entry) {
+    if (end == entries.length) {
+      makeRoom();
+    }
+    entries[end++] = entry;
+  }
+
+  /**
+  * Frees space at the end of the array, either by sliding the retained entries
+  * to the front or, if they fill more than half of it, by doubling it.
+  */
+  private void makeRoom() {
+    int retained = end - start;
+    Object[] target = entries;
+    if (retained > entries.length / 2) {
+      target = new Object[entries.length * 2];
+    }
+    System.arraycopy(entries, start, target, 0, retained);
+    if (target == entries) {
+      Arrays.fill(entries, retained, end, null);
+    }
+    entries = target;
+    start = 0;
+    end = retained;
+  }
+}
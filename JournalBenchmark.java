@@ -0,0 +1,116 @@
+import java.io.*;
+import java.rmi.server.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Measures send throughput to offline accounts with the journal off and on,
+ * and how long a journaled server takes to restart.
+ * <p>
+ * Each thread sends to offline accounts through its own {@code cUID}, so
+ * every message is saved to an inbox and, with the journal on, waits for its
+ * record to reach disk. Run as
+ * <pre>
+ *   java JournalBenchmark [threads] [messages] [journal directory]
+ * </pre>
+ * The journal directory defaults to a fresh temporary directory, which is
+ * deleted afterwards.
+ */
+public class JournalBenchmark {
+  private static final int ACCOUNTS = 64;
+
+  public static void main(String[] argv) throws Exception {
+    int threads = argv.length > 0 ? Integer.parseInt(argv[0]) : 32;
+    int messages = argv.length > 1 ? Integer.parseInt(argv[1]) : 160000;
+    File directory = argv.length > 2 ? new File(argv[2]) : null;
+    boolean temporary = directory == null;
+    if (temporary) {
+      directory = File.createTempFile("journal-benchmark", "");
+      directory.delete();
+    }
+
+    Server inMemory = new Server();
+    report("journal off", threads, messages, run(inMemory, threads, messages));
+    UnicastRemoteObject.unexportObject(inMemory, true);
+
+    Server journaled = new Server(directory);
+    report("journal on ", threads, messages, run(journaled, threads, messages));
+    journaled.shutdown();
+    UnicastRemoteObject.unexportObject(journaled, true);
+
+    long started = System.nanoTime();
+    Server restarted = new Server(directory);
+    System.out.println("restart: " + (System.nanoTime() - started) / 1000000 + " ms");
+    restarted.shutdown();
+    UnicastRemoteObject.unexportObject(restarted, true);
+
+    if (temporary) {
+      delete(directory);
+    }
+    System.exit(0);
+  }
+
+  /**
+  * Sends {@code messages} messages from {@code threads} threads, returning
+  * the elapsed time in nanoseconds.
+  */
+  private static long run(final Server server, int threads, int messages)
+      throws Exception {
+    for (int i = 0; i < ACCOUNTS; i++) {
+      server.createAccount("account-" + i);
+    }
+
+    final int perThread = messages / threads;
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    List<Thread> senders = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      final int cUID = server.getClientUID();
+      final String senderName = "account-" + (t % ACCOUNTS);
+      Thread sender = new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < perThread; i++) {
+              server.sendMessageToAccount(cUID, i, senderName,
+                  "account-" + (i % ACCOUNTS), "message " + i, i);
+            }
+          } catch (Exception e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      });
+      sender.start();
+      senders.add(sender);
+    }
+
+    long started = System.nanoTime();
+    start.countDown();
+    for (Thread sender : senders) {
+      sender.join();
+    }
+    long elapsed = System.nanoTime() - started;
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    return elapsed;
+  }
+
+  private static void report(String label, int threads, int messages,
+      long elapsedNanos) {
+    int sent = messages / threads * threads;
+    System.out.printf("%s: %d sends in %d ms, %.0f sends/s%n", label, sent,
+        elapsedNanos / 1000000, sent * 1e9 / elapsedNanos);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
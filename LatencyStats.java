@@ -0,0 +1,56 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * A running summary of how long some repeated operation takes.
+ * <p>
+ * Keeps a count, a total and a maximum, which is enough to report mean and
+ * worst-case latency without storing individual samples. Samples may be
+ * recorded from any thread.
+ */
+public class LatencyStats {
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  /**
+  * Records one sample.
+  *
+  * @param  nanos         the duration of one operation, in nanoseconds
+  */
+  public void record(long nanos) {
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  /**
+  * Returns the number of samples recorded.
+  */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+  * Returns the mean sample in milliseconds, or {@code 0} if there are none.
+  */
+  public double getMeanMillis() {
+    long n = count.get();
+    return n == 0 ? 0 : totalNanos.get() / (n * 1e6);
+  }
+
+  /**
+  * Returns the largest sample in milliseconds.
+  */
+  public double getMaxMillis() {
+    return maxNanos.get() / 1e6;
+  }
+
+  public String toString() {
+    return String.format("count=%d mean=%.3fms max=%.3fms", getCount(),
+        getMeanMillis(), getMaxMillis());
+  }
+}
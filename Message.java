@@ -0,0 +1,85 @@
+import java.io.*;
+import java.rmi.*;
+
+/**
+ * A message the {@code Server} has accepted for delivery to one account.
+ * <p>
+ * Each message carries the server-assigned {@code eSID} that lets the
+ * receiving client discard duplicate deliveries. Instances are immutable.
+ * Subclasses know which {@link ClientInterface} callback delivers them, so the
+ * server can hand a queued message to a client without checking its kind.
+ * Messages are serializable so that they can be delivered in batches through
+ * {@link ClientInterface#messagesFromServer}; each is written as a
+ * {@link MessageEnvelope} in the compact form of {@link MessageCodec}.
+ *
+ * {@see DirectMessage}
+ * {@see GroupMessage}
+ */
+public abstract class Message implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /**
+  * The server's event sequence ID for this message send
+  */
+  public final int eSID;
+
+  /**
+  * The account name the message was sent from
+  */
+  public final String senderName;
+
+  /**
+  * The account name the message is being sent to
+  */
+  public final String recipientName;
+
+  /**
+  * The message body
+  */
+  public final String message;
+
+  /**
+  * The sender-generated timestamp when this message was created
+  */
+  public final int timestamp;
+
+  /**
+  * The body as written by {@link MessageCodec#writeBody}, kept once it has
+  * been encoded so that a message pushed to many recipients is compressed
+  * once. Every member's copy of a group message shares it.
+  */
+  transient volatile byte[] encodedBody;
+
+  protected Message(int eSID, String senderName, String recipientName,
+      String message, int timestamp) {
+    this.eSID = eSID;
+    this.senderName = senderName;
+    this.recipientName = recipientName;
+    this.message = message;
+    this.timestamp = timestamp;
+  }
+
+  /**
+  * Delivers this message to a client through the matching callback.
+  *
+  * @param  client        the client logged into {@code recipientName}
+  * @return               a {@code true} boolean if the client received this
+  *                       message for the first time
+  */
+  public abstract boolean deliverTo(ClientInterface client)
+      throws RemoteException;
+
+  /**
+  * Serializes this message as an envelope in the compact form.
+  */
+  protected final Object writeReplace() {
+    return new MessageEnvelope(this);
+  }
+
+  /**
+  * Rejects a message serialized without its envelope.
+  */
+  private void readObject(ObjectInputStream in) throws InvalidObjectException {
+    throw new InvalidObjectException("messages are read through MessageEnvelope");
+  }
+}
@@ -0,0 +1,32 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Messages pulled from an account's inbox by
+ * {@link ServerInterface#pollMessages}, or read back by an
+ * {@link OutboundQueue} to push.
+ * <p>
+ * Each message held for an account has a position, and {@link #nextCursor}
+ * is the position after the last message in this batch. Passing it to the
+ * next poll confirms this batch; a batch whose reply was lost is therefore
+ * sent again by the next poll, which passes the older cursor. Instances are
+ * immutable.
+ */
+public final class MessageBatch implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /**
+  * The messages, oldest first; empty if the poll timed out
+  */
+  public final List<Message> messages;
+
+  /**
+  * The cursor to pass to the next poll
+  */
+  public final long nextCursor;
+
+  public MessageBatch(Message[] messages, long nextCursor) {
+    this.messages = Collections.unmodifiableList(new ArrayList<Message>(Arrays.asList(messages)));
+    this.nextCursor = nextCursor;
+  }
+}
@@ -0,0 +1,244 @@
+import java.io.*;
+import java.nio.charset.*;
+
+/**
+ * The compact binary form of a {@link Message}, used wherever messages cross
+ * the network.
+ * <p>
+ * Default Java serialization writes each message's class description, field
+ * names and types, and every string in modified UTF-8 with a two-byte length.
+ * A typical chat message is a few short strings and two small integers, so
+ * most of those bytes are overhead. This codec writes instead:
+ * <ul>
+ *   <li> one flags byte saying whether the message is a group message and
+ *        whether it has a recipient;
+ *   <li> the {@code eSID} as an unsigned varint;
+ *   <li> the group name, for a group message;
+ *   <li> the sender and the recipient if any, each as a varint byte length
+ *        followed by UTF-8;
+ *   <li> the body, written by {@link #writeBody};
+ *   <li> the timestamp as a zigzag varint, so small negative values stay
+ *        small too.
+ * </ul>
+ * A varint stores seven bits per byte, low bits first, with the top bit set
+ * on every byte but the last, so values below 128 take one byte.
+ * <p>
+ * RMI uses this form through {@link MessageEnvelope}, and the NIO transport
+ * writes it directly. An {@link Inbox} and a {@link GroupLog} hold their
+ * messages {@link #pack packed} in this form, which takes a fraction of the
+ * memory of the strings it replaces.
+ */
+public class MessageCodec {
+  private static final int GROUP = 1;
+  private static final int NO_RECIPIENT = 2;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private MessageCodec() {}
+
+  /**
+  * Writes a message.
+  *
+  * @param  out           the stream to write to
+  * @param  message       the message
+  */
+  public static void write(DataOutput out, Message message) throws IOException {
+    boolean isGroup = message instanceof GroupMessage;
+    int flags = (isGroup ? GROUP : 0) |
+        (message.recipientName == null ? NO_RECIPIENT : 0);
+    out.writeByte(flags);
+    writeVarInt(out, message.eSID);
+    if (isGroup) {
+      writeString(out, ((GroupMessage) message).groupName);
+    }
+    writeString(out, message.senderName);
+    if (message.recipientName != null) {
+      writeString(out, message.recipientName);
+    }
+    out.write(encodedBody(message));
+    writeVarInt(out, (message.timestamp << 1) ^ (message.timestamp >> 31));
+  }
+
+  /**
+  * Reads a message written by {@link #write}.
+  *
+  * @param  in            the stream to read from
+  * @return               the message
+  */
+  public static Message read(DataInput in) throws IOException {
+    int flags = in.readUnsignedByte();
+    int eSID = readVarInt(in);
+    String groupName = (flags & GROUP) != 0 ? readString(in) : null;
+    String senderName = readString(in);
+    String recipientName = (flags & NO_RECIPIENT) == 0 ? readString(in) : null;
+    byte[] encodedBody = readEncodedBody(in);
+    String body = readBody(new DataInputStream(new ByteArrayInputStream(encodedBody)));
+    int zigzag = readVarInt(in);
+    int timestamp = (zigzag >>> 1) ^ -(zigzag & 1);
+
+    Message message;
+    if ((flags & GROUP) != 0) {
+      message = new GroupMessage(eSID, groupName, senderName, recipientName,
+          body, timestamp);
+    } else {
+      message = new DirectMessage(eSID, senderName, recipientName, body,
+          timestamp);
+    }
+    // passing the message on need not compress its body again
+    message.encodedBody = encodedBody;
+    return message;
+  }
+
+  /**
+  * Returns a message packed into a byte array by {@link #write}.
+  */
+  public static byte[] pack(Message message) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    try {
+      write(new DataOutputStream(bytes), message);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+  * Returns the message in a byte array filled by {@link #pack}.
+  */
+  public static Message unpack(byte[] packed) {
+    try {
+      return read(new DataInputStream(new ByteArrayInputStream(packed)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+  * Writes a message body, compressed by {@link BodyCompressor} if that makes
+  * it smaller.
+  * <p>
+  * The body starts with a varint holding its stored length shifted left one
+  * bit, with the low bit set if it is compressed. A raw body's UTF-8 follows.
+  * A compressed body is followed by the varint length of its UTF-8 and the
+  * compressed bytes.
+  */
+  public static void writeBody(DataOutput out, String body) throws IOException {
+    byte[] utf8 = body.getBytes(UTF_8);
+    byte[] compressed = BodyCompressor.compress(utf8);
+    if (compressed == null) {
+      writeVarInt(out, utf8.length << 1);
+      out.write(utf8);
+    } else {
+      writeVarInt(out, (compressed.length << 1) | 1);
+      writeVarInt(out, utf8.length);
+      out.write(compressed);
+    }
+  }
+
+  /**
+  * Returns a message's body as written by {@link #writeBody}, encoding it
+  * only the first time.
+  */
+  private static byte[] encodedBody(Message message) throws IOException {
+    byte[] encoded = message.encodedBody;
+    if (encoded == null) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.message.length() + 4);
+      writeBody(new DataOutputStream(bytes), message.message);
+      encoded = bytes.toByteArray();
+      message.encodedBody = encoded;
+    }
+    return encoded;
+  }
+
+  /**
+  * Reads a body written by {@link #writeBody} without decoding it.
+  */
+  private static byte[] readEncodedBody(DataInput in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(bytes);
+    int header = readVarInt(in);
+    writeVarInt(out, header);
+    if ((header & 1) != 0) {
+      writeVarInt(out, readVarInt(in));
+    }
+    int length = header >>> 1;
+    if (length > NioProtocol.MAX_FRAME_SIZE) {
+      throw new StreamCorruptedException("bad body length " + length);
+    }
+    byte[] stored = new byte[length];
+    in.readFully(stored);
+    out.write(stored);
+    return bytes.toByteArray();
+  }
+
+  /**
+  * Reads a body written by {@link #writeBody}.
+  */
+  public static String readBody(DataInput in) throws IOException {
+    int header = readVarInt(in);
+    int length = header >>> 1;
+    if (length > NioProtocol.MAX_FRAME_SIZE) {
+      throw new StreamCorruptedException("bad body length " + length);
+    }
+    byte[] stored = new byte[length];
+    if ((header & 1) == 0) {
+      in.readFully(stored);
+      return new String(stored, UTF_8);
+    }
+
+    int utf8Length = readVarInt(in);
+    if (utf8Length < 0 || utf8Length > NioProtocol.MAX_FRAME_SIZE) {
+      throw new StreamCorruptedException("bad body length " + utf8Length);
+    }
+    in.readFully(stored);
+    return new String(BodyCompressor.decompress(stored, utf8Length), UTF_8);
+  }
+
+  /**
+  * Writes an {@code int} as an unsigned varint, in one to five bytes.
+  */
+  public static void writeVarInt(DataOutput out, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  /**
+  * Reads an {@code int} written by {@link #writeVarInt}.
+  */
+  public static int readVarInt(DataInput in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new StreamCorruptedException("varint is longer than five bytes");
+  }
+
+  /**
+  * Writes a non-null string as a varint byte length followed by UTF-8.
+  */
+  public static void writeString(DataOutput out, String value) throws IOException {
+    byte[] encoded = value.getBytes(UTF_8);
+    writeVarInt(out, encoded.length);
+    out.write(encoded);
+  }
+
+  /**
+  * Reads a string written by {@link #writeString}.
+  */
+  public static String readString(DataInput in) throws IOException {
+    int length = readVarInt(in);
+    if (length < 0 || length > NioProtocol.MAX_FRAME_SIZE) {
+      throw new StreamCorruptedException("bad string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
@@ -0,0 +1,38 @@
+import java.io.*;
+
+/**
+ * Stands in for a {@link Message} while it is serialized, so that RMI sends
+ * it in the compact form written by {@link MessageCodec} rather than with
+ * default serialization.
+ * <p>
+ * {@code Message} replaces itself with an envelope when written and the
+ * envelope resolves back to the message when read, so messages keep their
+ * final fields and callers never see this class.
+ */
+public final class MessageEnvelope implements Externalizable {
+  private static final long serialVersionUID = 1L;
+
+  private Message message;
+
+  /**
+  * Creates an empty envelope for deserialization to fill.
+  */
+  public MessageEnvelope() {
+  }
+
+  MessageEnvelope(Message message) {
+    this.message = message;
+  }
+
+  public void writeExternal(ObjectOutput out) throws IOException {
+    MessageCodec.write(out, message);
+  }
+
+  public void readExternal(ObjectInput in) throws IOException {
+    message = MessageCodec.read(in);
+  }
+
+  private Object readResolve() {
+    return message;
+  }
+}
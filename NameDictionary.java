@@ -0,0 +1,93 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Assigns each account or group name a small, dense integer ID.
+ * <p>
+ * Every RMI call carries its names as freshly deserialized strings, so a
+ * server that kept them as map keys, session fields and group member sets
+ * would hold many copies of each name and hash them on every lookup. The
+ * {@code Server} instead turns each name into an ID once, at the
+ * {@link ServerInterface} boundary, and keys its internal state by ID. IDs are
+ * handed out in order from zero and can be turned back into the one canonical
+ * copy of the name with {@link #nameOf}.
+ * <p>
+ * IDs live only in memory and are never reused, so a name keeps its ID even
+ * after its account or group is deleted. The journal records names, not IDs.
+ * <p>
+ * Instances are thread-safe. {@link #nameOf} takes no lock.
+ */
+public class NameDictionary {
+  /** returned by {@link #lookup} for a name that has no ID */
+  public static final int NO_ID = -1;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final ConcurrentHashMap<String, Integer> ids;
+
+  /** the canonical name for each ID; replaced, never mutated, when it grows */
+  private volatile String[] names;
+  private int size;
+
+  public NameDictionary() {
+    this.ids = new ConcurrentHashMap<String, Integer>();
+    this.names = new String[INITIAL_CAPACITY];
+  }
+
+  /**
+  * Returns the ID for a name, assigning the next one if it has none.
+  *
+  * @param  name          an account or group name
+  * @return               the name's ID
+  */
+  public int idFor(String name) {
+    Integer id = ids.get(name);
+    if (id != null) {
+      return id;
+    }
+
+    synchronized (this) {
+      id = ids.get(name);
+      if (id != null) {
+        return id;
+      }
+
+      String[] current = names;
+      if (size == current.length) {
+        current = Arrays.copyOf(current, current.length * 2);
+      }
+      current[size] = name;
+      names = current;
+      ids.put(name, size);
+      return size++;
+    }
+  }
+
+  /**
+  * Returns the ID for a name without assigning one.
+  *
+  * @param  name          an account or group name
+  * @return               the name's ID, or {@link #NO_ID} if it has none
+  */
+  public int lookup(String name) {
+    Integer id = ids.get(name);
+    return id == null ? NO_ID : id;
+  }
+
+  /**
+  * Returns the canonical copy of the name with a given ID.
+  *
+  * @param  id            an ID returned by {@link #idFor}
+  * @return               the name
+  */
+  public String nameOf(int id) {
+    return names[id];
+  }
+
+  /**
+  * Returns the number of IDs assigned so far.
+  */
+  public synchronized int size() {
+    return size;
+  }
+}
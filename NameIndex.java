@@ -0,0 +1,427 @@
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A trie of names that answers wildcard queries without scanning every name.
+ * <p>
+ * Patterns may contain {@code *}, which matches any run of characters
+ * (including none), and {@code ?}, which matches exactly one character. Every
+ * other character matches itself. A pattern's literal prefix is followed
+ * straight down the trie, so a query such as {@code "ali*"} touches only the
+ * names starting with {@code "ali"}. Wildcards are matched by walking the
+ * trie and the pattern together; each pair of trie node and pattern position
+ * is visited at most once, so no pattern can make a query exponential.
+ * <p>
+ * The trie also lists its names in sorted pages with {@link #namesAfter}, and
+ * as a whole with {@link #snapshot}. Each change bumps the index's version;
+ * the snapshot is rebuilt on the first request after a change and shared
+ * until the next one.
+ * <p>
+ * Each node keeps its children in arrays sorted by character. Nodes left
+ * empty by {@link #remove} are pruned.
+ * <p>
+ * Instances are thread-safe. Queries run in parallel with each other and one
+ * at a time with updates.
+ */
+public class NameIndex {
+  private static final char[] NO_KEYS = new char[0];
+  private static final Node[] NO_CHILDREN = new Node[0];
+
+  private static final class Node {
+    char[] keys = NO_KEYS;
+    Node[] children = NO_CHILDREN;
+
+    /** the name ending at this node, or {@code null} if none does */
+    String name;
+
+    Node child(char key) {
+      int index = Arrays.binarySearch(keys, key);
+      return index < 0 ? null : children[index];
+    }
+  }
+
+  private final Node root = new Node();
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private int size;
+
+  /** bumped by every change; guarded by the write lock */
+  private long version;
+
+  /** the latest snapshot built, which may be older than {@code version} */
+  private volatile DirectorySnapshot snapshot;
+
+  /**
+  * Creates an empty index.
+  *
+  * @param  initialVersion the version of the empty index
+  */
+  public NameIndex(long initialVersion) {
+    this.version = initialVersion;
+  }
+
+  /**
+  * Adds a name to the index.
+  *
+  * @param  name          the name to add
+  * @return               a {@code true} boolean if it was not already present
+  */
+  public boolean add(String name) {
+    lock.writeLock().lock();
+    try {
+      Node node = root;
+      for (int i = 0; i < name.length(); i++) {
+        char key = name.charAt(i);
+        int index = Arrays.binarySearch(node.keys, key);
+        if (index < 0) {
+          index = -index - 1;
+          Node child = new Node();
+          node.keys = insert(node.keys, index, key);
+          node.children = insert(node.children, index, child);
+        }
+        node = node.children[index];
+      }
+
+      if (node.name != null) {
+        return false;
+      }
+      node.name = name;
+      size++;
+      version++;
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+  * Removes a name from the index, pruning any nodes it leaves empty.
+  *
+  * @param  name          the name to remove
+  * @return               a {@code true} boolean if it was present
+  */
+  public boolean remove(String name) {
+    lock.writeLock().lock();
+    try {
+      Node[] path = new Node[name.length() + 1];
+      path[0] = root;
+      for (int i = 0; i < name.length(); i++) {
+        path[i + 1] = path[i].child(name.charAt(i));
+        if (path[i + 1] == null) {
+          return false;
+        }
+      }
+
+      Node node = path[name.length()];
+      if (node.name == null) {
+        return false;
+      }
+      node.name = null;
+      size--;
+      version++;
+
+      for (int i = name.length(); i > 0 && path[i].name == null &&
+          path[i].keys.length == 0; i--) {
+        Node parent = path[i - 1];
+        int index = Arrays.binarySearch(parent.keys, name.charAt(i - 1));
+        parent.keys = delete(parent.keys, index);
+        parent.children = delete(parent.children, index);
+      }
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+  * Returns the number of names in the index.
+  */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+  * Returns the index's current version.
+  */
+  public long getVersion() {
+    lock.readLock().lock();
+    try {
+      return version;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+  * Returns an immutable copy of every name at the current version, building it
+  * only if the index has changed since the last copy was built.
+  */
+  public DirectorySnapshot snapshot() {
+    lock.readLock().lock();
+    try {
+      DirectorySnapshot latest = snapshot;
+      if (latest == null || latest.version != version) {
+        List<String> names = new ArrayList<String>(size);
+        collectAll(root, names, Integer.MAX_VALUE);
+        latest = new DirectorySnapshot(version, names);
+        // concurrent readers may each build one; any of them will do
+        snapshot = latest;
+      }
+      return latest;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+  * Returns a snapshot only if the index has changed since a given version.
+  *
+  * @param  knownVersion  the version of the caller's copy
+  * @return               the current snapshot, or {@code null} if the caller's
+  *                       copy is current
+  */
+  public DirectorySnapshot snapshotIfNewer(long knownVersion) {
+    return getVersion() == knownVersion ? null : snapshot();
+  }
+
+  /**
+  * Returns the names matching a pattern, in sorted order.
+  * <p>
+  * A plain prefix query such as {@code "ali*"} returns the first matches in
+  * sorted order. A query with other wildcards stops at the limit wherever
+  * the walk has reached.
+  *
+  * @param  pattern       the pattern to match; {@code null} matches every name
+  * @param  limit         the largest number of names to return
+  * @return               at most {@code limit} matching names
+  */
+  public SortedSet<String> match(String pattern, int limit) {
+    SortedSet<String> matches = new TreeSet<String>();
+    if (limit <= 0) {
+      return matches;
+    }
+    pattern = pattern == null ? "*" : collapseStars(pattern);
+
+    lock.readLock().lock();
+    try {
+      // follow the literal prefix directly
+      Node node = root;
+      int i = 0;
+      while (i < pattern.length() && pattern.charAt(i) != '*' &&
+          pattern.charAt(i) != '?') {
+        node = node.child(pattern.charAt(i));
+        if (node == null) {
+          return matches;
+        }
+        i++;
+      }
+
+      if (i == pattern.length()) {
+        if (node.name != null) {
+          matches.add(node.name);
+        }
+      } else if (i == pattern.length() - 1 && pattern.charAt(i) == '*') {
+        // a plain prefix query needs no bookkeeping
+        collectAll(node, matches, limit);
+      } else if (pattern.indexOf('*', pattern.indexOf('*') + 1) < 0) {
+        // with at most one star, the walk can reach each node in each
+        // pattern position only once, so there is nothing to remember
+        match(node, pattern, i, matches, limit, null, null);
+      } else {
+        match(node, pattern, i, matches, limit,
+            new HashSet<Long>(), new IdentityHashMap<Node, Integer>());
+      }
+      return matches;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+  * Returns up to {@code count} names that sort after a given name, in sorted
+  * order.
+  * <p>
+  * The walk follows {@code after} down the trie and then collects the
+  * subtrees to the right of its path, so a page costs about the same wherever
+  * it starts.
+  *
+  * @param  after         the name to start after; {@code null} starts at the
+  *                       first name
+  * @param  count         the largest number of names to return
+  * @return               the names, in sorted order
+  */
+  public List<String> namesAfter(String after, int count) {
+    List<String> names = new ArrayList<String>(Math.max(0, Math.min(count, 1024)));
+    if (count <= 0) {
+      return names;
+    }
+
+    lock.readLock().lock();
+    try {
+      if (after == null) {
+        collectAll(root, names, count);
+      } else {
+        collectAfter(root, after, 0, names, count);
+      }
+      return names;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+  * Adds the names below a node that sort after {@code after}, given that the
+  * node's path matches its first {@code depth} characters.
+  */
+  private static void collectAfter(Node node, String after, int depth,
+      Collection<String> names, int limit) {
+    if (depth == after.length()) {
+      // the node is {@code after} itself; everything below it sorts later
+      for (Node child : node.children) {
+        collectAll(child, names, limit);
+      }
+      return;
+    }
+
+    // the node's own name is a proper prefix of {@code after}, so sorts earlier
+    char key = after.charAt(depth);
+    int index = Arrays.binarySearch(node.keys, key);
+    int firstLater;
+    if (index >= 0) {
+      collectAfter(node.children[index], after, depth + 1, names, limit);
+      firstLater = index + 1;
+    } else {
+      firstLater = -index - 1;
+    }
+    for (int i = firstLater; i < node.children.length; i++) {
+      collectAll(node.children[i], names, limit);
+    }
+  }
+
+  /**
+  * Matches the pattern from position {@code i} against the names below a
+  * node, skipping pairs of node and position already visited if given a set
+  * to record them in.
+  */
+  private static void match(Node node, String pattern, int i,
+      SortedSet<String> matches, int limit, Set<Long> visited,
+      Map<Node, Integer> nodeIds) {
+    if (matches.size() >= limit) {
+      return;
+    }
+    if (visited != null) {
+      Integer nodeId = nodeIds.get(node);
+      if (nodeId == null) {
+        nodeId = nodeIds.size();
+        nodeIds.put(node, nodeId);
+      }
+      if (!visited.add(((long) nodeId << 32) | i)) {
+        return;
+      }
+    }
+
+    if (i == pattern.length()) {
+      if (node.name != null) {
+        matches.add(node.name);
+      }
+      return;
+    }
+
+    char c = pattern.charAt(i);
+    if (c == '*') {
+      if (i == pattern.length() - 1) {
+        collectAll(node, matches, limit);
+        return;
+      }
+      // match no characters, or one more character and stay on the star
+      match(node, pattern, i + 1, matches, limit, visited, nodeIds);
+      for (Node child : node.children) {
+        match(child, pattern, i, matches, limit, visited, nodeIds);
+      }
+    } else if (c == '?') {
+      for (Node child : node.children) {
+        match(child, pattern, i + 1, matches, limit, visited, nodeIds);
+      }
+    } else {
+      Node child = node.child(c);
+      if (child != null) {
+        match(child, pattern, i + 1, matches, limit, visited, nodeIds);
+      }
+    }
+  }
+
+  /**
+  * Adds every name at or below a node, in sorted order, until the limit is
+  * reached.
+  */
+  private static void collectAll(Node node, Collection<String> matches, int limit) {
+    if (matches.size() >= limit) {
+      return;
+    }
+    if (node.name != null) {
+      matches.add(node.name);
+    }
+    for (Node child : node.children) {
+      collectAll(child, matches, limit);
+    }
+  }
+
+  /**
+  * Replaces each run of {@code *} with a single one, which matches the same
+  * names.
+  */
+  private static String collapseStars(String pattern) {
+    if (!pattern.contains("**")) {
+      return pattern;
+    }
+    StringBuilder collapsed = new StringBuilder(pattern.length());
+    for (int i = 0; i < pattern.length(); i++) {
+      char c = pattern.charAt(i);
+      if (c != '*' || collapsed.length() == 0 ||
+          collapsed.charAt(collapsed.length() - 1) != '*') {
+        collapsed.append(c);
+      }
+    }
+    return collapsed.toString();
+  }
+
+  private static char[] insert(char[] keys, int index, char key) {
+    char[] grown = new char[keys.length + 1];
+    System.arraycopy(keys, 0, grown, 0, index);
+    grown[index] = key;
+    System.arraycopy(keys, index, grown, index + 1, keys.length - index);
+    return grown;
+  }
+
+  private static Node[] insert(Node[] children, int index, Node child) {
+    Node[] grown = new Node[children.length + 1];
+    System.arraycopy(children, 0, grown, 0, index);
+    grown[index] = child;
+    System.arraycopy(children, index, grown, index + 1, children.length - index);
+    return grown;
+  }
+
+  private static char[] delete(char[] keys, int index) {
+    if (keys.length == 1) {
+      return NO_KEYS;
+    }
+    char[] shrunk = new char[keys.length - 1];
+    System.arraycopy(keys, 0, shrunk, 0, index);
+    System.arraycopy(keys, index + 1, shrunk, index, shrunk.length - index);
+    return shrunk;
+  }
+
+  private static Node[] delete(Node[] children, int index) {
+    if (children.length == 1) {
+      return NO_CHILDREN;
+    }
+    Node[] shrunk = new Node[children.length - 1];
+    System.arraycopy(children, 0, shrunk, 0, index);
+    System.arraycopy(children, index + 1, shrunk, index, shrunk.length - index);
+    return shrunk;
+  }
+}
@@ -0,0 +1,32 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * One page of a sorted listing of account or group names.
+ * <p>
+ * Returned by {@link ServerInterface#getAccountsPage} and
+ * {@link ServerInterface#getGroupsPage}. To fetch the next page, pass
+ * {@link #nextPageToken} back to the same method. Pages continue after the
+ * last name returned rather than at a numbered offset, so names added or
+ * removed between calls never cause a name to be skipped or repeated.
+ * Instances are immutable.
+ */
+public final class NamePage implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /**
+  * The names on this page, in sorted order
+  */
+  public final List<String> names;
+
+  /**
+  * An opaque token for the page after this one, or {@code null} if this is
+  * the last page
+  */
+  public final String nextPageToken;
+
+  public NamePage(List<String> names, String nextPageToken) {
+    this.names = Collections.unmodifiableList(new ArrayList<String>(names));
+    this.nextPageToken = nextPageToken;
+  }
+}
@@ -0,0 +1,530 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.rmi.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The wire format spoken by {@link NioServer} and {@link NioServerStub}.
+ * <p>
+ * A connection carries length-prefixed frames in both directions. Each frame
+ * is an {@code int} giving the length of the rest of the frame, an
+ * {@code int} call ID, a kind byte and a body:
+ * <ul>
+ *   <li> a {@code CALL} body is a method byte followed by the arguments;
+ *   <li> a {@code RETURN} body is the method's result, if any;
+ *   <li> a {@code FAILURE} body is the message of the exception thrown.
+ * </ul>
+ * A {@code RETURN} or {@code FAILURE} carries the ID of the call it answers,
+ * so either side may send many calls before the first is answered, and
+ * answers may come back in any order. The client calls {@link ServerInterface}
+ * methods and the server calls {@link ClientInterface} methods back over the
+ * same connection; {@code ClientInterface} arguments are not sent, since the
+ * client is the other end of the connection. {@code LOG_IN} sends only
+ * whether the client takes callbacks at all.
+ * <p>
+ * Values are written with {@link DataOutput}. Strings are a length and UTF-8
+ * bytes, with a length of {@code -1} for {@code null}, and collections are a
+ * count followed by their elements. Messages, and the bodies of messages
+ * sent or pushed one at a time, are written by {@link MessageCodec}.
+ */
+public class NioProtocol {
+  /** the port a {@code NioServer} listens on unless told otherwise */
+  public static final int DEFAULT_PORT = 4099;
+
+  /** the largest frame either side accepts */
+  public static final int MAX_FRAME_SIZE = 16 << 20;
+
+  public static final byte CALL = 0;
+  public static final byte RETURN = 1;
+  public static final byte FAILURE = 2;
+
+  // ServerInterface methods
+  public static final byte GET_CLIENT_UID = 1;
+  public static final byte CREATE_ACCOUNT = 2;
+  public static final byte CREATE_GROUP = 3;
+  public static final byte DELETE_ACCOUNT = 4;
+  public static final byte DELETE_GROUP = 5;
+  public static final byte GET_ACCOUNTS_LIST = 6;
+  public static final byte MATCH_ACCOUNTS = 7;
+  public static final byte MATCH_ACCOUNTS_LIMITED = 8;
+  public static final byte GET_GROUPS_LIST = 9;
+  public static final byte MATCH_GROUPS = 10;
+  public static final byte MATCH_GROUPS_LIMITED = 11;
+  public static final byte GET_ACCOUNTS_IF_NEWER = 12;
+  public static final byte GET_GROUPS_IF_NEWER = 13;
+  public static final byte GET_ACCOUNTS_PAGE = 14;
+  public static final byte GET_GROUPS_PAGE = 15;
+  public static final byte SUBSCRIBE_TO_DIRECTORY = 16;
+  public static final byte UNSUBSCRIBE_FROM_DIRECTORY = 17;
+  public static final byte LOG_IN = 18;
+  public static final byte LOG_OUT = 19;
+  public static final byte GET_LOGIN_STATUS = 20;
+  public static final byte GET_UNDELIVERED_MESSAGES = 21;
+  public static final byte SEND_MESSAGE_TO_ACCOUNT = 22;
+  public static final byte SEND_MESSAGE_TO_GROUP = 23;
+  public static final byte RENEW_LEASE = 24;
+  public static final byte POLL_MESSAGES = 25;
+  public static final byte SEND_MESSAGES = 26;
+
+  // ClientInterface methods
+  public static final byte MESSAGE_FROM_ACCOUNT = 64;
+  public static final byte MESSAGE_FROM_GROUP = 65;
+  public static final byte MESSAGES_FROM_SERVER = 66;
+  public static final byte DIRECTORY_CHANGED = 67;
+  public static final byte NOTIFY_OF_LOG_OUT = 68;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final DirectoryChange.Type[] CHANGE_TYPES = DirectoryChange.Type.values();
+  private static final OutgoingMessage.Result[] SEND_RESULTS = OutgoingMessage.Result.values();
+
+  /**
+  * Receives the frames a {@link FrameReader} splits out of a channel.
+  */
+  public interface FrameHandler {
+    /**
+    * Handles one frame.
+    *
+    * @param  callId        the call the frame starts or answers
+    * @param  kind          {@code CALL}, {@code RETURN} or {@code FAILURE}
+    * @param  body          the rest of the frame
+    */
+    public void frame(int callId, byte kind, DataInputStream body);
+  }
+
+  /**
+  * Builds one frame in memory. The length is filled in by {@link #toBuffer}.
+  */
+  public static class FrameBuilder {
+    public final int callId;
+    private final ByteArrayOutputStream bytes;
+    public final DataOutputStream out;
+
+    public FrameBuilder(int callId, byte kind) {
+      this.callId = callId;
+      this.bytes = new ByteArrayOutputStream(64);
+      this.out = new DataOutputStream(bytes);
+      try {
+        out.writeInt(0);
+        out.writeInt(callId);
+        out.writeByte(kind);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+    * Returns the finished frame, ready to write.
+    */
+    public ByteBuffer toBuffer() {
+      ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+      frame.putInt(0, frame.limit() - 4);
+      return frame;
+    }
+  }
+
+  /**
+  * Splits the bytes read from a channel into frames.
+  * <p>
+  * Instances are not thread-safe; each connection's reads come from one
+  * thread.
+  */
+  public static class FrameReader {
+    private ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+    /**
+    * Reads what the channel has and passes each complete frame to a handler.
+    *
+    * @return               a {@code false} boolean if the channel has reached
+    *                       end-of-stream
+    * @throws IOException   if the read fails or a frame is malformed
+    */
+    public boolean read(ReadableByteChannel channel, FrameHandler handler)
+        throws IOException {
+      if (channel.read(buffer) < 0) {
+        return false;
+      }
+
+      buffer.flip();
+      int needed = 0;
+      while (buffer.remaining() >= 4) {
+        int length = buffer.getInt(buffer.position());
+        if (length < 5 || length > MAX_FRAME_SIZE) {
+          throw new IOException("bad frame length " + length);
+        }
+        if (buffer.remaining() < 4 + length) {
+          needed = 4 + length;
+          break;
+        }
+        buffer.getInt();
+        byte[] frame = new byte[length];
+        buffer.get(frame);
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(frame));
+        handler.frame(body.readInt(), body.readByte(), body);
+      }
+      buffer.compact();
+
+      if (needed > buffer.capacity()) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+      }
+      return true;
+    }
+  }
+
+  /**
+  * The calls one side has sent and is waiting to have answered.
+  * <p>
+  * Instances are thread-safe.
+  */
+  public static class PendingCalls {
+    private final AtomicInteger nextCallId = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<DataInputStream>> calls =
+        new ConcurrentHashMap<Integer, CompletableFuture<DataInputStream>>();
+    private volatile IOException closedBy;
+
+    /**
+    * Starts a call, returning the frame to write its arguments to.
+    */
+    public FrameBuilder open(byte method) {
+      int callId = nextCallId.incrementAndGet();
+      CompletableFuture<DataInputStream> answer = new CompletableFuture<DataInputStream>();
+      calls.put(callId, answer);
+      if (closedBy != null) {
+        answer.completeExceptionally(connectionClosed(closedBy));
+      }
+
+      FrameBuilder frame = new FrameBuilder(callId, CALL);
+      try {
+        frame.out.writeByte(method);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return frame;
+    }
+
+    /**
+    * Waits for a call's answer.
+    *
+    * @param  callId        the call to wait for
+    * @param  timeoutMillis how long to wait, or {@code 0} to wait until the
+    *                       call is answered or the connection closes
+    * @return               the body of the {@code RETURN} frame, or
+    *                       {@code null} if no answer came in time
+    * @throws RemoteException if the call failed or the connection closed
+    */
+    public DataInputStream await(int callId, long timeoutMillis)
+        throws RemoteException {
+      try {
+        if (timeoutMillis == 0) {
+          return calls.get(callId).get();
+        }
+        return calls.get(callId).get(timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        return null;
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RemoteException) {
+          throw (RemoteException) e.getCause();
+        }
+        throw new RemoteException("call failed", e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RemoteException("interrupted while waiting for a reply", e);
+      } finally {
+        calls.remove(callId);
+      }
+    }
+
+    /**
+    * Answers a call with the body of a {@code RETURN} or {@code FAILURE}
+    * frame. Answers to unknown calls are ignored.
+    */
+    public void complete(int callId, byte kind, DataInputStream body) {
+      CompletableFuture<DataInputStream> answer = calls.get(callId);
+      if (answer == null) {
+        return;
+      }
+      if (kind == RETURN) {
+        answer.complete(body);
+      } else {
+        String message;
+        try {
+          message = readString(body);
+        } catch (IOException e) {
+          message = "malformed failure";
+        }
+        answer.completeExceptionally(new RemoteException(message));
+      }
+    }
+
+    /**
+    * Fails every waiting call, and every later one, because the connection
+    * has closed.
+    */
+    public void closeAll(IOException cause) {
+      closedBy = cause;
+      for (CompletableFuture<DataInputStream> answer : calls.values()) {
+        answer.completeExceptionally(connectionClosed(cause));
+      }
+    }
+
+    private static RemoteException connectionClosed(IOException cause) {
+      return new ConnectException("connection closed", cause);
+    }
+  }
+
+  /**
+  * Builds the {@code FAILURE} frame answering a call that threw.
+  */
+  public static ByteBuffer failure(int callId, Exception cause) {
+    FrameBuilder frame = new FrameBuilder(callId, FAILURE);
+    try {
+      writeString(frame.out, String.valueOf(cause.getMessage()));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return frame.toBuffer();
+  }
+
+  /**
+  * Returns the exception a call should throw for a failure to encode its
+  * arguments or decode its reply. Failures the other side reported, or a
+  * closed connection, are already {@code RemoteException}s.
+  */
+  public static RemoteException asRemoteException(IOException e) {
+    if (e instanceof RemoteException) {
+      return (RemoteException) e;
+    }
+    return new RemoteException("malformed reply", e);
+  }
+
+  /**
+  * Checks a length or count read from a frame before anything is allocated
+  * for it: the frame must still hold at least {@code elementSize} bytes for
+  * each element. Frames are read from memory, so what is left is known.
+  *
+  * @return               the length
+  * @throws StreamCorruptedException if the frame is too short to hold it
+  */
+  private static int checkLength(DataInput in, int length, int elementSize)
+      throws IOException {
+    long left = in instanceof InputStream ? ((InputStream) in).available() : MAX_FRAME_SIZE;
+    if (length < 0 || (long) length * elementSize > left) {
+      throw new StreamCorruptedException("bad length " + length);
+    }
+    return length;
+  }
+
+  /**
+  * Reads an enum constant written as its ordinal, checking that the ordinal
+  * names one.
+  *
+  * @param  values        the constants, in ordinal order
+  * @throws StreamCorruptedException if no constant has the ordinal read
+  */
+  private static <T> T readOrdinal(DataInput in, T[] values) throws IOException {
+    int ordinal = in.readUnsignedByte();
+    if (ordinal >= values.length) {
+      throw new StreamCorruptedException("bad ordinal " + ordinal);
+    }
+    return values[ordinal];
+  }
+
+  public static void writeString(DataOutput out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] encoded = value.getBytes(UTF_8);
+    out.writeInt(encoded.length);
+    out.write(encoded);
+  }
+
+  public static String readString(DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[checkLength(in, length, 1)];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  public static void writeStrings(DataOutput out, Collection<String> values)
+      throws IOException {
+    out.writeInt(values.size());
+    for (String value : values) {
+      writeString(out, value);
+    }
+  }
+
+  /**
+  * Reads a collection written by {@link #writeStrings} as a sorted set.
+  */
+  public static SortedSet<String> readStringSet(DataInput in) throws IOException {
+    int count = checkLength(in, in.readInt(), 4);
+    SortedSet<String> values = new TreeSet<String>();
+    for (int i = 0; i < count; i++) {
+      values.add(readString(in));
+    }
+    return values;
+  }
+
+  public static List<String> readStringList(DataInput in) throws IOException {
+    int count = checkLength(in, in.readInt(), 4);
+    List<String> values = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      values.add(readString(in));
+    }
+    return values;
+  }
+
+  public static void writeMessages(DataOutput out, Message[] messages)
+      throws IOException {
+    out.writeInt(messages.length);
+    for (Message message : messages) {
+      MessageCodec.write(out, message);
+    }
+  }
+
+  public static Message[] readMessages(DataInput in) throws IOException {
+    // a message is at least a flags byte and four one-byte varints
+    Message[] messages = new Message[checkLength(in, in.readInt(), 5)];
+    for (int i = 0; i < messages.length; i++) {
+      messages[i] = MessageCodec.read(in);
+    }
+    return messages;
+  }
+
+  public static void writeMessageBatch(DataOutput out, MessageBatch batch)
+      throws IOException {
+    out.writeLong(batch.nextCursor);
+    writeMessages(out, batch.messages.toArray(new Message[batch.messages.size()]));
+  }
+
+  public static MessageBatch readMessageBatch(DataInput in) throws IOException {
+    long nextCursor = in.readLong();
+    return new MessageBatch(readMessages(in), nextCursor);
+  }
+
+  public static void writeOutgoingMessages(DataOutput out,
+      OutgoingMessage[] messages) throws IOException {
+    out.writeInt(messages.length);
+    for (OutgoingMessage message : messages) {
+      out.writeInt(message.eSID);
+      out.writeBoolean(message.toGroup);
+      writeString(out, message.recipientName);
+      MessageCodec.writeBody(out, message.message);
+      out.writeInt(message.timestamp);
+    }
+  }
+
+  public static OutgoingMessage[] readOutgoingMessages(DataInput in)
+      throws IOException {
+    int count = in.readInt();
+    if (count < 0 || count > OutgoingMessage.MAX_BATCH_SIZE) {
+      throw new StreamCorruptedException("bad batch size " + count);
+    }
+    OutgoingMessage[] messages = new OutgoingMessage[count];
+    for (int i = 0; i < count; i++) {
+      int eSID = in.readInt();
+      boolean toGroup = in.readBoolean();
+      String recipientName = readString(in);
+      String message = MessageCodec.readBody(in);
+      messages[i] = new OutgoingMessage(eSID, toGroup, recipientName, message,
+          in.readInt());
+    }
+    return messages;
+  }
+
+  public static void writeSendResults(DataOutput out,
+      OutgoingMessage.Result[] results) throws IOException {
+    out.writeInt(results.length);
+    for (OutgoingMessage.Result result : results) {
+      out.writeByte(result.ordinal());
+    }
+  }
+
+  public static OutgoingMessage.Result[] readSendResults(DataInput in)
+      throws IOException {
+    OutgoingMessage.Result[] results =
+        new OutgoingMessage.Result[checkLength(in, in.readInt(), 1)];
+    for (int i = 0; i < results.length; i++) {
+      results[i] = readOrdinal(in, SEND_RESULTS);
+    }
+    return results;
+  }
+
+  public static void writeBooleans(DataOutput out, boolean[] values)
+      throws IOException {
+    out.writeInt(values.length);
+    for (boolean value : values) {
+      out.writeBoolean(value);
+    }
+  }
+
+  public static boolean[] readBooleans(DataInput in) throws IOException {
+    boolean[] values = new boolean[checkLength(in, in.readInt(), 1)];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = in.readBoolean();
+    }
+    return values;
+  }
+
+  public static void writeDirectoryChanges(DataOutput out,
+      DirectoryChange[] changes) throws IOException {
+    out.writeInt(changes.length);
+    for (DirectoryChange change : changes) {
+      out.writeLong(change.seq);
+      out.writeByte(change.type.ordinal());
+      writeString(out, change.name);
+    }
+  }
+
+  public static DirectoryChange[] readDirectoryChanges(DataInput in)
+      throws IOException {
+    DirectoryChange[] changes =
+        new DirectoryChange[checkLength(in, in.readInt(), 13)];
+    for (int i = 0; i < changes.length; i++) {
+      long seq = in.readLong();
+      DirectoryChange.Type type = readOrdinal(in, CHANGE_TYPES);
+      changes[i] = new DirectoryChange(seq, type, readString(in));
+    }
+    return changes;
+  }
+
+  /**
+  * Writes a snapshot, which may be {@code null}.
+  */
+  public static void writeSnapshot(DataOutput out, DirectorySnapshot snapshot)
+      throws IOException {
+    out.writeBoolean(snapshot != null);
+    if (snapshot != null) {
+      out.writeLong(snapshot.version);
+      writeStrings(out, snapshot.names);
+    }
+  }
+
+  public static DirectorySnapshot readSnapshot(DataInput in) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    long version = in.readLong();
+    return new DirectorySnapshot(version, readStringList(in));
+  }
+
+  public static void writePage(DataOutput out, NamePage page) throws IOException {
+    writeStrings(out, page.names);
+    writeString(out, page.nextPageToken);
+  }
+
+  public static NamePage readPage(DataInput in) throws IOException {
+    List<String> names = readStringList(in);
+    return new NamePage(names, readString(in));
+  }
+}
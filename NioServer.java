@@ -0,0 +1,607 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Serves a {@link ServerInterface} over plain TCP, as an alternative to RMI.
+ * <p>
+ * RMI gives every connection its own thread and serializes every argument
+ * with Java serialization. This transport instead has a single selector
+ * thread that accepts connections, reads frames and writes replies for all
+ * of them, and speaks the compact binary {@link NioProtocol}. A thread is
+ * needed only while a call is running, so idle clients cost a socket and a
+ * buffer rather than a thread.
+ * <p>
+ * Each call is run on a worker thread, as RMI would, so one client may have
+ * many calls in flight on its connection and a call that blocks does not
+ * hold up the others. A poll is the exception: if the server is an
+ * {@link AsyncPoller}, the worker only starts the poll, and its reply is sent
+ * whenever the server answers it, so that waiting polls hold no threads.
+ * <p>
+ * The workers are a fixed pool sized to the cores, and at most
+ * {@link #MAX_WAITING_CALLS} calls may wait for one. A connection whose call
+ * finds no room is no longer read from, and its calls stay unread in the
+ * socket until a worker frees up, so that clients sending faster than the
+ * server can answer are slowed by TCP rather than filling the heap. Other
+ * connections are still read, so answers to callbacks keep arriving.
+ * <p>
+ * Each connection stands in for its client as the
+ * {@link ClientInterface} passed to the server, and calls made on it are sent
+ * back down the connection and wait for the client's reply, for at most
+ * {@link #CALLBACK_TIMEOUT_MILLIS}. When a connection closes, its waiting
+ * calls fail with a {@code RemoteException}, as they would if an RMI client
+ * went away.
+ * <p>
+ * A worker's reply is written straight to the socket if nothing is queued
+ * ahead of it. Only what the socket cannot take at once is left for the
+ * selector thread to finish.
+ */
+public class NioServer implements Closeable {
+  /**
+  * How long a callback waits for the client's answer. A client that does not
+  * answer in time has its connection closed, failing its other callbacks too.
+  */
+  public static final long CALLBACK_TIMEOUT_MILLIS = 30 * 1000;
+
+  /** the number of worker threads */
+  public static final int WORKER_THREADS = Runtime.getRuntime().availableProcessors();
+
+  /** the most calls that may wait for a worker before reading stops */
+  public static final int MAX_WAITING_CALLS = WORKER_THREADS * 64;
+
+  private final ServerInterface target;
+  private final Selector selector;
+  private final ServerSocketChannel listener;
+  private final ExecutorService workers;
+  private final Thread selectorThread;
+
+  /** connections with replies the selector thread must finish writing */
+  private final Queue<Connection> unflushed;
+
+  /** a permit for each call running or waiting for a worker */
+  private final Semaphore callSlots;
+
+  /** connections not read from until their read calls find room */
+  private final Queue<Connection> stalled;
+
+  private volatile boolean closed;
+
+  /**
+  * Starts serving a server on a local address.
+  *
+  * @param  target        the server to call
+  * @param  address       the address to listen on
+  * @throws IOException   if the address cannot be bound
+  */
+  public NioServer(ServerInterface target, InetSocketAddress address)
+      throws IOException {
+    this.target = target;
+    this.unflushed = new ConcurrentLinkedQueue<Connection>();
+    this.callSlots = new Semaphore(WORKER_THREADS + MAX_WAITING_CALLS);
+    this.stalled = new ConcurrentLinkedQueue<Connection>();
+    this.selector = Selector.open();
+    this.listener = ServerSocketChannel.open();
+    listener.configureBlocking(false);
+    listener.bind(address);
+    listener.register(selector, SelectionKey.OP_ACCEPT);
+
+    // the queue has room for every permit, since a worker that has released
+    // its permit may not yet have taken the next call
+    workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS,
+        0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(WORKER_THREADS + MAX_WAITING_CALLS),
+        new ThreadFactory() {
+          public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "nio-worker");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    selectorThread = new Thread(new Runnable() {
+      public void run() {
+        select();
+      }
+    }, "nio-selector");
+    selectorThread.start();
+  }
+
+  /**
+  * Returns the port the server is listening on.
+  */
+  public int getPort() throws IOException {
+    return ((InetSocketAddress) listener.getLocalAddress()).getPort();
+  }
+
+  /**
+  * Stops accepting connections and closes every open one.
+  */
+  public void close() throws IOException {
+    closed = true;
+    selector.wakeup();
+    try {
+      selectorThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    workers.shutdown();
+  }
+
+  private void select() {
+    try {
+      while (!closed) {
+        selector.select();
+
+        Connection connection;
+        while ((connection = unflushed.poll()) != null) {
+          connection.flushLater();
+        }
+        while ((connection = stalled.peek()) != null
+            && (!connection.key.isValid() || connection.runBacklog())) {
+          stalled.poll();
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+
+          connection = (Connection) key.attachment();
+          if (key.isReadable()) {
+            connection.read();
+          }
+          if (key.isValid() && key.isWritable()) {
+            connection.flushLater();
+          }
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("[System] NIO transport failed: " + e);
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof Connection) {
+          ((Connection) key.attachment()).close(new EOFException("server closed"));
+        }
+      }
+      try {
+        listener.close();
+        selector.close();
+      } catch (IOException e) {
+        System.out.println("[System] Could not close the NIO transport: " + e);
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = listener.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    Connection connection = new Connection(channel);
+    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+  }
+
+  /**
+  * One client's connection, which is also that client's stand-in for the
+  * server's callbacks.
+  */
+  private final class Connection implements ClientInterface,
+      NioProtocol.FrameHandler {
+    final SocketChannel channel;
+    SelectionKey key;
+
+    final NioProtocol.FrameReader reader = new NioProtocol.FrameReader();
+    final NioProtocol.PendingCalls callbacks = new NioProtocol.PendingCalls();
+
+    /** frames waiting to be written, oldest first; guarded by this */
+    final ArrayDeque<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+
+    /**
+    * Calls read but not yet given to a worker, oldest first. Used only by the
+    * selector thread, and reading stops while it is not empty.
+    */
+    final ArrayDeque<Runnable> backlog = new ArrayDeque<Runnable>();
+
+    /** whether the connection is being read from; used only by the selector thread */
+    boolean reading = true;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+    * Reads what has arrived. Runs on the selector thread.
+    */
+    void read() {
+      try {
+        if (!reader.read(channel, this)) {
+          close(new EOFException("client closed the connection"));
+        }
+      } catch (IOException e) {
+        close(e);
+      }
+    }
+
+    public void frame(final int callId, byte kind, final DataInputStream body) {
+      if (kind != NioProtocol.CALL) {
+        callbacks.complete(callId, kind, body);
+        return;
+      }
+      backlog.addLast(new Runnable() {
+        public void run() {
+          ByteBuffer reply;
+          try {
+            reply = dispatch(Connection.this, callId, body);
+          } catch (IOException | RuntimeException e) {
+            reply = NioProtocol.failure(callId, e);
+          } finally {
+            callSlots.release();
+            if (!stalled.isEmpty()) {
+              selector.wakeup();
+            }
+          }
+          // a poll the server parked is answered later
+          if (reply != null) {
+            send(reply);
+          }
+        }
+      });
+      // later frames in the same read join the backlog behind this one
+      if (backlog.size() == 1 && !runBacklog()) {
+        stalled.add(this);
+      }
+    }
+
+    /**
+    * Gives the backlog to the workers while there is room, and reads again
+    * once it is empty. Runs on the selector thread.
+    *
+    * @return        whether the backlog is empty
+    */
+    boolean runBacklog() {
+      while (!backlog.isEmpty()) {
+        if (!callSlots.tryAcquire()) {
+          if (reading) {
+            reading = false;
+            setInterest();
+          }
+          return false;
+        }
+        workers.execute(backlog.pollFirst());
+      }
+      if (!reading) {
+        reading = true;
+        setInterest();
+      }
+      return true;
+    }
+
+    /**
+    * Asks to be told of what the connection is ready for: reading unless a
+    * call is waiting for room, and writing while frames are queued. Runs on
+    * the selector thread.
+    */
+    void setInterest() {
+      synchronized (this) {
+        if (!key.isValid()) {
+          return;
+        }
+        int ops = reading ? SelectionKey.OP_READ : 0;
+        if (!writes.isEmpty()) {
+          ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+      }
+    }
+
+    /**
+    * Writes a frame, or queues it behind frames not yet written.
+    */
+    void send(ByteBuffer frame) {
+      synchronized (this) {
+        if (!writes.isEmpty()) {
+          writes.addLast(frame);
+          return;
+        }
+        try {
+          channel.write(frame);
+        } catch (IOException e) {
+          close(e);
+          return;
+        }
+        if (!frame.hasRemaining()) {
+          return;
+        }
+        writes.addLast(frame);
+      }
+      unflushed.add(this);
+      selector.wakeup();
+    }
+
+    /**
+    * Writes queued frames until the socket is full, and asks to be told when
+    * it has room again. Runs on the selector thread.
+    */
+    void flushLater() {
+      synchronized (this) {
+        try {
+          while (!writes.isEmpty()) {
+            ByteBuffer frame = writes.peekFirst();
+            channel.write(frame);
+            if (frame.hasRemaining()) {
+              break;
+            }
+            writes.pollFirst();
+          }
+        } catch (IOException e) {
+          close(e);
+          return;
+        }
+      }
+      setInterest();
+    }
+
+    void close(IOException cause) {
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // already closing
+      }
+      callbacks.closeAll(cause);
+    }
+
+    /**
+    * Sends a callback and waits for the client's answer.
+    */
+    DataInputStream invoke(NioProtocol.FrameBuilder call) throws RemoteException {
+      send(call.toBuffer());
+      DataInputStream reply = callbacks.await(call.callId, CALLBACK_TIMEOUT_MILLIS);
+      if (reply == null) {
+        IOException cause = new SocketTimeoutException("no answer to a callback within "
+            + CALLBACK_TIMEOUT_MILLIS + " ms");
+        close(cause);
+        throw new java.rmi.ConnectException("callback timed out", cause);
+      }
+      return reply;
+    }
+
+    public boolean messageFromAccount(int eSID, String senderName,
+        String recipientName, String message, int timestamp)
+        throws RemoteException {
+      try {
+        NioProtocol.FrameBuilder call = callbacks.open(NioProtocol.MESSAGE_FROM_ACCOUNT);
+        call.out.writeInt(eSID);
+        NioProtocol.writeString(call.out, senderName);
+        NioProtocol.writeString(call.out, recipientName);
+        MessageCodec.writeBody(call.out, message);
+        call.out.writeInt(timestamp);
+        return invoke(call).readBoolean();
+      } catch (IOException e) {
+        throw NioProtocol.asRemoteException(e);
+      }
+    }
+
+    public boolean messageFromGroup(int eSID, String groupName,
+        String senderName, String recipientName, String message, int timestamp)
+        throws RemoteException {
+      try {
+        NioProtocol.FrameBuilder call = callbacks.open(NioProtocol.MESSAGE_FROM_GROUP);
+        call.out.writeInt(eSID);
+        NioProtocol.writeString(call.out, groupName);
+        NioProtocol.writeString(call.out, senderName);
+        NioProtocol.writeString(call.out, recipientName);
+        MessageCodec.writeBody(call.out, message);
+        call.out.writeInt(timestamp);
+        return invoke(call).readBoolean();
+      } catch (IOException e) {
+        throw NioProtocol.asRemoteException(e);
+      }
+    }
+
+    public boolean[] messagesFromServer(long firstSeq, Message[] messages)
+        throws RemoteException {
+      try {
+        NioProtocol.FrameBuilder call = callbacks.open(NioProtocol.MESSAGES_FROM_SERVER);
+        call.out.writeLong(firstSeq);
+        NioProtocol.writeMessages(call.out, messages);
+        return NioProtocol.readBooleans(invoke(call));
+      } catch (IOException e) {
+        throw NioProtocol.asRemoteException(e);
+      }
+    }
+
+    public void directoryChanged(DirectoryChange[] changes)
+        throws RemoteException {
+      try {
+        NioProtocol.FrameBuilder call = callbacks.open(NioProtocol.DIRECTORY_CHANGED);
+        NioProtocol.writeDirectoryChanges(call.out, changes);
+        invoke(call);
+      } catch (IOException e) {
+        throw NioProtocol.asRemoteException(e);
+      }
+    }
+
+    public void notifyOfLogOut() throws RemoteException {
+      invoke(callbacks.open(NioProtocol.NOTIFY_OF_LOG_OUT));
+    }
+  }
+
+  /**
+  * Sends the reply to a poll once the server answers it, so that no worker
+  * waits while the poll is parked.
+  */
+  private void replyToPoll(final Connection connection, final int callId,
+      CompletableFuture<MessageBatch> poll) {
+    poll.whenComplete(new BiConsumer<MessageBatch, Throwable>() {
+      public void accept(MessageBatch batch, Throwable failure) {
+        ByteBuffer reply;
+        if (failure != null) {
+          reply = NioProtocol.failure(callId, failure instanceof Exception ?
+              (Exception) failure : new RemoteException("poll failed", failure));
+        } else {
+          NioProtocol.FrameBuilder frame = new NioProtocol.FrameBuilder(callId,
+              NioProtocol.RETURN);
+          try {
+            NioProtocol.writeMessageBatch(frame.out, batch);
+            reply = frame.toBuffer();
+          } catch (IOException e) {
+            reply = NioProtocol.failure(callId, e);
+          }
+        }
+        connection.send(reply);
+      }
+    });
+  }
+
+  /**
+  * Runs one call from a client and builds its reply, or returns {@code null}
+  * for a poll that {@link #replyToPoll} answers later.
+  */
+  private ByteBuffer dispatch(Connection connection, int callId,
+      DataInputStream in) throws IOException {
+    NioProtocol.FrameBuilder reply = new NioProtocol.FrameBuilder(callId,
+        NioProtocol.RETURN);
+    DataOutputStream out = reply.out;
+
+    byte method = in.readByte();
+    switch (method) {
+      case NioProtocol.GET_CLIENT_UID:
+        out.writeInt(target.getClientUID());
+        break;
+      case NioProtocol.CREATE_ACCOUNT:
+        out.writeBoolean(target.createAccount(NioProtocol.readString(in)));
+        break;
+      case NioProtocol.CREATE_GROUP: {
+        String groupName = NioProtocol.readString(in);
+        out.writeBoolean(target.createGroup(groupName, NioProtocol.readStringSet(in)));
+        break;
+      }
+      case NioProtocol.DELETE_ACCOUNT:
+        out.writeBoolean(target.deleteAccount(NioProtocol.readString(in)));
+        break;
+      case NioProtocol.DELETE_GROUP:
+        out.writeBoolean(target.deleteGroup(NioProtocol.readString(in)));
+        break;
+      case NioProtocol.GET_ACCOUNTS_LIST:
+        NioProtocol.writeStrings(out, target.getAccountsList());
+        break;
+      case NioProtocol.MATCH_ACCOUNTS:
+        NioProtocol.writeStrings(out, target.getAccountsList(NioProtocol.readString(in)));
+        break;
+      case NioProtocol.MATCH_ACCOUNTS_LIMITED: {
+        String pattern = NioProtocol.readString(in);
+        NioProtocol.writeStrings(out, target.getAccountsList(pattern, in.readInt()));
+        break;
+      }
+      case NioProtocol.GET_GROUPS_LIST:
+        NioProtocol.writeStrings(out, target.getGroupsList());
+        break;
+      case NioProtocol.MATCH_GROUPS:
+        NioProtocol.writeStrings(out, target.getGroupsList(NioProtocol.readString(in)));
+        break;
+      case NioProtocol.MATCH_GROUPS_LIMITED: {
+        String pattern = NioProtocol.readString(in);
+        NioProtocol.writeStrings(out, target.getGroupsList(pattern, in.readInt()));
+        break;
+      }
+      case NioProtocol.GET_ACCOUNTS_IF_NEWER:
+        NioProtocol.writeSnapshot(out, target.getAccountsIfNewer(in.readLong()));
+        break;
+      case NioProtocol.GET_GROUPS_IF_NEWER:
+        NioProtocol.writeSnapshot(out, target.getGroupsIfNewer(in.readLong()));
+        break;
+      case NioProtocol.GET_ACCOUNTS_PAGE: {
+        String pageToken = NioProtocol.readString(in);
+        NioProtocol.writePage(out, target.getAccountsPage(pageToken, in.readInt()));
+        break;
+      }
+      case NioProtocol.GET_GROUPS_PAGE: {
+        String pageToken = NioProtocol.readString(in);
+        NioProtocol.writePage(out, target.getGroupsPage(pageToken, in.readInt()));
+        break;
+      }
+      case NioProtocol.SUBSCRIBE_TO_DIRECTORY: {
+        int cUID = in.readInt();
+        out.writeLong(target.subscribeToDirectory(cUID, connection, in.readLong()));
+        break;
+      }
+      case NioProtocol.UNSUBSCRIBE_FROM_DIRECTORY:
+        out.writeBoolean(target.unsubscribeFromDirectory(in.readInt()));
+        break;
+      case NioProtocol.LOG_IN: {
+        int cUID = in.readInt();
+        int eSID = in.readInt();
+        //a client that polls for its messages takes no callbacks
+        ClientInterface client = in.readBoolean() ? connection : null;
+        out.writeBoolean(target.logIn(cUID, eSID, client, NioProtocol.readString(in)));
+        break;
+      }
+      case NioProtocol.LOG_OUT: {
+        int cUID = in.readInt();
+        int eSID = in.readInt();
+        out.writeBoolean(target.logOut(cUID, eSID, NioProtocol.readString(in)));
+        break;
+      }
+      case NioProtocol.GET_LOGIN_STATUS:
+        NioProtocol.writeString(out, target.getLoginStatus(in.readInt()));
+        break;
+      case NioProtocol.RENEW_LEASE:
+        out.writeLong(target.renewLease(in.readInt()));
+        break;
+      case NioProtocol.POLL_MESSAGES: {
+        int cUID = in.readInt();
+        long cursor = in.readLong();
+        int maxMessages = in.readInt();
+        long timeoutMillis = in.readLong();
+        if (target instanceof AsyncPoller) {
+          replyToPoll(connection, callId, ((AsyncPoller) target).pollMessagesAsync(
+              cUID, cursor, maxMessages, timeoutMillis));
+          return null;
+        }
+        NioProtocol.writeMessageBatch(out,
+            target.pollMessages(cUID, cursor, maxMessages, timeoutMillis));
+        break;
+      }
+      case NioProtocol.GET_UNDELIVERED_MESSAGES:
+        out.writeBoolean(target.getUndeliveredMessages(connection, NioProtocol.readString(in)));
+        break;
+      case NioProtocol.SEND_MESSAGE_TO_ACCOUNT:
+      case NioProtocol.SEND_MESSAGE_TO_GROUP: {
+        int cUID = in.readInt();
+        int eSID = in.readInt();
+        String senderName = NioProtocol.readString(in);
+        String recipientName = NioProtocol.readString(in);
+        String message = MessageCodec.readBody(in);
+        int timestamp = in.readInt();
+        out.writeBoolean(method == NioProtocol.SEND_MESSAGE_TO_ACCOUNT ?
+            target.sendMessageToAccount(cUID, eSID, senderName, recipientName, message, timestamp) :
+            target.sendMessageToGroup(cUID, eSID, senderName, recipientName, message, timestamp));
+        break;
+      }
+      case NioProtocol.SEND_MESSAGES: {
+        int cUID = in.readInt();
+        String senderName = NioProtocol.readString(in);
+        NioProtocol.writeSendResults(out, target.sendMessages(cUID, senderName,
+            NioProtocol.readOutgoingMessages(in)));
+        break;
+      }
+      default:
+        throw new IOException("unknown method " + method);
+    }
+    return reply.toBuffer();
+  }
+}
@@ -0,0 +1,480 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A {@link ServerInterface} that reaches a {@link NioServer} over one TCP
+ * connection, for use by a {@link Client} in place of an RMI stub.
+ * <p>
+ * Calls from any number of threads share the connection and are pipelined:
+ * each is written as soon as it is made and waits only for its own reply.
+ * One reader thread splits incoming frames, handing replies to the waiting
+ * callers and running the server's callbacks on the {@link ClientInterface}
+ * this stub was last given, on a thread of their own so that a callback may
+ * itself call the server.
+ */
+public class NioServerStub implements ServerInterface, Closeable {
+  private final SocketChannel channel;
+  private final NioProtocol.PendingCalls calls;
+  private final ExecutorService callbackThreads;
+  private final Thread readerThread;
+
+  /** the client the server's callbacks are for */
+  private volatile ClientInterface client;
+
+  /**
+  * Connects to a server.
+  *
+  * @param  address       the address the server is listening on
+  * @throws IOException   if the connection cannot be made
+  */
+  public NioServerStub(InetSocketAddress address) throws IOException {
+    channel = SocketChannel.open(address);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    calls = new NioProtocol.PendingCalls();
+    callbackThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, "nio-callback");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    readerThread = new Thread(new Runnable() {
+      public void run() {
+        readFrames();
+      }
+    }, "nio-reader");
+    readerThread.setDaemon(true);
+    readerThread.start();
+  }
+
+  /**
+  * Closes the connection, failing any calls still waiting for replies.
+  */
+  public void close() throws IOException {
+    channel.close();
+    callbackThreads.shutdown();
+  }
+
+  private void readFrames() {
+    NioProtocol.FrameReader reader = new NioProtocol.FrameReader();
+    NioProtocol.FrameHandler handler = new NioProtocol.FrameHandler() {
+      public void frame(final int callId, byte kind, final DataInputStream body) {
+        if (kind != NioProtocol.CALL) {
+          calls.complete(callId, kind, body);
+          return;
+        }
+        callbackThreads.execute(new Runnable() {
+          public void run() {
+            ByteBuffer reply;
+            try {
+              reply = callback(callId, body);
+            } catch (IOException | RuntimeException e) {
+              reply = NioProtocol.failure(callId, e);
+            }
+            try {
+              write(reply);
+            } catch (IOException e) {
+              // the reader sees the connection close
+            }
+          }
+        });
+      }
+    };
+
+    IOException cause = new EOFException("server closed the connection");
+    try {
+      while (reader.read(channel, handler)) {
+      }
+    } catch (IOException e) {
+      cause = e;
+    }
+    calls.closeAll(cause);
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // already closing
+    }
+  }
+
+  private void write(ByteBuffer frame) throws IOException {
+    synchronized (channel) {
+      while (frame.hasRemaining()) {
+        channel.write(frame);
+      }
+    }
+  }
+
+  /**
+  * Sends a call and waits for its reply.
+  */
+  private DataInputStream invoke(NioProtocol.FrameBuilder call)
+      throws RemoteException {
+    try {
+      write(call.toBuffer());
+    } catch (IOException e) {
+      calls.closeAll(e);
+    }
+    // the reader thread fails every waiting call if the connection closes
+    return calls.await(call.callId, 0);
+  }
+
+  /**
+  * Runs one callback from the server and builds its reply.
+  */
+  private ByteBuffer callback(int callId, DataInputStream in) throws IOException {
+    NioProtocol.FrameBuilder reply = new NioProtocol.FrameBuilder(callId,
+        NioProtocol.RETURN);
+    DataOutputStream out = reply.out;
+    ClientInterface target = client;
+    if (target == null) {
+      throw new RemoteException("no client is attached to this connection");
+    }
+
+    byte method = in.readByte();
+    switch (method) {
+      case NioProtocol.MESSAGE_FROM_ACCOUNT: {
+        int eSID = in.readInt();
+        String senderName = NioProtocol.readString(in);
+        String recipientName = NioProtocol.readString(in);
+        String message = MessageCodec.readBody(in);
+        out.writeBoolean(target.messageFromAccount(eSID, senderName,
+            recipientName, message, in.readInt()));
+        break;
+      }
+      case NioProtocol.MESSAGE_FROM_GROUP: {
+        int eSID = in.readInt();
+        String groupName = NioProtocol.readString(in);
+        String senderName = NioProtocol.readString(in);
+        String recipientName = NioProtocol.readString(in);
+        String message = MessageCodec.readBody(in);
+        out.writeBoolean(target.messageFromGroup(eSID, groupName, senderName,
+            recipientName, message, in.readInt()));
+        break;
+      }
+      case NioProtocol.MESSAGES_FROM_SERVER: {
+        long firstSeq = in.readLong();
+        NioProtocol.writeBooleans(out,
+            target.messagesFromServer(firstSeq, NioProtocol.readMessages(in)));
+        break;
+      }
+      case NioProtocol.DIRECTORY_CHANGED:
+        target.directoryChanged(NioProtocol.readDirectoryChanges(in));
+        break;
+      case NioProtocol.NOTIFY_OF_LOG_OUT:
+        target.notifyOfLogOut();
+        break;
+      default:
+        throw new IOException("unknown callback " + method);
+    }
+    return reply.toBuffer();
+  }
+
+  private DataInputStream call(byte method) throws RemoteException {
+    return invoke(calls.open(method));
+  }
+
+  private DataInputStream call(byte method, String name) throws RemoteException {
+    NioProtocol.FrameBuilder call = calls.open(method);
+    try {
+      NioProtocol.writeString(call.out, name);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return invoke(call);
+  }
+
+
+  // ServerInterface
+  // ---------------
+
+  public int getClientUID() throws RemoteException {
+    try {
+      return call(NioProtocol.GET_CLIENT_UID).readInt();
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public boolean createAccount(String accountName) throws RemoteException {
+    try {
+      return call(NioProtocol.CREATE_ACCOUNT, accountName).readBoolean();
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public boolean createGroup(String groupName, Set<String> memberNames)
+      throws RemoteException {
+    try {
+      NioProtocol.FrameBuilder call = calls.open(NioProtocol.CREATE_GROUP);
+      NioProtocol.writeString(call.out, groupName);
+      NioProtocol.writeStrings(call.out, memberNames);
+      return invoke(call).readBoolean();
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public boolean deleteAccount(String accountName) throws RemoteException {
+    try {
+      return call(NioProtocol.DELETE_ACCOUNT, accountName).readBoolean();
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public boolean deleteGroup(String groupName) throws RemoteException {
+    try {
+      return call(NioProtocol.DELETE_GROUP, groupName).readBoolean();
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public Set<String> getAccountsList() throws RemoteException {
+    try {
+      return NioProtocol.readStringSet(call(NioProtocol.GET_ACCOUNTS_LIST));
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public Set<String> getAccountsList(String pattern) throws RemoteException {
+    try {
+      return NioProtocol.readStringSet(call(NioProtocol.MATCH_ACCOUNTS, pattern));
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public Set<String> getAccountsList(String pattern, int limit)
+      throws RemoteException {
+    try {
+      NioProtocol.FrameBuilder call = calls.open(NioProtocol.MATCH_ACCOUNTS_LIMITED);
+      NioProtocol.writeString(call.out, pattern);
+      call.out.writeInt(limit);
+      return NioProtocol.readStringSet(invoke(call));
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public Set<String> getGroupsList() throws RemoteException {
+    try {
+      return NioProtocol.readStringSet(call(NioProtocol.GET_GROUPS_LIST));
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public Set<String> getGroupsList(String pattern) throws RemoteException {
+    try {
+      return NioProtocol.readStringSet(call(NioProtocol.MATCH_GROUPS, pattern));
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public Set<String> getGroupsList(String pattern, int limit)
+      throws RemoteException {
+    try {
+      NioProtocol.FrameBuilder call = calls.open(NioProtocol.MATCH_GROUPS_LIMITED);
+      NioProtocol.writeString(call.out, pattern);
+      call.out.writeInt(limit);
+      return NioProtocol.readStringSet(invoke(call));
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public DirectorySnapshot getAccountsIfNewer(long knownVersion)
+      throws RemoteException {
+    try {
+      NioProtocol.FrameBuilder call = calls.open(NioProtocol.GET_ACCOUNTS_IF_NEWER);
+      call.out.writeLong(knownVersion);
+      return NioProtocol.readSnapshot(invoke(call));
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public DirectorySnapshot getGroupsIfNewer(long knownVersion)
+      throws RemoteException {
+    try {
+      NioProtocol.FrameBuilder call = calls.open(NioProtocol.GET_GROUPS_IF_NEWER);
+      call.out.writeLong(knownVersion);
+      return NioProtocol.readSnapshot(invoke(call));
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public NamePage getAccountsPage(String pageToken, int pageSize)
+      throws RemoteException {
+    try {
+      NioProtocol.FrameBuilder call = calls.open(NioProtocol.GET_ACCOUNTS_PAGE);
+      NioProtocol.writeString(call.out, pageToken);
+      call.out.writeInt(pageSize);
+      return NioProtocol.readPage(invoke(call));
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public NamePage getGroupsPage(String pageToken, int pageSize)
+      throws RemoteException {
+    try {
+      NioProtocol.FrameBuilder call = calls.open(NioProtocol.GET_GROUPS_PAGE);
+      NioProtocol.writeString(call.out, pageToken);
+      call.out.writeInt(pageSize);
+      return NioProtocol.readPage(invoke(call));
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public long subscribeToDirectory(int cUID, ClientInterface client,
+      long afterSeq) throws RemoteException {
+    this.client = client;
+    try {
+      NioProtocol.FrameBuilder call = calls.open(NioProtocol.SUBSCRIBE_TO_DIRECTORY);
+      call.out.writeInt(cUID);
+      call.out.writeLong(afterSeq);
+      return invoke(call).readLong();
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public boolean unsubscribeFromDirectory(int cUID) throws RemoteException {
+    try {
+      NioProtocol.FrameBuilder call = calls.open(NioProtocol.UNSUBSCRIBE_FROM_DIRECTORY);
+      call.out.writeInt(cUID);
+      return invoke(call).readBoolean();
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public boolean logIn(int cUID, int eSID, ClientInterface client,
+      String accountName) throws RemoteException {
+    if (client != null) {
+      this.client = client;
+    }
+    try {
+      NioProtocol.FrameBuilder call = calls.open(NioProtocol.LOG_IN);
+      call.out.writeInt(cUID);
+      call.out.writeInt(eSID);
+      call.out.writeBoolean(client != null);
+      NioProtocol.writeString(call.out, accountName);
+      return invoke(call).readBoolean();
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public boolean logOut(int cUID, int eSID, String accountName)
+      throws RemoteException {
+    try {
+      NioProtocol.FrameBuilder call = calls.open(NioProtocol.LOG_OUT);
+      call.out.writeInt(cUID);
+      call.out.writeInt(eSID);
+      NioProtocol.writeString(call.out, accountName);
+      return invoke(call).readBoolean();
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public String getLoginStatus(int cUID) throws RemoteException {
+    try {
+      NioProtocol.FrameBuilder call = calls.open(NioProtocol.GET_LOGIN_STATUS);
+      call.out.writeInt(cUID);
+      return NioProtocol.readString(invoke(call));
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public MessageBatch pollMessages(int cUID, long cursor, int maxMessages,
+      long timeoutMillis) throws RemoteException {
+    try {
+      NioProtocol.FrameBuilder call = calls.open(NioProtocol.POLL_MESSAGES);
+      call.out.writeInt(cUID);
+      call.out.writeLong(cursor);
+      call.out.writeInt(maxMessages);
+      call.out.writeLong(timeoutMillis);
+      return NioProtocol.readMessageBatch(invoke(call));
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public long renewLease(int cUID) throws RemoteException {
+    try {
+      NioProtocol.FrameBuilder call = calls.open(NioProtocol.RENEW_LEASE);
+      call.out.writeInt(cUID);
+      return invoke(call).readLong();
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public boolean getUndeliveredMessages(ClientInterface client,
+      String accountName) throws RemoteException {
+    this.client = client;
+    try {
+      return call(NioProtocol.GET_UNDELIVERED_MESSAGES, accountName).readBoolean();
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  public boolean sendMessageToAccount(int cUID, int eSID, String senderName,
+      String recipientName, String message, int timestamp)
+      throws RemoteException {
+    return send(NioProtocol.SEND_MESSAGE_TO_ACCOUNT, cUID, eSID, senderName,
+        recipientName, message, timestamp);
+  }
+
+  public boolean sendMessageToGroup(int cUID, int eSID, String senderName,
+      String groupName, String message, int timestamp) throws RemoteException {
+    return send(NioProtocol.SEND_MESSAGE_TO_GROUP, cUID, eSID, senderName,
+        groupName, message, timestamp);
+  }
+
+  public OutgoingMessage.Result[] sendMessages(int cUID, String senderName,
+      OutgoingMessage[] messages) throws RemoteException {
+    try {
+      NioProtocol.FrameBuilder call = calls.open(NioProtocol.SEND_MESSAGES);
+      call.out.writeInt(cUID);
+      NioProtocol.writeString(call.out, senderName);
+      NioProtocol.writeOutgoingMessages(call.out, messages);
+      return NioProtocol.readSendResults(invoke(call));
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+
+  private boolean send(byte method, int cUID, int eSID, String senderName,
+      String recipientName, String message, int timestamp)
+      throws RemoteException {
+    try {
+      NioProtocol.FrameBuilder call = calls.open(method);
+      call.out.writeInt(cUID);
+      call.out.writeInt(eSID);
+      NioProtocol.writeString(call.out, senderName);
+      NioProtocol.writeString(call.out, recipientName);
+      MessageCodec.writeBody(call.out, message);
+      call.out.writeInt(timestamp);
+      return invoke(call).readBoolean();
+    } catch (IOException e) {
+      throw NioProtocol.asRemoteException(e);
+    }
+  }
+}
@@ -0,0 +1,403 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Messages waiting to be pushed to the client logged into one account.
+ * <p>
+ * Each delivery callback is a network round trip, so a busy recipient spends
+ * most of its time waiting on the wire. This queue collects the recipient's
+ * messages and hands them to a {@link Sink} in batches. At most one batch per
+ * recipient is in flight at a time; whatever arrives while it is in flight is
+ * coalesced into the next batch. Messages therefore reach the sink in the
+ * order they were enqueued.
+ * <p>
+ * Draining runs on the supplied executor and is started by the first
+ * {@link #enqueue} that finds the queue idle.
+ * <p>
+ * A recipient that reads more slowly than it is sent to would otherwise make
+ * its queue grow without limit. Once {@link #MAX_PENDING} messages are
+ * waiting, the queue is marked {@link #isBehind behind}: the caller should
+ * then store the recipient's new messages as it would for an offline
+ * account. When the queue has drained, it reads those stored messages back
+ * from the sink, oldest first, and is marked caught up once the sink has none
+ * left. A stored batch stays stored until it is delivered, and only then does
+ * the queue have the sink remove it, so a batch that is never delivered
+ * stays ahead of the messages stored after it and survives a restart. If a
+ * batch cannot be delivered the queue stops reading stored messages back and
+ * is marked caught up at once, leaving them for the recipient's next log-in. The length of each period spent behind is recorded
+ * in the {@link LatencyStats} given to the constructor.
+ * <p>
+ * The same catching up replays an account's stored messages after a log-in:
+ * {@link #replayStored} marks the queue behind, so that new messages are
+ * stored after the old ones, and starts a drain that takes them back from the
+ * sink. No caller waits on the replay's callbacks, and the time spent
+ * replaying is not counted as time behind.
+ * <p>
+ * A callback that fails may have failed only for the moment, so the batch is
+ * tried again after a backoff, held on a {@link TimerWheel} while the queue
+ * keeps collecting messages behind it. The backoff doubles with each attempt,
+ * with random jitter so that recipients that failed together do not retry
+ * together. After {@link #MAX_ATTEMPTS} the batch is handed to the sink to
+ * store, unless it was read back from storage and is still there. A retried batch may reach a client twice, if a callback failed after
+ * the client received it. Each message handed to the sink is therefore given
+ * a delivery sequence number, one more than the previous message's, which a
+ * retry keeps; clients discard deliveries numbered no higher than the last
+ * they received. Unlike the server's {@code eSID}s, these count only this
+ * recipient's messages, so a retry is recognized however much other traffic
+ * the server has handled meanwhile.
+ */
+public class OutboundQueue {
+  /**
+  * The largest number of messages handed to the sink at once
+  */
+  public static final int MAX_BATCH_SIZE = 256;
+
+  /**
+  * The number of waiting messages at which the queue falls behind
+  */
+  public static final int MAX_PENDING = 4 * MAX_BATCH_SIZE;
+
+  /**
+  * The number of times a batch is offered to a client before it is stored
+  */
+  public static final int MAX_ATTEMPTS = 5;
+
+  /**
+  * The backoff after the first failed attempt, before jitter
+  */
+  public static final long BASE_RETRY_DELAY_MILLIS = 100;
+
+  /**
+  * The longest backoff between attempts, before jitter
+  */
+  public static final long MAX_RETRY_DELAY_MILLIS = 5000;
+
+  /**
+  * What became of a batch offered to a {@link Sink}
+  */
+  public enum Outcome {
+    /** the client has the batch */
+    DELIVERED,
+    /** the batch was stored to send later, as for an offline account */
+    STORED,
+    /** the callback failed, so the batch is still the queue's */
+    FAILED
+  }
+
+  /**
+  * Receives batches drained from an {@code OutboundQueue}.
+  */
+  public interface Sink {
+    /**
+    * Delivers a batch of messages to one account, or stores it if no client
+    * is logged into the account. Must not throw.
+    *
+    * @param  recipientId   the ID of the account the messages are for
+    * @param  firstSeq      the delivery sequence number of the first message;
+    *                       each later message's is one more
+    * @param  batch         the messages, oldest first
+    * @param  stored        whether the batch was read by {@link #takeStored},
+    *                       in which case it is still stored and is not
+    *                       stored again
+    * @return               what became of the batch
+    */
+    public Outcome deliverBatch(int recipientId, long firstSeq, Message[] batch,
+        boolean stored);
+
+    /**
+    * Stores a batch that could not be delivered, to send when the account
+    * next logs in. Must not throw.
+    *
+    * @param  recipientId   the ID of the account the messages are for
+    * @param  batch         the messages, oldest first
+    */
+    public void storeBatch(int recipientId, Message[] batch);
+
+    /**
+    * Returns the oldest messages stored for an account while its queue was
+    * behind, leaving them stored until {@link #confirmStored} is called for
+    * them. Once there are none left, or they can no longer be delivered, the
+    * sink must call {@link #markCaughtUp} while still excluding anyone who
+    * would store another, and return an empty batch.
+    *
+    * @param  recipientId   the ID of the account the messages are for
+    * @param  max           the largest number of messages to return
+    * @return               the messages, oldest first, and the position after
+    *                       the last of them
+    */
+    public MessageBatch takeStored(int recipientId, int max);
+
+    /**
+    * Removes stored messages once they have been delivered. Must not throw.
+    *
+    * @param  recipientId   the ID of the account the messages are for
+    * @param  end           the {@link MessageBatch#nextCursor} of the batch
+    *                       they were read in; every message before it that is
+    *                       still stored is removed
+    */
+    public void confirmStored(int recipientId, long end);
+  }
+
+  private final int recipientId;
+  private final Executor executor;
+  private final Sink sink;
+  private final LatencyStats behindStats;
+  private final TimerWheel retryTimer;
+
+  private final ArrayDeque<Message> pending;
+  private final ArrayDeque<Runnable> onDelivered;
+  private boolean draining;
+
+  /** when the queue fell behind, if it is behind; guarded by this */
+  private boolean behind;
+  private long behindSinceNanos;
+
+  /** the time spent behind in earlier periods; guarded by this */
+  private long pastBehindNanos;
+
+  /**
+  * whether the queue is behind only to replay stored messages, and whether a
+  * replay has been asked for since the drain last looked; guarded by this
+  */
+  private boolean replaying;
+  private boolean replayRequested;
+
+  //used only by the drain, which the retry timer hands from thread to thread
+  private long nextDeliverySeq;
+  private Message[] retryBatch;
+  private long retryFirstSeq;
+  private long retryStoredEnd;
+  private Runnable[] retryCallbacks;
+  private int attempts;
+  private boolean lastDelivered = true;
+
+  private final Runnable drainTask = new Runnable() {
+    public void run() {
+      drain();
+    }
+  };
+
+  /**
+  * Creates an empty queue for one account.
+  *
+  * @param  recipientId   the ID of the account whose messages this queue holds
+  * @param  executor      runs the drain task
+  * @param  sink          receives each drained batch
+  * @param  behindStats   records how long each period spent behind lasts
+  * @param  retryTimer    holds failed batches until they are tried again
+  */
+  public OutboundQueue(int recipientId, Executor executor, Sink sink,
+      LatencyStats behindStats, TimerWheel retryTimer) {
+    this.recipientId = recipientId;
+    this.executor = executor;
+    this.sink = sink;
+    this.behindStats = behindStats;
+    this.retryTimer = retryTimer;
+    this.pending = new ArrayDeque<Message>();
+    this.onDelivered = new ArrayDeque<Runnable>();
+  }
+
+  /**
+  * Adds a message to the queue, starting a drain if none is running. The
+  * message is queued even if the queue is behind, so callers that check
+  * {@link #isBehind} first may overshoot {@link #MAX_PENDING} by the number
+  * of messages they enqueue concurrently.
+  *
+  * @param  message       the message to push
+  * @param  onDelivered   run once the message's batch has been handed to the
+  *                       sink, or {@code null}
+  */
+  public void enqueue(Message message, Runnable onDelivered) {
+    boolean startDrain;
+    synchronized(this) {
+      pending.addLast(message);
+      this.onDelivered.addLast(onDelivered == null ? NO_OP : onDelivered);
+      if(pending.size() >= MAX_PENDING && (!behind || replaying)) {
+        //a replay that falls behind counts from here
+        behind = true;
+        replaying = false;
+        behindSinceNanos = System.nanoTime();
+      }
+      startDrain = !draining;
+      draining = true;
+    }
+
+    if(startDrain) {
+      executor.execute(drainTask);
+    }
+  }
+
+  /**
+  * Starts sending the messages stored for the recipient, oldest first, ahead
+  * of any stored after this call. Messages are taken from the sink through
+  * {@link Sink#takeStored} as each batch is delivered, so the recipient's
+  * stripe is never held across a callback.
+  */
+  public void replayStored() {
+    boolean startDrain;
+    synchronized(this) {
+      if(!behind) {
+        behind = true;
+        replaying = true;
+        behindSinceNanos = System.nanoTime();
+      }
+      replayRequested = true;
+      startDrain = !draining;
+      draining = true;
+    }
+
+    if(startDrain) {
+      executor.execute(drainTask);
+    }
+  }
+
+  /**
+  * Returns the number of messages waiting for the next batch.
+  */
+  public synchronized int size() {
+    return pending.size();
+  }
+
+  /**
+  * Returns whether the recipient has fallen behind, so that new messages
+  * should be stored rather than queued.
+  */
+  public synchronized boolean isBehind() {
+    return behind;
+  }
+
+  /**
+  * Returns the total time this queue has spent behind, including the current
+  * period if it is behind.
+  */
+  public synchronized long getMillisBehind() {
+    long nanos = pastBehindNanos;
+    if(behind && !replaying) {
+      nanos += System.nanoTime() - behindSinceNanos;
+    }
+    return nanos / 1000000;
+  }
+
+  /**
+  * Marks the queue caught up, so that new messages are queued again. Called
+  * by the sink from {@link Sink#takeStored}.
+  */
+  public synchronized void markCaughtUp() {
+    if(behind && !replaying) {
+      long nanos = System.nanoTime() - behindSinceNanos;
+      pastBehindNanos += nanos;
+      behindStats.record(nanos);
+    }
+    behind = false;
+    replaying = false;
+  }
+
+  private void drain() {
+    while(true) {
+      Message[] batch = retryBatch;
+      long firstSeq = retryFirstSeq;
+      Runnable[] callbacks = retryCallbacks;
+      boolean retrying = batch != null;
+      long storedEnd = retrying ? retryStoredEnd : NOT_STORED;
+      retryBatch = null;
+      retryCallbacks = null;
+
+      if(batch == null) {
+        callbacks = NO_CALLBACKS;
+        synchronized(this) {
+          if(replayRequested) {
+            //a new log-in gets another try at the stored messages
+            replayRequested = false;
+            lastDelivered = true;
+          }
+          if(pending.isEmpty() && !(behind && lastDelivered)) {
+            //after a failed delivery, stored messages wait for the next log-in
+            markCaughtUp();
+            draining = false;
+            return;
+          }
+
+          if(!pending.isEmpty()) {
+            int batchSize = Math.min(pending.size(), MAX_BATCH_SIZE);
+            batch = new Message[batchSize];
+            callbacks = new Runnable[batchSize];
+            for(int i = 0; i < batchSize; i++) {
+              batch[i] = pending.pollFirst();
+              callbacks[i] = onDelivered.pollFirst();
+            }
+          }
+        }
+      }
+
+      if(batch == null) {
+        //the queue has drained while behind, so catch up on what was stored
+        MessageBatch stored = sink.takeStored(recipientId, MAX_BATCH_SIZE);
+        if(stored.messages.isEmpty()) {
+          continue;
+        }
+        batch = stored.messages.toArray(new Message[stored.messages.size()]);
+        storedEnd = stored.nextCursor;
+      }
+
+      //a retry keeps its numbers, so the client can tell it is one
+      if(!retrying) {
+        firstSeq = nextDeliverySeq;
+        nextDeliverySeq += batch.length;
+      }
+
+      Outcome outcome;
+      try {
+        outcome = sink.deliverBatch(recipientId, firstSeq, batch,
+            storedEnd != NOT_STORED);
+      }
+      catch(RuntimeException e) {
+        outcome = Outcome.FAILED;
+        System.out.println("[System] Delivery to " + batch[0].recipientName + " failed: " + e);
+      }
+
+      if(outcome == Outcome.FAILED) {
+        attempts++;
+        if(attempts < MAX_ATTEMPTS) {
+          //the drain stays claimed, so later messages wait behind this batch
+          retryBatch = batch;
+          retryFirstSeq = firstSeq;
+          retryStoredEnd = storedEnd;
+          retryCallbacks = callbacks;
+          retryTimer.schedule(drainTask, retryDelayMillis(attempts));
+          return;
+        }
+        if(storedEnd == NOT_STORED) {
+          sink.storeBatch(recipientId, batch);
+        }
+      }
+      attempts = 0;
+      lastDelivered = outcome == Outcome.DELIVERED;
+      if(lastDelivered && storedEnd != NOT_STORED) {
+        sink.confirmStored(recipientId, storedEnd);
+      }
+
+      for(Runnable callback : callbacks) {
+        callback.run();
+      }
+    }
+  }
+
+  /**
+  * Returns the backoff after a number of failed attempts: exponential up to
+  * {@link #MAX_RETRY_DELAY_MILLIS}, then jittered down by up to half.
+  */
+  private static long retryDelayMillis(int failedAttempts) {
+    long delay = Math.min(MAX_RETRY_DELAY_MILLIS,
+        BASE_RETRY_DELAY_MILLIS << Math.min(failedAttempts - 1, 20));
+    return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+  }
+
+  /** the stored end of a batch that was not read back from storage */
+  private static final long NOT_STORED = -1;
+
+  private static final Runnable NO_OP = new Runnable() {
+    public void run() {}
+  };
+
+  private static final Runnable[] NO_CALLBACKS = new Runnable[0];
+}
@@ -0,0 +1,76 @@
+import java.io.*;
+
+/**
+ * One message in a batch sent by {@link ServerInterface#sendMessages}.
+ * <p>
+ * Each entry carries its own {@code eSID}, so a batch that is sent again
+ * after a lost reply is recognized entry by entry, just as single sends are.
+ * Instances are immutable.
+ */
+public final class OutgoingMessage implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /**
+  * The most entries the server accepts in one batch
+  */
+  public static final int MAX_BATCH_SIZE = 1024;
+
+  /**
+  * What became of one entry in a batch.
+  */
+  public enum Result {
+    /** the server registered the send for the first time */
+    SENT,
+
+    /** the server had already received a send with this eSID */
+    PREVIOUSLY_RECEIVED,
+
+    /** the send could not be handled, for example because the group does not exist */
+    FAILED,
+
+    /**
+    * the eSID was older than the server's window of recent sends, so the send
+    * was refused without knowing whether it had been received before
+    */
+    STALE
+  }
+
+  /**
+  * The client's event sequence ID for this send
+  */
+  public final int eSID;
+
+  /**
+  * Whether {@link #recipientName} names a group rather than an account
+  */
+  public final boolean toGroup;
+
+  /**
+  * The account or group the message is being sent to
+  */
+  public final String recipientName;
+
+  /**
+  * The message text
+  */
+  public final String message;
+
+  /**
+  * The client-generated timestamp when the message was created
+  */
+  public final int timestamp;
+
+  public OutgoingMessage(int eSID, boolean toGroup, String recipientName,
+      String message, int timestamp) {
+    this.eSID = eSID;
+    this.toGroup = toGroup;
+    this.recipientName = recipientName;
+    this.message = message;
+    this.timestamp = timestamp;
+  }
+
+  public String toString() {
+    return String.format("OutgoingMessage[%d to %s%s]", eSID,
+        toGroup ? "group " : "", recipientName);
+  }
+}
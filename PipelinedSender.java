@@ -0,0 +1,258 @@
+import java.rmi.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Sends a client's messages to the server in batches, so that a client
+ * sending many messages is not held to one round trip per message.
+ * <p>
+ * Messages are queued and sent by one thread through
+ * {@link ServerInterface#sendMessages}. While a batch is in flight, messages
+ * queued meanwhile collect into the next, so batches grow with the load and
+ * a busy sender makes one round trip per batch rather than per message. Only
+ * one batch is in flight at a time, which keeps messages in the order they
+ * were queued. A queued message's future completes with its result once the
+ * server has accepted its batch.
+ * <p>
+ * The server remembers only a window of each client's recent {@code eSID}s,
+ * so a message is given its {@code eSID} not when it is queued, which could
+ * leave thousands queued behind later ones, but when its batch is sent. The
+ * client's other sends should go through this sender too, so that no newer
+ * {@code eSID} can push a batch in flight out of the window.
+ * <p>
+ * A batch whose call fails is sent again, up to {@link #MAX_ATTEMPTS} times
+ * in all, after which its futures complete with the failure. The server
+ * recognizes resent entries by their {@code eSID}s; since each {@code eSID}
+ * is used once, an entry reported as previously received on a resend was
+ * accepted by the failed attempt, whose reply was lost, and is reported as
+ * sent. An entry reported as stale is not, since the server cannot say
+ * whether it was received. A batch whose call throws anything else, or
+ * whose reply does not hold a result per entry, is not sent again; its
+ * futures complete with the failure.
+ * <p>
+ * The queue holds at most {@link #MAX_QUEUED} messages, beyond which queueing
+ * waits for room. Instances are thread-safe.
+ */
+public class PipelinedSender {
+  /**
+  * The most messages waiting to be sent
+  */
+  public static final int MAX_QUEUED = 4 * OutgoingMessage.MAX_BATCH_SIZE;
+
+  /**
+  * The most calls made to send one batch
+  */
+  public static final int MAX_ATTEMPTS = 3;
+
+  /**
+  * How long to wait before sending a failed batch again
+  */
+  private static final long RETRY_DELAY_MILLIS = 200;
+
+  private static final class Pending {
+    final String senderName;
+    final boolean toGroup;
+    final String recipientName;
+    final String message;
+    final int timestamp;
+    final CompletableFuture<OutgoingMessage.Result> result =
+        new CompletableFuture<OutgoingMessage.Result>();
+
+    Pending(String senderName, boolean toGroup, String recipientName,
+        String message, int timestamp) {
+      this.senderName = senderName;
+      this.toGroup = toGroup;
+      this.recipientName = recipientName;
+      this.message = message;
+      this.timestamp = timestamp;
+    }
+  }
+
+  private final ServerInterface server;
+  private final int cUID;
+
+  /** issues the client's {@code eSID}s */
+  private final AtomicInteger eSIDs;
+
+  /** the messages not yet sent, oldest first; guarded by this */
+  private final Deque<Pending> queue = new ArrayDeque<Pending>();
+
+  /** the number of messages in the batch in flight; guarded by this */
+  private int inFlight;
+
+  /** the sending thread, started by the first message; guarded by this */
+  private Thread sender;
+
+  /**
+  * Creates a sender for a client.
+  *
+  * @param  server        the server to send to
+  * @param  cUID          the client's user ID
+  * @param  eSIDs         the client's {@code eSID} counter, shared with its
+  *                       log-ins and log-outs
+  */
+  public PipelinedSender(ServerInterface server, int cUID, AtomicInteger eSIDs) {
+    this.server = server;
+    this.cUID = cUID;
+    this.eSIDs = eSIDs;
+  }
+
+  /**
+  * Queues a message, waiting for room if the queue is full.
+  *
+  * @param  senderName    the account name the message is being sent from
+  * @param  toGroup       whether {@code recipientName} names a group
+  * @param  recipientName the account or group the message is being sent to
+  * @param  message       the message text
+  * @param  timestamp     the client-generated timestamp when the message was
+  *                       created
+  * @return               a future completed with the message's result, or
+  *                       with the {@code RemoteException} that stopped its
+  *                       batch being sent
+  */
+  public synchronized CompletableFuture<OutgoingMessage.Result> send(
+      String senderName, boolean toGroup, String recipientName, String message,
+      int timestamp) throws InterruptedException {
+    while(queue.size() >= MAX_QUEUED) {
+      wait();
+    }
+    Pending pending = new Pending(senderName, toGroup, recipientName, message,
+        timestamp);
+    queue.add(pending);
+    if(sender == null) {
+      sender = new Thread(new Runnable() {
+        public void run() {
+          drain();
+        }
+      }, "message-sender");
+      sender.setDaemon(true);
+      sender.start();
+    }
+    notifyAll();
+    return pending.result;
+  }
+
+  /**
+  * Waits until every message queued so far has been sent or has failed.
+  */
+  public synchronized void flush() throws InterruptedException {
+    while(!queue.isEmpty() || inFlight > 0) {
+      wait();
+    }
+  }
+
+  /**
+  * Returns the number of messages queued or in flight.
+  */
+  public synchronized int getPendingCount() {
+    return queue.size() + inFlight;
+  }
+
+  private void drain() {
+    while(true) {
+      List<Pending> batch;
+      try {
+        batch = takeBatch();
+      }
+      catch(InterruptedException e) {
+        return;
+      }
+
+      try {
+        sendBatch(batch);
+      }
+      catch(RuntimeException e) {
+        //futures already completed keep their results
+        for(Pending pending : batch) {
+          pending.result.completeExceptionally(e);
+        }
+      }
+      finally {
+        synchronized(this) {
+          inFlight = 0;
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+  * Waits for messages and takes the oldest as a batch: as many as one call
+  * may carry, all from the same sender.
+  */
+  private synchronized List<Pending> takeBatch() throws InterruptedException {
+    while(queue.isEmpty()) {
+      wait();
+    }
+    List<Pending> batch = new ArrayList<Pending>();
+    String senderName = queue.peek().senderName;
+    while(!queue.isEmpty() && batch.size() < OutgoingMessage.MAX_BATCH_SIZE &&
+        queue.peek().senderName.equals(senderName)) {
+      batch.add(queue.poll());
+    }
+    inFlight = batch.size();
+    //wake senders waiting for room
+    notifyAll();
+    return batch;
+  }
+
+  private void sendBatch(List<Pending> batch) {
+    //numbered only now, so nothing queued waits behind a newer eSID
+    OutgoingMessage[] messages = new OutgoingMessage[batch.size()];
+    for(int i = 0; i < messages.length; i++) {
+      Pending pending = batch.get(i);
+      messages[i] = new OutgoingMessage(eSIDs.getAndIncrement(), pending.toGroup,
+          pending.recipientName, pending.message, pending.timestamp);
+    }
+    String senderName = batch.get(0).senderName;
+
+    for(int attempt = 1; ; attempt++) {
+      OutgoingMessage.Result[] results;
+      try {
+        results = server.sendMessages(cUID, senderName, messages);
+      }
+      catch(RemoteException e) {
+        if(attempt < MAX_ATTEMPTS && sleepBeforeRetry()) {
+          continue;
+        }
+        for(Pending pending : batch) {
+          pending.result.completeExceptionally(e);
+        }
+        return;
+      }
+
+      if(results == null || results.length != messages.length) {
+        RemoteException e = new RemoteException("expected " + messages.length
+            + " results, got " + (results == null ? 0 : results.length));
+        for(Pending pending : batch) {
+          pending.result.completeExceptionally(e);
+        }
+        return;
+      }
+      for(int i = 0; i < results.length; i++) {
+        OutgoingMessage.Result result = results[i];
+        //only an attempt that failed can have been received already
+        if(attempt > 1 && result == OutgoingMessage.Result.PREVIOUSLY_RECEIVED) {
+          result = OutgoingMessage.Result.SENT;
+        }
+        batch.get(i).result.complete(result);
+      }
+      return;
+    }
+  }
+
+  /**
+  * Sleeps before a retry, returning {@code false} if interrupted.
+  */
+  private boolean sleepBeforeRetry() {
+    try {
+      Thread.sleep(RETRY_DELAY_MILLIS);
+      return true;
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+}
@@ -1,51 +1,213 @@
+import java.io.*;
 import java.rmi.*;
 import java.rmi.server.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
-public class Server extends UnicastRemoteObject implements ServerInterface {
+public class Server extends UnicastRemoteObject implements ServerInterface, AsyncPoller {
   /**
   * Stores the last <code>cUID</code>. used, which is incremented for each new client.
   * This helps us to kick off older clients in favor of new clients with the same account 
   */
-  private int cUID;
+  private final AtomicInteger cUID;
 
  /**
   * Stores the last event sequence ID used, which is incremented for each event
   */
-  private int eSID;
+  private final AtomicInteger eSID;
 
   /**
-  * A mapping from accountName to a list of [clientUID, ClientInterface] 
+  * Guards per-account state. RMI runs each call on its own thread, so any
+  * read-then-write of an account's session or message queue is done while
+  * holding that account's stripe. Calls for different accounts proceed in
+  * parallel.
+  */
+  private final StripedLock accountLocks;
+
+  /**
+  * Assigns each account and group name the ID that keys the state below.
+  * Names are turned into IDs as calls arrive and back into names only for
+  * replies, messages and the journal.
+  */
+  private final NameDictionary names;
+
+  /**
+  * Runs deliveries to logged-in accounts off the sender's thread
+  */
+  private final FanOutEngine fanOutEngine;
+
+  /**
+  * A mapping from account ID to the messages waiting to be pushed to the
+  * client logged into it
+  */
+  private final Map<Integer, OutboundQueue> outboundQueues;
+
+  /**
+  * How long each outbound queue stayed behind before its recipient caught up
+  */
+  private final LatencyStats slowConsumerStats;
+
+  /**
+  * Holds deliveries that failed until they are retried, and the checks on
+  * client leases
+  */
+  private final TimerWheel timerWheel;
+
+  /**
+  * A mapping from account ID to the session of the client logged into it
   */  
-  private Map<String, List<Object>> loggedInUsers;
+  private Map<Integer, AccountSession> loggedInUsers;
 
 
   /**
-  * A mapping from clientID to user account name and eSID. 
+  * A mapping from clientID to the session holding its account ID and eSID.
   * these are updated upon login/logout requests    
   */   
-  private Map<Integer, List<Object>> loggedInClients;
+  private Map<Integer, ClientSession> loggedInClients;
   
   /**
-  * A mapping from accountName to sets of list of messages to send  
+  * A mapping from account ID to the ordered log of messages to send once
+  * the account can be reached
+  */
+  private Map<Integer, Inbox> inboxes;
+
+  /**
+  * A mapping from account ID to the polls waiting for a message to be stored
+  * for the account; each list is guarded by the account's stripe
+  */
+  private final Map<Integer, List<PendingPoll>> parkedPolls;
+
+  /**
+  * A mapping from group ID to the single stored copy of each group message
+  * still waiting for an offline member. Logs outlive their group, since
+  * members may still have its messages queued.
   */
-  private Map<String, Set<List<Object>>> messagesToSend;
-  private Map<String, Set<List<Object>>> groupMessagesToSend;
+  private final Map<Integer, GroupLog> groupLogs;
 
   /**
-  * A mapping from cUID to set of eSIDs
+  * The number of recent eSIDs remembered for each client when detecting
+  * duplicate message sends
   */
-  private Map<Integer, Set<Integer>> messagesReceived;  
+  private static final int RECEIVE_WINDOW_SIZE = 1024;
+
+  /**
+  * How long a client that is not logged in may send nothing before its
+  * window of received eSIDs is dropped, and how often windows are checked
+  */
+  private static final long RECEIVE_WINDOW_IDLE_MILLIS = 60 * 60 * 1000;
+  private static final long RECEIVE_WINDOW_SWEEP_MILLIS = 60 * 1000;
+
+  /**
+  * A mapping from cUID to a fixed-size window of recently received eSIDs.
+  * A window is opened when its cUID is issued, and again at each log-in, and
+  * lasts until the client has been idle and logged out for
+  * {@link #RECEIVE_WINDOW_IDLE_MILLIS}. A send from a cUID with no window
+  * cannot be checked, so it is treated as stale.
+  */
+  private Map<Integer, EventWindow> messagesReceived;  
   
   /**
-  * Stores a set of account names
+  * Stores the set of account IDs
   */
-  private Set<String> accounts;
+  private Set<Integer> accounts;
 
   /**
-  * A mapping from group name to a set of group members
+  * A mapping from group ID to the sorted IDs of the group's members
   */  
-  private Map<String, Set<String>> groups;
+  private Map<Integer, int[]> groups;
+
+  /**
+  * The number of names returned by a pattern search that gives no limit
+  */
+  private static final int DEFAULT_LIST_LIMIT = 1000;
+
+  /**
+  * The largest page returned by a paged listing, whatever size is asked for
+  */
+  private static final int MAX_PAGE_SIZE = 1000;
+
+  /**
+  * Indexes the names of the accounts and of the groups for pattern searches.
+  * Each is updated under the same stripe as the set it mirrors.
+  */
+  private final NameIndex accountIndex;
+  private final NameIndex groupIndex;
+
+  /**
+  * The number of recent directory changes kept for subscribers that resume
+  */
+  private static final int DIRECTORY_FEED_CAPACITY = 4096;
+
+  /**
+  * The number of callbacks that may be in flight to one client at once
+  */
+  private static final int CALLBACKS_PER_RECIPIENT = 4;
+
+  /**
+  * The resolution of delivery retries and lease expiry
+  */
+  private static final long TIMER_TICK_MILLIS = 10;
+
+  /**
+  * The lease a log-in holds, renewed by the client through {@link #renewLease}
+  */
+  private static final long LEASE_MILLIS = 15000;
+
+  /**
+  * The longest a poll waits for messages, kept below the default read timeout
+  * of {@link ChatSocketFactory} so that a waiting poll is not cut off
+  */
+  private static final long MAX_POLL_WAIT_MILLIS = 20000;
+
+  /**
+  * What the internal send and log-in methods return for a request whose eSID
+  * was seen before
+  */
+  private static final long PREVIOUSLY_RECEIVED = -1;
+
+  /**
+  * What the internal send methods return for a send naming a sender or
+  * recipient that does not exist. Such a send is refused before its eSID is
+  * recorded, so no name or inbox is ever made for it.
+  */
+  private static final long NO_SUCH_NAME = -2;
+
+  /**
+  * What the internal send methods return for a send whose eSID is older than
+  * the client's window, which may or may not have been received before
+  */
+  private static final long STALE_SEND = -3;
+
+  /**
+  * Pushes each change to either index to the subscribed clients. Changes are
+  * published under the same stripe as the index update, so changes to one
+  * name are numbered in the order they happened.
+  */
+  private final DirectoryFeed directoryFeed;
+
+  /**
+  * Records accounts, groups and saved messages so that they survive a
+  * restart, or {@code null} if this server keeps its state only in memory
+  */
+  private final ServerJournal journal;
+
+  /**
+  * How often the journal is checked to see whether a snapshot is due
+  */
+  private static final long SNAPSHOT_CHECK_SECONDS = 30;
+
+  /**
+  * The number of journal records written since the last snapshot that makes
+  * another one worth taking
+  */
+  private static final long SNAPSHOT_THRESHOLD = 100000;
+
+  /**
+  * Takes snapshots in the background, or {@code null} if there is no journal
+  */
+  private final ScheduledExecutorService snapshotter;
 
   // General
   // -------
@@ -57,19 +219,190 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
   * In this instantiation, the Server keeps track of users and clients that are currently
   * logged in. It keeps a queue of messages to send to users that are not currently
   * logged in, as well as information to associate accounts to groups.    
+  * All of this state is kept only in memory.
   */
   public Server() throws RemoteException {    
-    cUID = 0;
-    eSID = 0;
+    this((ServerJournal)null, null);
+  }
+
+  /**
+  * Creates a Server instance whose accounts, groups and undelivered messages are
+  * kept in a journal in the given directory.
+  * <p>
+  * Any state already journaled there is restored, from the latest snapshot plus
+  * the journal records written after it, before the server is returned.
+  * Each change is on disk before the call that made it returns; concurrent calls
+  * share a single disk flush.
+  *
+  * @param  journalDirectory where the journal is kept, or {@code null} to keep
+  *                          state only in memory
+  */
+  public Server(File journalDirectory) throws IOException {    
+    this(journalDirectory, null);
+  }
+
+  /**
+  * Creates a Server instance as {@link #Server(File)} does, exported through the
+  * given socket factory rather than RMI's default sockets.
+  *
+  * @param  journalDirectory where the journal is kept, or {@code null} to keep
+  *                          state only in memory
+  * @param  socketFactory    makes the sockets that clients call this server
+  *                          through, or {@code null} for RMI's defaults
+  */
+  public Server(File journalDirectory, ChatSocketFactory socketFactory) throws IOException {
+    this(journalDirectory == null ? null : new ServerJournal(journalDirectory), socketFactory);
+  }
+
+  private Server(ServerJournal journal, ChatSocketFactory socketFactory) throws RemoteException {    
+    super(0, socketFactory, socketFactory);
+    cUID = new AtomicInteger(0);
+    eSID = new AtomicInteger(0);
+    accountLocks = new StripedLock(Runtime.getRuntime().availableProcessors() * 16);
+    fanOutEngine = createFanOutEngine();
+    names = new NameDictionary();
+    outboundQueues = new ConcurrentHashMap<Integer,OutboundQueue>();
+    slowConsumerStats = new LatencyStats();
+    timerWheel = new TimerWheel(TIMER_TICK_MILLIS, 512, fanOutEngine);
        
-    loggedInUsers = new HashMap<String,List<Object>>();
-    loggedInClients =  new HashMap<Integer,List<Object>>();
-    messagesToSend = new HashMap<String,Set<List<Object>>>();
-    groupMessagesToSend = new HashMap<String,Set<List<Object>>>();
-    messagesReceived = new HashMap<Integer,Set<Integer>>();
+    loggedInUsers = new ConcurrentHashMap<Integer,AccountSession>();
+    loggedInClients =  new ConcurrentHashMap<Integer,ClientSession>();
+    inboxes = new ConcurrentHashMap<Integer,Inbox>();
+    parkedPolls = new ConcurrentHashMap<Integer,List<PendingPoll>>();
+    groupLogs = new ConcurrentHashMap<Integer,GroupLog>();
+    messagesReceived = new ConcurrentHashMap<Integer,EventWindow>();
+
+    accounts = ConcurrentHashMap.<Integer>newKeySet();
+    groups = new ConcurrentHashMap<Integer,int[]>();
+    //directory versions start from the clock so that they keep increasing
+    //across restarts, and a client's cached version is never mistaken for current
+    long initialVersion = System.currentTimeMillis() << 20;
+    accountIndex = new NameIndex(initialVersion);
+    groupIndex = new NameIndex(initialVersion);
+    directoryFeed = new DirectoryFeed(DIRECTORY_FEED_CAPACITY, initialVersion, fanOutEngine);
+    sweepReceiveWindows();
+
+    this.journal = journal;
+    if(journal != null) {
+      try {
+        int records = journal.replay(new JournalReplayer());
+        System.out.println("[System] Replayed " + records + " journal records");
+        recountGroupLogReferences();
+      }
+      catch(IOException e) {
+        throw new RemoteException("Could not replay the journal", e);
+      }
+      cUID.set(journal.getReservedLimit(ServerJournal.CLIENT_UID_COUNTER));
+      eSID.set(journal.getReservedLimit(ServerJournal.EVENT_SID_COUNTER));
+
+      snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable task) {
+          Thread thread = new Thread(task, "snapshotter");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      snapshotter.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          if(journal.getRecordsSinceSnapshot() >= SNAPSHOT_THRESHOLD) {
+            try {
+              writeSnapshot();
+            }
+            catch(IOException e) {
+              System.out.println("[System] Could not write a snapshot: " + e);
+            }
+          }
+        }
+      }, SNAPSHOT_CHECK_SECONDS, SNAPSHOT_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+    else {
+      snapshotter = null;
+    }
+  }
+
+  /**
+  * Stops taking snapshots, then flushes and closes the journal, if there is one.
+  */
+  public void shutdown() throws IOException {
+    if(journal != null) {
+      snapshotter.shutdown();
+      try {
+        snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      journal.close();
+    }
+  }
+
+  /**
+  * Writes a snapshot of this server's state and discards the journal
+  * segments it replaces, so that the next start-up need only load the
+  * snapshot and replay the records written after it.
+  * <p>
+  * Traffic is not stopped. Each account is copied while holding its stripe,
+  * and each group while holding the stripe for its name, so the snapshot
+  * holds every account and group as it was at some moment during the call.
+  * Changes made after an account or group was copied are replayed from the
+  * journal. Called periodically in the background once the journal has grown
+  * enough, but may also be called directly.
+  */
+  public synchronized void writeSnapshot() throws IOException {
+    if(journal == null) {
+      return;
+    }
+
+    long started = System.nanoTime();
+    ServerJournal.Snapshot snapshot = journal.beginSnapshot();
+    try {
+      //group logs go first, so that inboxes restored after them can refer to
+      //their entries
+      for(GroupLog groupLog : groupLogs.values()) {
+        synchronized(groupLog) {
+          snapshot.addGroupLog(groupLog);
+        }
+      }
+
+      Set<Integer> accountIds = new HashSet<Integer>(accounts);
+      accountIds.addAll(inboxes.keySet());
+      for(int accountId : accountIds) {
+        Lock accountLock = accountLocks.lockFor(accountId);
+        accountLock.lock();
+        try {
+          snapshot.addAccount(names.nameOf(accountId), accounts.contains(accountId), inboxes.get(accountId));
+        }
+        finally {
+          accountLock.unlock();
+        }
+      }
+
+      for(int groupId : new ArrayList<Integer>(groups.keySet())) {
+        Lock groupLock = accountLocks.lockFor(groupId);
+        groupLock.lock();
+        try {
+          int[] memberIds = groups.get(groupId);
+          if(memberIds != null) {
+            snapshot.addGroup(names.nameOf(groupId), namesOf(memberIds));
+          }
+        }
+        finally {
+          groupLock.unlock();
+        }
+      }
+
+      for(Map.Entry<Integer, EventWindow> window : messagesReceived.entrySet()) {
+        snapshot.addWindow(window.getKey(), window.getValue());
+      }
+    }
+    catch(IOException e) {
+      snapshot.abandon();
+      throw e;
+    }
 
-    accounts = new HashSet<String>();
-    groups = new HashMap<String,Set<String>>();
+    int deleted = snapshot.commit();
+    System.out.println("[System] Wrote a snapshot in " +
+        (System.nanoTime() - started) / 1000000 + " ms; removed " + deleted + " journal segments");
   }
 
   /**
@@ -79,11 +412,103 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
   * Event Sequence IDs are generated in sending a message to 
   * either an individual or a group). Using an event 
   * sequence ID allows us to ignore duplicate events received on by a client.  
+  * <p>
+  * This may wait for the journal to make a new block of IDs durable, so it
+  * must not be called while holding an account's stripe.
   *  
   * @return         the latest event sequence ID integer  
   */
-  private int nextEventSID() {
-    return eSID++;
+  private int nextEventSID() throws RemoteException {
+    int next = eSID.getAndIncrement();
+    if(journal != null) {
+      try {
+        journal.reserve(ServerJournal.EVENT_SID_COUNTER, next);
+      }
+      catch(IOException e) {
+        throw new RemoteException("Could not write to the journal", e);
+      }
+    }
+    return next;
+  }
+
+  /**
+  * Waits for a journal record to reach disk. Called after releasing any
+  * stripes, so that other calls can add their records to the same flush.
+  *
+  * @param  seq           the record's sequence number, or {@code 0} if nothing
+  *                       was journaled
+  */
+  private void awaitJournal(long seq) throws RemoteException {
+    if(journal != null && seq > 0) {
+      try {
+        journal.awaitDurable(seq);
+      }
+      catch(IOException e) {
+        throw new RemoteException("Could not write to the journal", e);
+      }
+    }
+  }
+
+  /**
+  * Creates the engine that makes callbacks to clients: on virtual threads if
+  * the system property {@code chat.virtualThreads} is {@code true} and the JVM
+  * has them, and otherwise on a bounded pool of platform threads.
+  */
+  private static FanOutEngine createFanOutEngine() {
+    if(Boolean.getBoolean("chat.virtualThreads")) {
+      try {
+        return FanOutEngine.withVirtualThreads(CALLBACKS_PER_RECIPIENT);
+      }
+      catch(UnsupportedOperationException e) {
+        System.out.println("[System] Using platform threads for callbacks: " + e.getMessage());
+      }
+    }
+    return new FanOutEngine(Runtime.getRuntime().availableProcessors() * 4,
+        CALLBACKS_PER_RECIPIENT);
+  }
+
+  /**
+  * Returns the engine that delivers group messages, whose latency statistics
+  * describe how long fan-outs take to complete.
+  *
+  * @return         this server's group fan-out engine
+  */
+  public FanOutEngine getFanOutEngine() {
+    return fanOutEngine;
+  }
+
+  /**
+  * Returns how long each period in which a recipient fell behind lasted, from
+  * its outbound queue filling up until the messages stored meanwhile had all
+  * been pushed.
+  *
+  * @return         the durations of this server's slow-consumer periods
+  */
+  public LatencyStats getSlowConsumerStats() {
+    return slowConsumerStats;
+  }
+
+  /**
+  * Returns the number of messages waiting in an account's outbound queue.
+  *
+  * @param  accountName   the account name
+  * @return               the queue's depth, or {@code 0} if it has none
+  */
+  public int getOutboundQueueDepth(String accountName) {
+    OutboundQueue queue = outboundQueues.get(names.lookup(accountName));
+    return queue == null ? 0 : queue.size();
+  }
+
+  /**
+  * Returns the total time an account's outbound queue has spent behind, with
+  * new messages stored instead of queued.
+  *
+  * @param  accountName   the account name
+  * @return               the time spent behind, in milliseconds
+  */
+  public long getMillisBehind(String accountName) {
+    OutboundQueue queue = outboundQueues.get(names.lookup(accountName));
+    return queue == null ? 0 : queue.getMillisBehind();
   }
 
   /**
@@ -95,7 +520,92 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
   * @return         the latest client user ID integer  
   */
   public int getClientUID() throws RemoteException {
-    return cUID++;
+    int next = cUID.getAndIncrement();
+    if(journal != null) {
+      try {
+        journal.reserve(ServerJournal.CLIENT_UID_COUNTER, next);
+      }
+      catch(IOException e) {
+        throw new RemoteException("Could not write to the journal", e);
+      }
+    }
+    receivedESIDsFor(next);
+    if(journal != null) {
+      //opens the window again on replay
+      journal.windowAdvanced(next, -1);
+    }
+    return next;
+  }
+
+  /**
+  * Returns the window of eSIDs received from a client, opening it if needed.
+  * Called only where the client is known to be live: when its cUID is issued
+  * and when it logs in.
+  *
+  * @param  cUID          an integer identifying the client
+  * @return               the recent eSIDs received from that client
+  */
+  private EventWindow receivedESIDsFor(int cUID) {
+    EventWindow receivedESIDs = messagesReceived.get(cUID);
+    if(receivedESIDs == null) {
+      EventWindow newESIDs = new EventWindow(RECEIVE_WINDOW_SIZE);
+      receivedESIDs = messagesReceived.putIfAbsent(cUID, newESIDs);
+      if(receivedESIDs == null) {
+        receivedESIDs = newESIDs;
+      }
+    }
+    return receivedESIDs;
+  }
+
+  /**
+  * Records a message send's eSID, reporting whether it should be carried out.
+  * <p>
+  * A client issues eSIDs in increasing order, so an eSID that has fallen out of
+  * the window belongs to a request the server handled (or the client gave up
+  * on) long ago. Such replays are refused like recent duplicates, but are
+  * reported as {@code STALE}, since the server cannot tell whether it saw
+  * them. So is every send from a client whose window has been dropped, since
+  * nothing is left to tell its replays from its new sends; the client must
+  * log in again.
+  *
+  * @param  cUID          an integer identifying the sending client
+  * @param  eSID          the eSID of the message send
+  * @return               {@code NEW} if the send should be carried out
+  */
+  private EventWindow.Result recordSend(int cUID, int eSID) {
+    EventWindow receivedESIDs = messagesReceived.get(cUID);
+    EventWindow.Result result = receivedESIDs == null
+        ? EventWindow.Result.STALE : receivedESIDs.record(eSID);
+    if(result != EventWindow.Result.NEW) {
+      return result;
+    }
+    if(journal != null) {
+      //a stored copy's record follows this one, so awaiting it covers both;
+      //a send pushed straight to a client is no more durable than its delivery
+      journal.sendReceived(cUID, eSID);
+    }
+    return result;
+  }
+
+  /**
+  * Drops the eSID windows of clients that are not logged in and have sent
+  * nothing for {@link #RECEIVE_WINDOW_IDLE_MILLIS}, then checks again after
+  * {@link #RECEIVE_WINDOW_SWEEP_MILLIS}. Windows outlive log-outs, so that a
+  * send replayed after the client has logged out is still recognized.
+  */
+  private void sweepReceiveWindows() {
+    timerWheel.schedule(new Runnable() {
+      public void run() {
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(RECEIVE_WINDOW_IDLE_MILLIS);
+        for(Map.Entry<Integer, EventWindow> window : messagesReceived.entrySet()) {
+          if(!loggedInClients.containsKey(window.getKey()) &&
+              window.getValue().getIdleNanos() > idleNanos) {
+            messagesReceived.remove(window.getKey(), window.getValue());
+          }
+        }
+        sweepReceiveWindows();
+      }
+    }, RECEIVE_WINDOW_SWEEP_MILLIS);
   }
 
   /**
@@ -108,11 +618,25 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
   * @return         a boolean representing if the account name was added successfully 
   */  
   public boolean createAccount(String accountName) throws RemoteException{
-    if(accounts.contains(accountName)) {
-      return false;
+    long seq = 0;
+    int accountId = names.idFor(accountName);
+    Lock accountLock = accountLocks.lockFor(accountId);
+    accountLock.lock();
+    try {
+      //the concurrent set's add is an atomic check-and-insert
+      if(!accounts.add(accountId)) {
+        return false;
+      }
+      indexAccount(accountId);
+      if(journal != null) {
+        seq = journal.accountCreated(accountName);
+      }
+    }
+    finally {
+      accountLock.unlock();
     }
 
-    accounts.add(accountName);
+    awaitJournal(seq);
     return true;
   };
   
@@ -128,7 +652,24 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
   * @return         a 'true' boolean if the operation was successful
   */  
   public boolean createGroup(String groupName, Set<String> memberNames) throws RemoteException {
-    groups.put(groupName, memberNames);
+    long seq = 0;
+    int groupId = names.idFor(groupName);
+    //store a private array of member IDs that senders iterate without locking
+    int[] memberIds = idsFor(memberNames);
+    Lock groupLock = accountLocks.lockFor(groupId);
+    groupLock.lock();
+    try {
+      groups.put(groupId, memberIds);
+      indexGroup(groupId);
+      if(journal != null) {
+        seq = journal.groupCreated(groupName, namesOf(memberIds));
+      }
+    }
+    finally {
+      groupLock.unlock();
+    }
+
+    awaitJournal(seq);
     return true;
   }
 
@@ -143,11 +684,28 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
   * @return         a boolean representing if the account name was deleted successfully 
   */ 
   public boolean deleteAccount(String accountName) throws RemoteException {
-    if(accounts.contains(accountName)) {
-      accounts.remove(accountName);
-      return true;
+    long seq = 0;
+    int accountId = names.lookup(accountName);
+    if(accountId == NameDictionary.NO_ID) {
+      return false;
+    }
+    Lock accountLock = accountLocks.lockFor(accountId);
+    accountLock.lock();
+    try {
+      if(!accounts.remove(accountId)) {
+        return false;
+      }
+      unindexAccount(accountId);
+      if(journal != null) {
+        seq = journal.accountDeleted(accountName);
+      }
+    }
+    finally {
+      accountLock.unlock();
     }
-    return false;
+
+    awaitJournal(seq);
+    return true;
   }
 
   /**
@@ -160,11 +718,28 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
   * @return         a boolean representing if the group was deleted successfully 
   */ 
   public boolean deleteGroup(String groupName) throws RemoteException {
-    if(groups.containsKey(groupName)) {
-      groups.remove(groupName);
-      return true;
+    long seq = 0;
+    int groupId = names.lookup(groupName);
+    if(groupId == NameDictionary.NO_ID) {
+      return false;
+    }
+    Lock groupLock = accountLocks.lockFor(groupId);
+    groupLock.lock();
+    try {
+      if(groups.remove(groupId) == null) {
+        return false;
+      }
+      unindexGroup(groupId);
+      if(journal != null) {
+        seq = journal.groupDeleted(groupName);
+      }
     }
-    return false;
+    finally {
+      groupLock.unlock();
+    }
+
+    awaitJournal(seq);
+    return true;
   }
   
   /**
@@ -177,133 +752,538 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
   * @return         a list of all accounts which we have registered or logged in on this server
   */ 
   public Set<String> getAccountsList() throws RemoteException {
-    return accounts;
+    //an immutable snapshot, rebuilt only after the directory changes
+    return accountIndex.snapshot().names;
   }
   
   public Set<String> getAccountsList(String pattern) throws RemoteException {
-    return accounts;
+    return getAccountsList(pattern, DEFAULT_LIST_LIMIT);
+  }
+
+  /**
+  * Gets the accounts whose names match a pattern, using the account index
+  * rather than scanning every account.
+  *
+  * @param  pattern       a pattern in which {@code *} matches any run of characters
+  *                       and {@code ?} matches any one character
+  * @param  limit         the largest number of names to return
+  * @return               at most {@code limit} matching account names
+  */
+  public Set<String> getAccountsList(String pattern, int limit) throws RemoteException {
+    return accountIndex.match(pattern, limit);
   }
 
   /**
   * Gets a list of all groups which have been created
   * <p>
-  * Because we cannot return a more complicated keySet, this method
-  * loops through all of the group names in our record of groups, and 
-  * returns a list of these names.
+  * Rather than copying every group name on each call, this method returns an
+  * immutable snapshot of the group directory, which is rebuilt only after a
+  * group is created or deleted.
   *  
   * @return         a list of all group names
   */ 
   public Set<String> getGroupsList() throws RemoteException {
-    Set<String> keys = groups.keySet();
-    Set<String> cleanedKeys = new HashSet<String>();
-        for(String key: keys){
-          cleanedKeys.add(key);            
-        }
-
-    return cleanedKeys;
+    return groupIndex.snapshot().names;
   }
 
   public Set<String> getGroupsList(String pattern) throws RemoteException {
-    return groups.keySet();
+    return getGroupsList(pattern, DEFAULT_LIST_LIMIT);
   }
 
   /**
-  * Logs a given client and account name in .
-  * <p>
-  * This method checks for redundancy in the login request, and then
-  * logs in a specified client and account name. We start by checking if the
-  * same exact client user ID and account name combination are already logged in;
-  * if so, there is no need to log in again. We also check that the current eSID (event ID)
-  * is greater than the previoue eSID, which lets us order events for each client. This allows
-  * us to process the latest command each client says.
+  * Gets the groups whose names match a pattern, using the group index rather
+  * than scanning every group.
   *
-  * If this client user ID (cUID) is already logged in, then we must remove the account
-  * name previously associated with this cUID. We log that account out, notify them of
-  * the logout, and then log in with the currently supplied <code>accountName</code>.
-  *
-  * If this accountName is already logged in, then we find the client currently associated
-  * with this accountName. We notify the previous client of the logout, and then log in
-  * with the currently supplied  <code>cUID</code>.
+  * @param  pattern       a pattern in which {@code *} matches any run of characters
+  *                       and {@code ?} matches any one character
+  * @param  limit         the largest number of names to return
+  * @return               at most {@code limit} matching group names
+  */
+  public Set<String> getGroupsList(String pattern, int limit) throws RemoteException {
+    return groupIndex.match(pattern, limit);
+  }
+
+  /**
+  * Gets the account directory if it has changed since a given version.
   *
-  * @param  cUID          an integer identifying the current client user ID
-  * @param  eSID          the event sequence ID from the client
-  * @param  client        the ClientInterface used to communicate to this client
-  * @param  accountName   the accountName we wish to log in with
-  * @return               a boolean representing whether the login was successful or not  
+  * @param  knownVersion  the version of the caller's copy
+  * @return               the current snapshot, or {@code null} if the caller's
+  *                       copy is current
+  */
+  public DirectorySnapshot getAccountsIfNewer(long knownVersion) throws RemoteException {
+    return accountIndex.snapshotIfNewer(knownVersion);
+  }
+
+  /**
+  * Gets the group directory if it has changed since a given version.
+  *
+  * @param  knownVersion  the version of the caller's copy
+  * @return               the current snapshot, or {@code null} if the caller's
+  *                       copy is current
+  */
+  public DirectorySnapshot getGroupsIfNewer(long knownVersion) throws RemoteException {
+    return groupIndex.snapshotIfNewer(knownVersion);
+  }
+
+  /**
+  * Gets one page of the account names, in sorted order, from the account index.
+  *
+  * @param  pageToken     {@code null} for the first page, or the token from the
+  *                       previous page
+  * @param  pageSize      the largest number of names to return, capped at
+  *                       {@code MAX_PAGE_SIZE}
+  * @return               the page
+  */
+  public NamePage getAccountsPage(String pageToken, int pageSize) throws RemoteException {
+    return page(accountIndex, pageToken, pageSize);
+  }
+
+  /**
+  * Gets one page of the group names, in sorted order, from the group index.
+  *
+  * @param  pageToken     {@code null} for the first page, or the token from the
+  *                       previous page
+  * @param  pageSize      the largest number of names to return, capped at
+  *                       {@code MAX_PAGE_SIZE}
+  * @return               the page
+  */
+  public NamePage getGroupsPage(String pageToken, int pageSize) throws RemoteException {
+    return page(groupIndex, pageToken, pageSize);
+  }
+
+  /**
+  * Reads a page from an index. The token is the last name of the previous page,
+  * so each page resumes where the last left off even if names changed between
+  * calls. A full page is given a token, so the last page may come back empty.
+  */
+  private NamePage page(NameIndex index, String pageToken, int pageSize) {
+    int size = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+    List<String> pageNames = index.namesAfter(pageToken, size);
+    String nextPageToken = pageNames.size() < size ? null : pageNames.get(pageNames.size() - 1);
+    return new NamePage(pageNames, nextPageToken);
+  }
+
+  /**
+  * Subscribes a client to directory changes, resuming after {@code afterSeq}
+  * if the feed still holds the changes that follow it.
+  *
+  * @param  cUID          an integer identifying the current client user ID
+  * @param  client        the client to send changes to
+  * @param  afterSeq      the last change the client has applied, or {@code -1}
+  * @return               the sequence number the subscription starts after
+  */
+  public long subscribeToDirectory(int cUID, ClientInterface client, long afterSeq)
+      throws RemoteException {
+    return directoryFeed.subscribe(cUID, client, afterSeq);
+  }
+
+  /**
+  * Stops sending directory changes to a client.
+  *
+  * @param  cUID          an integer identifying the current client user ID
+  * @return               a {@code true} boolean if the client was subscribed
+  */
+  public boolean unsubscribeFromDirectory(int cUID) throws RemoteException {
+    return directoryFeed.unsubscribe(cUID);
+  }
+
+  /**
+  * Adds an account to the index and publishes the change if it is new. Called
+  * under the account's stripe.
+  */
+  private void indexAccount(int accountId) {
+    String accountName = names.nameOf(accountId);
+    if(accountIndex.add(accountName)) {
+      directoryFeed.publish(DirectoryChange.Type.ACCOUNT_CREATED, accountName);
+    }
+  }
+
+  /**
+  * Removes an account from the index and publishes the change if it was
+  * there. Called under the account's stripe.
+  */
+  private void unindexAccount(int accountId) {
+    String accountName = names.nameOf(accountId);
+    if(accountIndex.remove(accountName)) {
+      directoryFeed.publish(DirectoryChange.Type.ACCOUNT_DELETED, accountName);
+    }
+  }
+
+  /**
+  * Adds a group to the index and publishes the change if it is new. Called
+  * under the group's stripe.
+  */
+  private void indexGroup(int groupId) {
+    String groupName = names.nameOf(groupId);
+    if(groupIndex.add(groupName)) {
+      directoryFeed.publish(DirectoryChange.Type.GROUP_CREATED, groupName);
+    }
+  }
+
+  /**
+  * Removes a group from the index and publishes the change if it was there.
+  * Called under the group's stripe.
+  */
+  private void unindexGroup(int groupId) {
+    String groupName = names.nameOf(groupId);
+    if(groupIndex.remove(groupName)) {
+      directoryFeed.publish(DirectoryChange.Type.GROUP_DELETED, groupName);
+    }
+  }
+
+  /**
+  * Logs a given client and account name in .
+  * <p>
+  * This method checks for redundancy in the login request, and then
+  * logs in a specified client and account name. We start by checking if the
+  * same exact client user ID and account name combination are already logged in;
+  * if so, there is no need to log in again. We also check that the current eSID (event ID)
+  * is greater than the previoue eSID, which lets us order events for each client. This allows
+  * us to process the latest command each client says.
+  *
+  * If this client user ID (cUID) is already logged in, then we must remove the account
+  * name previously associated with this cUID. We log that account out, notify them of
+  * the logout, and then log in with the currently supplied <code>accountName</code>.
+  *
+  * If this accountName is already logged in, then we find the client currently associated
+  * with this accountName. We notify the previous client of the logout, and then log in
+  * with the currently supplied  <code>cUID</code>.
+  *
+  * @param  cUID          an integer identifying the current client user ID
+  * @param  eSID          the event sequence ID from the client
+  * @param  client        the ClientInterface used to communicate to this client
+  * @param  accountName   the accountName we wish to log in with
+  * @return               a boolean representing whether the login was successful or not  
   */
   public boolean logIn(int cUID, int eSID, ClientInterface client, String accountName) throws RemoteException {        
-    if(!accounts.contains(accountName)) {
+    int accountId = names.lookup(accountName);
+    if(accountId == NameDictionary.NO_ID || !accounts.contains(accountId)) {
       throw new RemoteException();
     }
 
-    //if we are logged in with the same cUID and accountName as before, this is
+    long seq;
+    while(true) {
+      //lock both the requested account and any account this client is leaving
+      ClientSession clientInfoBeforeLock = loggedInClients.get(cUID);
+      int previousAccountId = clientInfoBeforeLock == null ? NameDictionary.NO_ID : clientInfoBeforeLock.accountId;
+      accountLocks.lockAll(accountId, previousAccountId);
+      try {
+        //the client may have moved accounts while we waited; if so, relock
+        if(loggedInClients.get(cUID) != clientInfoBeforeLock) {
+          continue;
+        }
+        seq = logInLocked(cUID, eSID, client, accountId, previousAccountId);
+        break;
+      }
+      finally {
+        accountLocks.unlockAll(accountId, previousAccountId);
+      }
+    }
+    if(seq == PREVIOUSLY_RECEIVED) {
+      return false;
+    }
+
+    //an account created by this log-in must be on disk before it is acknowledged
+    awaitJournal(seq);
+    return true;
+  }
+
+  /**
+  * Performs a log-in while holding the stripes for both accounts involved.
+  * <p>
+  * Session maps are updated before any client is notified, so that a kicked
+  * client asking for its login status from within {@code notifyOfLogOut} sees
+  * the new state.
+  *
+  * @return               the sequence number of the journal record to await
+  *                       before acknowledging the log-in, {@code 0} if none, or
+  *                       {@link #PREVIOUSLY_RECEIVED} for a redundant log-in
+  */
+  private long logInLocked(int cUID, int eSID, ClientInterface client, int accountId,
+      int previousAccountId) throws RemoteException {
+    //if we are logged in with the same cUID and account as before, this is
     //redundant, so we can return false immediately
-    if(loggedInClients.containsKey(cUID) && loggedInUsers.containsKey(accountName)) {
-      String previousAccountName = (String)loggedInClients.get(cUID).get(0);
-      int previousESID = (int)loggedInClients.get(cUID).get(1);
-      int previousCUID = (int)loggedInUsers.get(accountName).get(0);
+    if(previousAccountId != NameDictionary.NO_ID && loggedInUsers.containsKey(accountId)) {
+      int previousESID = loggedInClients.get(cUID).eSID;
+      int previousCUID = loggedInUsers.get(accountId).cUID;
 
-      if(previousAccountName.equals(accountName) && previousCUID==cUID && previousESID >= eSID) {
-        return false;
+      if(previousAccountId == accountId && previousCUID==cUID && previousESID >= eSID) {
+        return PREVIOUSLY_RECEIVED;
       }
     }
 
-    if(loggedInClients.containsKey(cUID)) {
-      //if the cUID is logged in, get the previous account name and eSID
-      String previousAccountName = (String)loggedInClients.get(cUID).get(0);      
-      ClientInterface previousClientForCUID = (ClientInterface)loggedInUsers.get(previousAccountName).get(1);
-      
-      previousClientForCUID.notifyOfLogOut();      
+    ClientInterface previousClientForCUID = null;
+    if(previousAccountId != NameDictionary.NO_ID) {
+      //if the cUID is logged in, release the account it was logged into
+      AccountSession previousAccountInfo = loggedInUsers.get(previousAccountId);
+      if(previousAccountInfo != null && previousAccountInfo.cUID == cUID) {
+        loggedInUsers.remove(previousAccountId);
+        previousClientForCUID = previousAccountInfo.client;
+      }
     }
 
     //we are keying the loggedInUsers with the account ID    
-    if(loggedInUsers.containsKey(accountName)) {
-      //if the account is logged in, get the previous cUID and client
-      int previousCUID = (int)loggedInUsers.get(accountName).get(0);
-      ClientInterface previousClientForAccount = (ClientInterface)loggedInUsers.get(accountName).get(1); 
-
-      previousClientForAccount.notifyOfLogOut();                           
-    }    
+    ClientInterface previousClientForAccount = null;
+    AccountSession previousInfoForAccount = loggedInUsers.get(accountId);
+    if(previousInfoForAccount != null) {
+      //if the account is logged in by another client, that client loses it
+      int previousCUID = previousInfoForAccount.cUID;
+      if(previousCUID != cUID) {
+        loggedInClients.remove(previousCUID);
+        previousClientForAccount = previousInfoForAccount.client;
+      }
+    }
 
     //if the client is not logged in, log them in
-    List<Object> accountInfo = Arrays.asList(cUID, client);
-    loggedInUsers.put(accountName, accountInfo);
+    loggedInUsers.put(accountId, new AccountSession(cUID, client));
       
     //also update the user account for this client
-    List<Object> clientInfo = Arrays.asList(accountName, eSID);
-    loggedInClients.put(cUID, clientInfo);      
+    ClientSession session = new ClientSession(accountId, eSID,
+        TimeUnit.MILLISECONDS.toNanos(LEASE_MILLIS));
+    loggedInClients.put(cUID, session);
+    watchLease(cUID, session);
 
-    accounts.add(accountName);
+    //sends issued before this log-in can no longer be new
+    receivedESIDsFor(cUID).advanceTo(eSID);
+    if(journal != null) {
+      journal.windowAdvanced(cUID, eSID);
+    }
 
-    return true;
+    long seq = 0;
+    if(accounts.add(accountId)) {
+      indexAccount(accountId);
+      if(journal != null) {
+        seq = journal.accountCreated(names.nameOf(accountId));
+      }
+    }
+
+    if(previousClientForCUID != null) {
+      notifyOfLogOut(previousClientForCUID);
+    }
+    if(previousClientForAccount != null) {
+      notifyOfLogOut(previousClientForAccount);
+    }
+
+    return seq;
   }
 
+  /**
+  * Starts sending an account's stored messages to the client logged into it.
+  * <p>
+  * The replay is handed to the account's outbound queue, which takes the
+  * stored messages back a batch at a time and pushes them like any other
+  * delivery, so the account's stripe is held only while each batch is taken
+  * and never across a callback. Until the replay is done, new messages for
+  * the account are stored behind the old ones. Returns without waiting for
+  * the messages to arrive. A client that polls fetches its stored messages
+  * with its polls instead.
+  */
   public boolean getUndeliveredMessages(ClientInterface client, String accountName) throws RemoteException{
-    //check if there are undelivered messages for this client, and send them if so
-    if(messagesToSend.containsKey(accountName)) {
-      Set<List<Object>> messageList = messagesToSend.get(accountName);
+    int accountId = names.lookup(accountName);
+    if(accountId == NameDictionary.NO_ID) {
+      //nothing was ever sent to this name
+      return true;
+    }
+    Inbox inbox = inboxes.get(accountId);
+    if(inbox != null) {
+      outboundQueueFor(accountId).replayStored();
+    }
+    return true;
+  }
 
-      for(List message : messageList) {        
-        client.messageFromAccount((int)message.get(0), (String)message.get(1), (String)message.get(2), (String)message.get(3), (int)message.get(4));
-        messageList.remove(message);
+  /**
+  * Returns the messages held for a polling client's account after its
+  * cursor, waiting up to {@link #MAX_POLL_WAIT_MILLIS} for one to arrive.
+  * The caller's thread waits for {@link #pollMessagesAsync} to answer; no
+  * lock is held meanwhile, so sends to the account are not held up.
+  *
+  * @param  cUID          an integer identifying the current client user ID
+  * @param  cursor        the cursor returned by the client's previous poll
+  * @param  maxMessages   the largest number of messages to return
+  * @param  timeoutMillis the longest time to wait for a message
+  * @return               the messages after the cursor, oldest first
+  */
+  public MessageBatch pollMessages(int cUID, long cursor, int maxMessages,
+      long timeoutMillis) throws RemoteException {
+    try {
+      return pollMessagesAsync(cUID, cursor, maxMessages, timeoutMillis).get();
+    }
+    catch(ExecutionException e) {
+      if(e.getCause() instanceof RemoteException) {
+        throw (RemoteException) e.getCause();
       }
+      throw new RemoteException("Poll failed", e.getCause());
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted while polling", e);
+    }
+  }
+
+  /**
+  * Starts a poll without holding a thread while it waits. A poll that finds
+  * no messages is parked on its account and run again when one is stored
+  * for the account, or when its wait runs out.
+  */
+  public CompletableFuture<MessageBatch> pollMessagesAsync(int cUID, long cursor,
+      int maxMessages, long timeoutMillis) {
+    long waitMillis = Math.max(0, Math.min(timeoutMillis, MAX_POLL_WAIT_MILLIS));
+    PendingPoll poll = new PendingPoll(cUID, cursor,
+        Math.max(1, Math.min(maxMessages, OutboundQueue.MAX_BATCH_SIZE)),
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis));
+    poll.run();
+    return poll.result;
+  }
 
-      messagesToSend.put(accountName, messageList);
+  /**
+  * A poll waiting for messages. It is run when made, again whenever a message
+  * is stored for its account while it is parked, and by its {@link #timeout}
+  * once its wait runs out; the first run that finds messages, or finds the
+  * wait over, answers it and later runs do nothing.
+  */
+  private final class PendingPoll implements Runnable {
+    final int cUID;
+    final long cursor;
+    final int maxMessages;
+    final long deadlineNanos;
+    final AtomicBoolean answered = new AtomicBoolean();
+    final CompletableFuture<MessageBatch> result = new CompletableFuture<MessageBatch>();
+
+    /** whether the timeout is scheduled and has not yet run */
+    final AtomicBoolean timing = new AtomicBoolean();
+
+    final Runnable timeout = new Runnable() {
+      public void run() {
+        timing.set(false);
+        answerPoll(PendingPoll.this);
+      }
+    };
+
+    PendingPoll(int cUID, long cursor, int maxMessages, long deadlineNanos) {
+      this.cUID = cUID;
+      this.cursor = cursor;
+      this.maxMessages = maxMessages;
+      this.deadlineNanos = deadlineNanos;
     }
 
-    //check if there are undelivered group messages for this client, and send them if so
-    if(groupMessagesToSend.containsKey(accountName)) {
-      Set<List<Object>> messageList = groupMessagesToSend.get(accountName);
+    public void run() {
+      answerPoll(this);
+    }
+  }
 
-      for(List message : messageList) {
-        client.messageFromGroup((int)message.get(0), (String)message.get(1), (String)message.get(2), (String)message.get(3), (String)message.get(4), (int)message.get(5));
-        messageList.remove(message);
+  /**
+  * Runs a poll: confirms what the client's earlier polls returned, then
+  * answers with the messages after them, or parks the poll if there are none
+  * and its wait is not over. The answer is completed after the account's
+  * stripe is released.
+  */
+  private void answerPoll(PendingPoll poll) {
+    if(poll.answered.get()) {
+      return;
+    }
+    ClientSession clientInfo = loggedInClients.get(poll.cUID);
+    if(clientInfo == null) {
+      if(poll.answered.compareAndSet(false, true)) {
+        poll.result.completeExceptionally(
+            new RemoteException("Client " + poll.cUID + " is not logged in"));
       }
+      return;
+    }
+    //a client that polls is alive
+    clientInfo.renewLease(TimeUnit.MILLISECONDS.toNanos(LEASE_MILLIS));
 
-      groupMessagesToSend.put(accountName, messageList);
-    } 
+    long seq = 0;
+    Message[] batch = null;
+    long nextCursor = 0;
+    boolean parked = false;
+    int accountId = clientInfo.accountId;
+    Lock accountLock = accountLocks.lockFor(accountId);
+    accountLock.lock();
+    try {
+      //the cursor confirms what earlier polls returned, but never more: a
+      //cursor past the last batch returned would confirm messages never sent.
+      //a cursor behind the inbox's comes from a repeated poll, which is served
+      //from the inbox's cursor
+      Inbox inbox = inboxFor(accountId);
+      seq = confirmInbox(accountId, inbox,
+          Math.min(poll.cursor, clientInfo.getPollCursor()));
 
-    return true;
+      Message[] read = inbox.read(poll.maxMessages);
+      if(read.length == 0 && System.nanoTime() - poll.deadlineNanos < 0) {
+        parkPoll(accountId, poll);
+        parked = true;
+      }
+      else if(poll.answered.compareAndSet(false, true)) {
+        unparkPoll(accountId, poll);
+        batch = read;
+        nextCursor = inbox.getCursor() + read.length;
+        clientInfo.setPollCursor(nextCursor);
+      }
+    }
+    finally {
+      accountLock.unlock();
+    }
+
+    //the wheel may run a timeout up to a tick early, so one that finds time
+    //left is scheduled again
+    if(parked && poll.timing.compareAndSet(false, true)) {
+      long remainingNanos = poll.deadlineNanos - System.nanoTime();
+      timerWheel.schedule(poll.timeout, TimeUnit.NANOSECONDS.toMillis(remainingNanos) + 1);
+    }
+
+    try {
+      awaitJournal(seq);
+    }
+    catch(RemoteException e) {
+      if(batch != null) {
+        poll.result.completeExceptionally(e);
+        return;
+      }
+      System.out.println("[System] Could not journal a poll's confirmation: " + e);
+    }
+    if(batch != null) {
+      poll.result.complete(new MessageBatch(batch, nextCursor));
+    }
+  }
+
+  /**
+  * Parks a poll until a message is stored for an account. Callers must hold
+  * the account's stripe.
+  */
+  private void parkPoll(int accountId, PendingPoll poll) {
+    List<PendingPoll> parked = parkedPolls.get(accountId);
+    if(parked == null) {
+      parked = new ArrayList<PendingPoll>();
+      parkedPolls.put(accountId, parked);
+    }
+    if(!parked.contains(poll)) {
+      parked.add(poll);
+    }
+  }
+
+  /**
+  * Drops a poll answered while parked. Callers must hold the account's stripe.
+  */
+  private void unparkPoll(int accountId, PendingPoll poll) {
+    List<PendingPoll> parked = parkedPolls.get(accountId);
+    if(parked != null && parked.remove(poll) && parked.isEmpty()) {
+      parkedPolls.remove(accountId);
+    }
+  }
+
+  /**
+  * Hands the polls parked on an account to the fan-out engine to run again,
+  * now that a message has been stored for it. Callers must hold the
+  * account's stripe.
+  */
+  private void wakePolls(int accountId) {
+    List<PendingPoll> parked = parkedPolls.remove(accountId);
+    if(parked == null) {
+      return;
+    }
+    for(PendingPoll poll : parked) {
+      fanOutEngine.execute(poll);
+    }
   }
 
   /**
@@ -325,34 +1305,128 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
   * @return               a boolean representing whether the logout was successful or not  
   */
   public boolean logOut(int cUID, int eSID, String accountName) throws RemoteException {
-    //if the user is logged in, and eSID has increased, log them out
-    if(loggedInClients.containsKey(cUID)) {
-      String previousAccountName = (String)loggedInClients.get(cUID).get(0);      
-      int previousESID = (int)loggedInClients.get(cUID).get(1);        
+    ClientInterface previousClient;
+
+    int accountId = names.lookup(accountName);
+    if(accountId == NameDictionary.NO_ID) {
+      return false;
+    }
+    Lock accountLock = accountLocks.lockFor(accountId);
+    accountLock.lock();
+    try {
+      //if the user is logged in, and eSID has increased, log them out
+      ClientSession clientInfo = loggedInClients.get(cUID);
+      if(clientInfo == null) {
+        return false;
+      }
+
+      int previousAccountId = clientInfo.accountId;      
+      int previousESID = clientInfo.eSID;        
 
-      if(!previousAccountName.equals(accountName) || eSID <= previousESID) {
+      if(previousAccountId != accountId || eSID <= previousESID) {
         return false;
       }
 
-      ClientInterface previousClient = (ClientInterface)loggedInUsers.get(accountName).get(1);   
-      previousClient.notifyOfLogOut();
+      previousClient = loggedInUsers.get(accountId).client;   
 
       //remove the account from logged in users
-      loggedInUsers.remove(accountName);
+      loggedInUsers.remove(accountId);
 
-      //remove the client id from logged in clients
+      //remove the client id from logged in clients; the account itself stays,
+      //so that messages sent to it are stored until its next log-in
       loggedInClients.remove(cUID);
-
-      //remove the client from accounts
-      accounts.remove(accountName);
     }
-    else {
-      return false;
+    finally {
+      accountLock.unlock();
     }
 
+    notifyOfLogOut(previousClient);
     return true;
   }
 
+  /**
+  * Tells a client that it has been logged out, from the fan-out engine, so
+  * that the caller does not wait a round trip on it. A client that cannot be
+  * reached has nothing to be told.
+  */
+  private void notifyOfLogOut(final ClientInterface client) {
+    if(client == null) {
+      //a polling client learns of it from its next poll
+      return;
+    }
+    fanOutEngine.execute(new Runnable() {
+      public void run() {
+        fanOutEngine.beginCallback(client);
+        try {
+          client.notifyOfLogOut();
+        }
+        catch(RemoteException e) {
+          System.out.println("[System] Could not notify a client of its log-out: " + e);
+        }
+        finally {
+          fanOutEngine.endCallback(client);
+        }
+      }
+    });
+  }
+
+  /**
+  * Checks a session's lease once it is due to run out, and again after each
+  * renewal pushes that back, until the lease runs out or the session ends.
+  * <p>
+  * Renewing only moves the deadline, so each session has one check pending
+  * on the timer wheel at a time, and no sweep visits the sessions still in
+  * good standing.
+  */
+  private void watchLease(final int cUID, final ClientSession session) {
+    long delayMillis = TimeUnit.NANOSECONDS.toMillis(session.getLeaseRemainingNanos());
+    timerWheel.schedule(new Runnable() {
+      public void run() {
+        if(loggedInClients.get(cUID) != session) {
+          //logged out, or replaced by a log-in that has its own check
+          return;
+        }
+        if(session.getLeaseRemainingNanos() > 0) {
+          watchLease(cUID, session);
+          return;
+        }
+        expireLease(cUID, session);
+      }
+    }, delayMillis + 1);
+  }
+
+  /**
+  * Logs out a client whose lease has run out. The client is presumed dead,
+  * so it is not notified and its account is kept, and new messages for the
+  * account are stored at once instead of waiting on its connection.
+  */
+  private void expireLease(int cUID, ClientSession session) {
+    Lock accountLock = accountLocks.lockFor(session.accountId);
+    accountLock.lock();
+    try {
+      //a renewal or a new log-in may have come in meanwhile
+      if(loggedInClients.get(cUID) != session || session.getLeaseRemainingNanos() > 0) {
+        if(loggedInClients.get(cUID) == session) {
+          watchLease(cUID, session);
+        }
+        return;
+      }
+
+      loggedInClients.remove(cUID);
+      AccountSession accountInfo = loggedInUsers.get(session.accountId);
+      if(accountInfo != null && accountInfo.cUID == cUID) {
+        loggedInUsers.remove(session.accountId);
+      }
+    }
+    finally {
+      accountLock.unlock();
+    }
+
+    directoryFeed.unsubscribe(cUID);
+    System.out.println("[System] Lease expired for " + names.nameOf(session.accountId) +
+        " (client " + cUID + ")");
+  }
+
   /**
   * Checks the login status of a given client user ID
   * <p>
@@ -365,14 +1439,36 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
   */  
   public String getLoginStatus(int cUID) throws RemoteException {
     //check if the cUID is in loggedInClients, and get accountName if so
-    if(loggedInClients.containsKey(cUID)) {
-      return (String)loggedInClients.get(cUID).get(0);
+    //
+    //this takes no lock: clients call it from inside notifyOfLogOut, while the
+    //server may still hold the stripe for their account
+    ClientSession clientInfo = loggedInClients.get(cUID);
+    if(clientInfo != null) {
+      return names.nameOf(clientInfo.accountId);
     }
     else {
       return "";
     }
   }
 
+  /**
+  * Renews the lease on a client's log-in for another {@link #LEASE_MILLIS}.
+  *
+  * @param  cUID          an integer identifying the current client user ID
+  * @return               the lease length, or 0 if the cUID is not logged in
+  */
+  public long renewLease(int cUID) throws RemoteException {
+    //this takes no lock: a renewal racing an expiry either lands before the
+    //expiry rechecks the lease under the stripe, or finds the session gone
+    //when it looks again
+    ClientSession clientInfo = loggedInClients.get(cUID);
+    if(clientInfo == null) {
+      return 0;
+    }
+    clientInfo.renewLease(TimeUnit.MILLISECONDS.toNanos(LEASE_MILLIS));
+    return loggedInClients.get(cUID) == clientInfo ? LEASE_MILLIS : 0;
+  }
+
   /**
   * Sends a message to a given individual account
   * <p>
@@ -382,9 +1478,10 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
   * If a message with this specific event sequence ID has already been received from this
   * specific client ID, we don't send the message, and return false instead.
   *
-  * If the requested recipient name is currently logged in, then we send the message to them
-  * immediately. If they are not currently logged in, then we save the message to
-  * send to the recipient once they log in.
+  * If the requested recipient name is currently logged in, then we add the message to
+  * their outbound queue, which pushes it to them in the next batch. If they are not
+  * currently logged in, then we save the message to send to the recipient once they
+  * log in.
   *
   * Finally, we store the fact that we have received the message with this eSID 
   * from the given client user ID.
@@ -404,40 +1501,289 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
   public boolean sendMessageToAccount(int cUID, int eSID, String senderName,
       String recipientName, String message, int timestamp)
       throws RemoteException {
-      //check if this message has been received
-      if(messagesReceived.containsKey(cUID)) {
-        if(messagesReceived.get(cUID).contains(eSID)) {
-          return false;
-        }        
-      }
-
-      //lookup the client based on recipientName
-      if(loggedInUsers.containsKey(recipientName)) {
-        ClientInterface recipientClient = (ClientInterface)loggedInUsers.get(recipientName).get(1);
-        recipientClient.messageFromAccount(nextEventSID(), senderName, recipientName, message, timestamp);
-      }
-      else {
-        //otherwise, save this message to send later
-        //messages to send is a set of messages keyed by accountName
-        if(!messagesToSend.containsKey(recipientName)) {
-          messagesToSend.put(recipientName, new HashSet<List<Object>>());
+      long seq = queueMessageToAccount(cUID, eSID, senderName, recipientName,
+          message, timestamp);
+      if(seq == PREVIOUSLY_RECEIVED || seq == STALE_SEND) {
+        return false;
+      }
+      if(seq == NO_SUCH_NAME) {
+        throw noSuchName(senderName, recipientName, false);
+      }
+
+      //an offline message must be on disk before the sender is told it was accepted
+      awaitJournal(seq);
+      return true;
+  }
+
+  /**
+  * Accepts a message to an account without waiting for the journal.
+  *
+  * @return               the sequence number of the journal record to await
+  *                       before acknowledging the send, {@code 0} if none,
+  *                       {@link #PREVIOUSLY_RECEIVED} for a duplicate,
+  *                       {@link #STALE_SEND} for an eSID older than the window,
+  *                       or {@link #NO_SUCH_NAME} if the sender is unknown or
+  *                       the recipient is not an account
+  */
+  private long queueMessageToAccount(int cUID, int eSID, String senderName,
+      String recipientName, String message, int timestamp)
+      throws RemoteException {
+      //names come from the caller, so they are looked up rather than assigned
+      //IDs, which would let any caller grow the dictionary and the inboxes
+      int senderId = names.lookup(senderName);
+      int recipientId = names.lookup(recipientName);
+      if(senderId == NameDictionary.NO_ID || recipientId == NameDictionary.NO_ID ||
+          !accounts.contains(recipientId)) {
+        return NO_SUCH_NAME;
+      }
+
+      //check if this message has been received, and record it atomically if not
+      EventWindow.Result received = recordSend(cUID, eSID);
+      if(received != EventWindow.Result.NEW) {
+        return received == EventWindow.Result.STALE ? STALE_SEND : PREVIOUSLY_RECEIVED;
+      }
+
+      //taken before the stripe, since it may wait for the journal
+      int eventSID = nextEventSID();
+
+      long seq = 0;
+      DirectMessage newMessage;
+      OutboundQueue deliveryQueue = null;
+      Lock recipientLock = accountLocks.lockFor(recipientId);
+      recipientLock.lock();
+      try {
+        //lookup the client based on recipientName, storing the canonical copies of both names
+        newMessage = new DirectMessage(eventSID, names.nameOf(senderId),
+            names.nameOf(recipientId), message, timestamp);
+        if(acceptsPush(recipientId)) {
+          //a pushed message is not journaled, so it is only as durable as its
+          //delivery; it reaches the journal only if it falls back to the inbox
+          deliveryQueue = outboundQueueFor(recipientId);
+        }
+        else {
+          //otherwise, save this message to send later, or once a recipient
+          //that has fallen behind catches up
+          //the inbox is an ordered log of messages keyed by account ID
+          seq = saveToInbox(recipientId, newMessage);
         }
-        Set<List<Object>> previousMessagesToSendForAccount = messagesToSend.get(recipientName);
-        List<Object> newMessage = Arrays.asList(nextEventSID(), senderName, recipientName, message, timestamp);    
-        previousMessagesToSendForAccount.add(newMessage);
+      }
+      finally {
+        recipientLock.unlock();
+      }
 
-        messagesToSend.put(recipientName, previousMessagesToSendForAccount);
+      //enqueue outside the stripe, as for a group, since enqueueing may start
+      //a drain
+      if(deliveryQueue != null) {
+        deliveryQueue.enqueue(newMessage, null);
       }
-      
-      //adds this message to the list of received messages
-      if(!messagesReceived.containsKey(cUID)) {
-        messagesReceived.put(cUID, new HashSet<Integer>());
+      return seq;
+  }
+
+  /**
+  * Returns whether new messages for an account should be pushed through its
+  * outbound queue rather than stored: a client that accepts callbacks is
+  * logged into it, and the queue has not fallen behind. Callers must hold the
+  * account's stripe.
+  */
+  private boolean acceptsPush(int accountId) {
+    AccountSession session = loggedInUsers.get(accountId);
+    return session != null && session.client != null &&
+        !outboundQueueFor(accountId).isBehind();
+  }
+
+  /**
+  * Returns the outbound queue for an account, creating it if needed.
+  */
+  private OutboundQueue outboundQueueFor(int accountId) {
+    OutboundQueue queue = outboundQueues.get(accountId);
+    if(queue == null) {
+      OutboundQueue newQueue = new OutboundQueue(accountId, fanOutEngine, outboundSink,
+          slowConsumerStats, timerWheel);
+      queue = outboundQueues.putIfAbsent(accountId, newQueue);
+      if(queue == null) {
+        queue = newQueue;
       }
-      Set<Integer> previousESIDs = messagesReceived.get(cUID);
-      previousESIDs.add(eSID);
-      messagesReceived.put(cUID, previousESIDs);
+    }
+    return queue;
+  }
 
-      return true;
+  /**
+  * Saves a message to send when the recipient next logs in, journaling it if
+  * this server has a journal. Callers must hold the recipient's stripe.
+  *
+  * @return               the journal record's sequence number, or {@code 0}
+  */
+  private long saveToInbox(int recipientId, Message message) {
+    inboxFor(recipientId).append(message);
+    wakePolls(recipientId);
+    return journal == null ? 0 : journal.messageSaved(message);
+  }
+
+  /**
+  * Removes an account's stored messages before a position, other than any
+  * already removed. Callers must hold the account's stripe.
+  *
+  * @param  end           the position after the last message to remove
+  * @return               the journal record's sequence number, or {@code 0}
+  */
+  private long confirmInbox(int accountId, Inbox inbox, long end) {
+    long confirmed = Math.min(end - inbox.getCursor(), inbox.size());
+    if(confirmed <= 0) {
+      return 0;
+    }
+    inbox.confirm((int) confirmed);
+    return journal == null ? 0 : journal.inboxConfirmed(names.nameOf(accountId), (int) confirmed);
+  }
+
+  /**
+  * Pushes batches drained from the outbound queues to whichever client is
+  * logged into the recipient account.
+  * <p>
+  * The callback is made without holding the recipient's stripe, so that new
+  * messages can be queued (and coalesced into the next batch) while it is in
+  * flight. If the recipient has logged out the batch is saved to send later;
+  * if the callback fails the queue retries it, and saves it only once its
+  * attempts run out.
+  * <p>
+  * Messages saved while the recipient's queue was behind, or while it was
+  * offline, are read back from its inbox once the queue drains or a replay
+  * is asked for. They stay in the inbox, and in the journal, until the
+  * client has them, so a batch that cannot be delivered stays at the head
+  * of the inbox and a crash before delivery loses nothing.
+  */
+  private final OutboundQueue.Sink outboundSink = new OutboundQueue.Sink() {
+    public OutboundQueue.Outcome deliverBatch(int recipientId, long firstSeq,
+        Message[] batch, boolean stored) {
+      AccountSession recipientInfo = loggedInUsers.get(recipientId);
+      if(recipientInfo == null || recipientInfo.client == null) {
+        if(!stored) {
+          storeBatch(recipientId, batch);
+        }
+        return OutboundQueue.Outcome.STORED;
+      }
+
+      fanOutEngine.beginCallback(recipientInfo.client);
+      try {
+        recipientInfo.client.messagesFromServer(firstSeq, batch);
+        return OutboundQueue.Outcome.DELIVERED;
+      }
+      catch(RemoteException e) {
+        System.out.println("[System] Could not deliver to " + names.nameOf(recipientId) + ": " + e);
+        return OutboundQueue.Outcome.FAILED;
+      }
+      finally {
+        fanOutEngine.endCallback(recipientInfo.client);
+      }
+    }
+
+    public void storeBatch(int recipientId, Message[] batch) {
+      String recipientName = names.nameOf(recipientId);
+      long seq = 0;
+      Lock recipientLock = accountLocks.lockFor(recipientId);
+      recipientLock.lock();
+      try {
+        for(Message message : batch) {
+          seq = saveToInbox(recipientId, message);
+        }
+      }
+      finally {
+        recipientLock.unlock();
+      }
+
+      try {
+        awaitJournal(seq);
+      }
+      catch(RemoteException e) {
+        System.out.println("[System] Could not journal messages for " + recipientName + ": " + e);
+      }
+    }
+
+    public MessageBatch takeStored(int recipientId, int max) {
+      MessageBatch batch = new MessageBatch(new Message[0], 0);
+      Lock recipientLock = accountLocks.lockFor(recipientId);
+      recipientLock.lock();
+      try {
+        //a recipient that has logged out is sent its inbox at its next log-in,
+        //and one that has logged back in to poll fetches it
+        AccountSession recipientInfo = loggedInUsers.get(recipientId);
+        Inbox inbox = inboxes.get(recipientId);
+        if(recipientInfo != null && recipientInfo.client != null && inbox != null && !inbox.isEmpty()) {
+          //the batch is left in the inbox until the queue confirms it
+          Message[] read = inbox.read(max);
+          batch = new MessageBatch(read, inbox.getCursor() + read.length);
+        }
+        else {
+          //nothing can be stored for the recipient while its stripe is held,
+          //so new messages go straight to the queue from here on
+          outboundQueues.get(recipientId).markCaughtUp();
+        }
+      }
+      finally {
+        recipientLock.unlock();
+      }
+      return batch;
+    }
+
+    public void confirmStored(int recipientId, long end) {
+      Lock recipientLock = accountLocks.lockFor(recipientId);
+      recipientLock.lock();
+      try {
+        //a client that has since logged in to poll may have confirmed some
+        Inbox inbox = inboxes.get(recipientId);
+        if(inbox != null) {
+          confirmInbox(recipientId, inbox, end);
+        }
+      }
+      finally {
+        recipientLock.unlock();
+      }
+    }
+  };
+
+  /**
+  * Returns the inbox of undelivered messages for an account, creating it if
+  * needed. Callers must hold the account's stripe while using the inbox.
+  */
+  private Inbox inboxFor(int accountId) {
+    Inbox inbox = inboxes.get(accountId);
+    if(inbox == null) {
+      inbox = new Inbox(names.nameOf(accountId));
+      inboxes.put(accountId, inbox);
+    }
+    return inbox;
+  }
+
+  /**
+  * Returns the canonical copy of a name, assigning it an ID if needed, so
+  * that stored messages share one copy of each name.
+  */
+  private String canonicalName(String name) {
+    return names.nameOf(names.idFor(name));
+  }
+
+  /**
+  * Returns the sorted, distinct IDs for a set of names, assigning IDs as
+  * needed.
+  */
+  private int[] idsFor(Set<String> memberNames) {
+    int[] ids = new int[memberNames.size()];
+    int count = 0;
+    for(String memberName : memberNames) {
+      ids[count++] = names.idFor(memberName);
+    }
+    Arrays.sort(ids);
+    return ids;
+  }
+
+  /**
+  * Returns the names for a list of IDs, for replies and the journal.
+  */
+  private Set<String> namesOf(int[] ids) {
+    Set<String> memberNames = new HashSet<String>(ids.length * 2);
+    for(int id : ids) {
+      memberNames.add(names.nameOf(id));
+    }
+    return memberNames;
   }
   
   /**
@@ -450,9 +1796,13 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
   * specific client ID, we don't send the message, and return false instead.
   *
   * For each recipient in the group, we check if the the requested recipient name 
-  * is currently logged in, or not. If they are, then we send the message to them
-  * immediately. If they are not currently logged in, then we save the message to
-  * send to the recipient once they log in.
+  * is currently logged in, or not. If they are, then their copy is handed to the
+  * fan-out engine, which delivers it on a worker thread. If they are not currently
+  * logged in, then we save the message to send to the recipient once they log in.
+  * The message is stored once in the group's log however many members are offline,
+  * and each offline member's inbox refers to it by position.
+  * We return once every copy has been handed off or saved, without waiting for
+  * the deliveries themselves.
   *
   * Finally, we store the fact that we have received the message with this eSID 
   * from the given client user ID.
@@ -468,48 +1818,314 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
   */
   public boolean sendMessageToGroup(int cUID, int eSID, String senderName,
       String groupName, String message, int timestamp) throws RemoteException {
-      //check if this message has been received
-      if(messagesReceived.containsKey(cUID)) {
-        if(messagesReceived.get(cUID).contains(eSID)) {
-          return false;
-        }        
+      long seq = queueMessageToGroup(cUID, eSID, senderName, groupName,
+          message, timestamp);
+      if(seq == PREVIOUSLY_RECEIVED || seq == STALE_SEND) {
+        return false;
+      }
+      if(seq == NO_SUCH_NAME) {
+        throw noSuchName(senderName, groupName, true);
       }
 
-      //lookup the client based on recipientName
-      //TODO: error checking here
-      Set<String> groupMembers = groups.get(groupName);
+      //offline copies must be on disk before the sender is told it was accepted
+      awaitJournal(seq);
+      return true;
+  }
 
-      for (String recipientName : groupMembers) {
+  /**
+  * Returns the exception for a send refused with {@link #NO_SUCH_NAME},
+  * naming whichever of its names does not resolve.
+  */
+  private RemoteException noSuchName(String senderName, String recipientName,
+      boolean toGroup) {
+    if(names.lookup(senderName) == NameDictionary.NO_ID) {
+      return new RemoteException("No account named " + senderName);
+    }
+    return new RemoteException((toGroup ? "No group named " : "No account named ") + recipientName);
+  }
+
+  /**
+  * Accepts a message to a group without waiting for the journal, handing the
+  * logged-in members' copies to their outbound queues.
+  *
+  * @return               the sequence number of the journal record to await
+  *                       before acknowledging the send, {@code 0} if none,
+  *                       {@link #PREVIOUSLY_RECEIVED} for a duplicate,
+  *                       {@link #STALE_SEND} for an eSID older than the window,
+  *                       or {@link #NO_SUCH_NAME} if the sender or the group is
+  *                       unknown
+  */
+  private long queueMessageToGroup(int cUID, int eSID, String senderName,
+      String groupName, String message, int timestamp)
+      throws RemoteException {
+      //the members are read once, so a group deleted from here on is still
+      //sent to as it was
+      int senderId = names.lookup(senderName);
+      int groupId = names.lookup(groupName);
+      int[] groupMembers = groupId == NameDictionary.NO_ID ? null : groups.get(groupId);
+      if(senderId == NameDictionary.NO_ID || groupMembers == null) {
+        return NO_SUCH_NAME;
+      }
+
+      //check if this message has been received, and record it atomically if not
+      EventWindow.Result received = recordSend(cUID, eSID);
+      if(received != EventWindow.Result.NEW) {
+        return received == EventWindow.Result.STALE ? STALE_SEND : PREVIOUSLY_RECEIVED;
+      }
+
+      //every member's copy shares one eSID; offline members share one stored copy
+      GroupMessage shared = new GroupMessage(nextEventSID(), names.nameOf(groupId),
+          names.nameOf(senderId), null, message, timestamp);
+      GroupLog groupLog = null;
+      long position = -1;
+      long seq = 0;
+
+      List<GroupMessage> deliveries = new ArrayList<GroupMessage>();
+      List<OutboundQueue> deliveryQueues = new ArrayList<OutboundQueue>();
+      for (int recipientId : groupMembers) {
         //check that users don't group message themselves
-        if(!recipientName.equals(senderName)) {
-          //lookup the client based on recipientName
-          if(loggedInUsers.containsKey(recipientName)) {
-            ClientInterface recipientClient = (ClientInterface)loggedInUsers.get(recipientName).get(1);
-            recipientClient.messageFromGroup(nextEventSID(), groupName, senderName, recipientName, message, timestamp);
+        if(recipientId == senderId) {
+          continue;
+        }
+
+        //each member is locked separately so that a large group does not hold
+        //up unrelated accounts
+        Lock recipientLock = accountLocks.lockFor(recipientId);
+        recipientLock.lock();
+        try {
+          if(acceptsPush(recipientId)) {
+            deliveries.add(shared.forRecipient(names.nameOf(recipientId)));
+            deliveryQueues.add(outboundQueueFor(recipientId));
+            continue;
           }
-          else {
-            //otherwise, save this message to send later
-            //messages to send is a set of messages keyed by accountName
-            if(!groupMessagesToSend.containsKey(recipientName)) {
-              groupMessagesToSend.put(recipientName, new HashSet<List<Object>>());
-            }
-            Set<List<Object>> previousMessagesToSendForAccount = groupMessagesToSend.get(recipientName);
-            List<Object> newMessage = Arrays.asList(nextEventSID(), groupName, senderName, recipientName, message, timestamp);
-            previousMessagesToSendForAccount.add(newMessage);
 
-            groupMessagesToSend.put(recipientName, previousMessagesToSendForAccount);
+          //otherwise, queue the stored copy to send later, storing it on first
+          //use; a member that has fallen behind is sent it when it catches up
+          if(groupLog == null) {
+            groupLog = groupLogFor(groupId);
+            position = appendToGroupLog(groupLog, shared);
           }
+          inboxFor(recipientId).appendGroup(groupLog, position, position + 1);
+          wakePolls(recipientId);
+          if(journal != null) {
+            seq = Math.max(seq, journal.groupMessagesQueued(names.nameOf(recipientId),
+                shared.groupName, position, position + 1));
+          }
+        }
+        finally {
+          recipientLock.unlock();
+        }
+      }
+
+      if(groupLog != null) {
+        //drop the reference held while queueing; the members' inboxes hold theirs
+        groupLog.release(position, position + 1);
+      }
+
+      //hand the logged-in members' copies to their outbound queues
+      Runnable onDelivered = fanOutEngine.startFanOut(deliveries.size());
+      for (int i = 0; i < deliveries.size(); i++) {
+        deliveryQueues.get(i).enqueue(deliveries.get(i), onDelivered);
+      }
+      return seq;
+  }
+
+  /**
+  * Sends many messages in one call, for clients whose sends are limited by
+  * round trips rather than bandwidth.
+  * <p>
+  * Each entry is handled as {@link #sendMessageToAccount} or
+  * {@link #sendMessageToGroup} would handle it, in order, so messages to one
+  * recipient arrive in the order they are listed. Rather than waiting for the
+  * journal after every stored message, the call waits once, after the last
+  * entry, so the whole batch shares one flush. An entry that fails does not
+  * stop the rest.
+  *
+  * @param  cUID          an integer identifying the current client user ID
+  * @param  senderName    the account name the messages are being sent from
+  * @param  messages      the messages, each with its own eSID
+  * @return               each entry's result, in the same order
+  */
+  public OutgoingMessage.Result[] sendMessages(int cUID, String senderName,
+      OutgoingMessage[] messages) throws RemoteException {
+    if(messages.length > OutgoingMessage.MAX_BATCH_SIZE) {
+      throw new RemoteException("A batch may hold at most " + OutgoingMessage.MAX_BATCH_SIZE + " messages");
+    }
+
+    OutgoingMessage.Result[] results = new OutgoingMessage.Result[messages.length];
+    long seq = 0;
+    for (int i = 0; i < messages.length; i++) {
+      OutgoingMessage outgoing = messages[i];
+      try {
+        long entrySeq = outgoing.toGroup
+            ? queueMessageToGroup(cUID, outgoing.eSID, senderName,
+                outgoing.recipientName, outgoing.message, outgoing.timestamp)
+            : queueMessageToAccount(cUID, outgoing.eSID, senderName,
+                outgoing.recipientName, outgoing.message, outgoing.timestamp);
+        if(entrySeq == PREVIOUSLY_RECEIVED) {
+          results[i] = OutgoingMessage.Result.PREVIOUSLY_RECEIVED;
+        }
+        else if(entrySeq == STALE_SEND) {
+          results[i] = OutgoingMessage.Result.STALE;
+        }
+        else if(entrySeq == NO_SUCH_NAME) {
+          results[i] = OutgoingMessage.Result.FAILED;
+        }
+        else {
+          results[i] = OutgoingMessage.Result.SENT;
+          seq = Math.max(seq, entrySeq);
         }
       }
-     
-      //adds this message to the list of received messages
-      if(!messagesReceived.containsKey(cUID)) {
-        messagesReceived.put(cUID, new HashSet<Integer>());
+      catch(RemoteException | RuntimeException e) {
+        System.out.println("[System] Could not send message " + outgoing.eSID +
+            " to " + outgoing.recipientName + ": " + e);
+        results[i] = OutgoingMessage.Result.FAILED;
       }
-      Set<Integer> previousESIDs = messagesReceived.get(cUID);
-      previousESIDs.add(eSID);
-      messagesReceived.put(cUID, previousESIDs);
+    }
 
-      return true;
+    //every stored message in the batch must be on disk before any is acknowledged
+    awaitJournal(seq);
+    return results;
+  }
+
+  /**
+  * Returns the log of stored messages for a group, creating it if needed.
+  */
+  private GroupLog groupLogFor(int groupId) {
+    GroupLog groupLog = groupLogs.get(groupId);
+    if(groupLog == null) {
+      GroupLog newLog = new GroupLog(names.nameOf(groupId), 0);
+      groupLog = groupLogs.putIfAbsent(groupId, newLog);
+      if(groupLog == null) {
+        groupLog = newLog;
+      }
+    }
+    return groupLog;
+  }
+
+  /**
+  * Stores a group message once in its group's log, journaling it if this
+  * server has a journal. The caller holds one reference to the entry and must
+  * release it.
+  *
+  * @return               the message's position in the log
+  */
+  private long appendToGroupLog(GroupLog groupLog, GroupMessage shared) {
+    //journal under the log's monitor so that records are in position order
+    synchronized(groupLog) {
+      long position = groupLog.append(shared);
+      if(journal != null) {
+        journal.groupMessageLogged(position, shared);
+      }
+      return position;
+    }
+  }
+
+  /**
+  * Recounts the inbox ranges referring to each group log entry, and releases
+  * the entries none refer to. Replay restores logs and inboxes from a snapshot
+  * taken at different moments, so counts kept during replay are not reliable.
+  */
+  private void recountGroupLogReferences() {
+    for(GroupLog groupLog : groupLogs.values()) {
+      groupLog.clearReferences();
+    }
+    for(Inbox inbox : inboxes.values()) {
+      inbox.visit(new Inbox.Visitor() {
+        public void message(Message message) {
+        }
+
+        public void groupMessages(GroupLog groupLog, long from, long to) {
+          groupLog.retain(from, to);
+        }
+      });
+    }
+    for(GroupLog groupLog : groupLogs.values()) {
+      groupLog.release(0, 0);
+    }
+  }
+
+  /**
+  * Applies journaled changes while the server is being constructed, before
+  * it is reachable by any client, so no stripes are taken.
+  */
+  private class JournalReplayer implements ServerJournal.Replayer {
+    public void accountCreated(String accountName) {
+      int accountId = names.idFor(accountName);
+      accounts.add(accountId);
+      accountIndex.add(names.nameOf(accountId));
+    }
+
+    public void accountDeleted(String accountName) {
+      accounts.remove(names.idFor(accountName));
+      accountIndex.remove(accountName);
+    }
+
+    public void groupCreated(String groupName, Set<String> memberNames) {
+      int groupId = names.idFor(groupName);
+      groups.put(groupId, idsFor(memberNames));
+      groupIndex.add(names.nameOf(groupId));
+    }
+
+    public void groupDeleted(String groupName) {
+      groups.remove(names.idFor(groupName));
+      groupIndex.remove(groupName);
+    }
+
+    public void messageSaved(Message message) {
+      int recipientId = names.idFor(message.recipientName);
+      inboxFor(recipientId).append(canonicalCopy(message));
+    }
+
+    public void inboxConfirmed(String accountName, int count) {
+      inboxFor(names.idFor(accountName)).confirm(count);
+    }
+
+    public void groupMessageLogged(long position, GroupMessage shared) {
+      //a restored log may already hold this entry
+      GroupLog groupLog = groupLogFor(names.idFor(shared.groupName));
+      if(position >= groupLog.getEnd()) {
+        groupLog.append((GroupMessage) canonicalCopy(shared));
+      }
+    }
+
+    public void groupMessagesQueued(String accountName, String groupName, long from, long to) {
+      inboxFor(names.idFor(accountName)).appendGroup(groupLogFor(names.idFor(groupName)), from, to);
+    }
+
+    public void inboxRestored(String accountName, long cursor) {
+      int accountId = names.idFor(accountName);
+      inboxes.put(accountId, new Inbox(names.nameOf(accountId), cursor));
+    }
+
+    public void groupLogRestored(String groupName, long head) {
+      int groupId = names.idFor(groupName);
+      groupLogs.put(groupId, new GroupLog(names.nameOf(groupId), head));
+    }
+
+    public void windowRestored(int cUID, EventWindow window) {
+      messagesReceived.put(cUID, window);
+    }
+
+    public void sendReceived(int cUID, int eSID) {
+      receivedESIDsFor(cUID).record(eSID);
+    }
+
+    public void windowAdvanced(int cUID, int eSID) {
+      receivedESIDsFor(cUID).advanceTo(eSID);
+    }
+
+    /**
+    * Rebuilds a replayed message around the canonical copies of its names.
+    */
+    private Message canonicalCopy(Message message) {
+      String senderName = canonicalName(message.senderName);
+      String recipientName = message.recipientName == null ? null : canonicalName(message.recipientName);
+      if(message instanceof GroupMessage) {
+        return new GroupMessage(message.eSID, canonicalName(((GroupMessage) message).groupName),
+            senderName, recipientName, message.message, message.timestamp);
+      }
+      return new DirectMessage(message.eSID, senderName, recipientName, message.message, message.timestamp);
+    }
   }
 }
@@ -125,12 +125,16 @@ public interface ServerInterface extends Remote {
   * list of messageable users, for example.
   *
   * <p>
-  * Pattern-based account fetching is not currently supported.
+  * Given a pattern, returns only the accounts whose names match it. In a
+  * pattern, {@code *} matches any run of characters (including none), {@code ?}
+  * matches any one character, and every other character matches itself. The
+  * server answers from an index, so a client need not download every account to
+  * find a few. At most {@code limit} names are returned, or 1000 if no limit
+  * is given.
   *  
-  * @param pattern  optional. not currently supported. in the future, this will
-  *                 allow a client to get only those accounts matching a
-  *                 pattern.
-  * @return         a list of all accounts which we have registered or logged in
+  * @param pattern  optional. the pattern account names must match
+  * @param limit    optional. the largest number of names to return
+  * @return         a list of the accounts which we have registered or logged in
   *                 on this server
   */ 
   public Set<String> getAccountsList() throws RemoteException;
@@ -140,15 +144,22 @@ public interface ServerInterface extends Remote {
    */
   public Set<String> getAccountsList(String pattern) throws RemoteException;
 
+  /**
+   * {@see #getAccountsList}.
+   */
+  public Set<String> getAccountsList(String pattern, int limit)
+      throws RemoteException;
+
   /**
   * Get a list of all groups.
   *
   * <p>
-  * Pattern-based group fetching is not currently supported.
+  * Given a pattern, returns only the groups whose names match it, as for
+  * {@link #getAccountsList(String, int)}.
   *  
-  * @param pattern  optional. not currently supported. in the future, this will
-  *                 allow a client to get only those groups matching a pattern.
-  * @return         a list of all groups which have been created
+  * @param pattern  optional. the pattern group names must match
+  * @param limit    optional. the largest number of names to return
+  * @return         a list of the groups which have been created
   */ 
   public Set<String> getGroupsList() throws RemoteException;
 
@@ -157,6 +168,101 @@ public interface ServerInterface extends Remote {
    */
   public Set<String> getGroupsList(String pattern) throws RemoteException;
 
+  /**
+   * {@see #getGroupsList}.
+   */
+  public Set<String> getGroupsList(String pattern, int limit)
+      throws RemoteException;
+
+  /**
+  * Gets the account directory, unless the caller's copy is already current.
+  * <p>
+  * A client that lists accounts often can keep the last
+  * {@link DirectorySnapshot} it was sent and pass its version here. If no
+  * account has been created or deleted since, the reply is {@code null} and
+  * costs almost nothing to send. Pass {@code -1} to always get the directory.
+  *
+  * @param knownVersion  the version of the caller's copy
+  * @return              the current directory, or {@code null} if the caller's
+  *                      copy is current
+  */
+  public DirectorySnapshot getAccountsIfNewer(long knownVersion)
+      throws RemoteException;
+
+  /**
+  * Gets the group directory, unless the caller's copy is already current, as
+  * for {@link #getAccountsIfNewer}.
+  *
+  * @param knownVersion  the version of the caller's copy
+  * @return              the current directory, or {@code null} if the caller's
+  *                      copy is current
+  */
+  public DirectorySnapshot getGroupsIfNewer(long knownVersion)
+      throws RemoteException;
+
+  /**
+  * Gets one page of the account names, in sorted order.
+  * <p>
+  * Unlike {@link #getAccountsList()}, which returns every account in one
+  * reply, this lets a client stream a large directory in small pieces. Start
+  * with a {@code null} token and pass each page's
+  * {@link NamePage#nextPageToken} to get the next, until it is {@code null}.
+  * Accounts created or deleted meanwhile do not cause other accounts to be
+  * skipped or repeated.
+  *
+  * @param pageToken  {@code null} for the first page, or the token from the
+  *                   previous page
+  * @param pageSize   the largest number of names to return; the server may
+  *                   return fewer
+  * @return           the page
+  */
+  public NamePage getAccountsPage(String pageToken, int pageSize)
+      throws RemoteException;
+
+  /**
+  * Gets one page of the group names, in sorted order, as for
+  * {@link #getAccountsPage}.
+  *
+  * @param pageToken  {@code null} for the first page, or the token from the
+  *                   previous page
+  * @param pageSize   the largest number of names to return; the server may
+  *                   return fewer
+  * @return           the page
+  */
+  public NamePage getGroupsPage(String pageToken, int pageSize)
+      throws RemoteException;
+
+  /**
+  * Subscribes a client to account and group creations and deletions.
+  * <p>
+  * Changes are pushed in batches through
+  * {@link ClientInterface#directoryChanged}, so a client can keep a roster
+  * current without listing the directory again. A client that was subscribed
+  * before can pass the sequence number of the last change it applied to be
+  * sent the changes it missed. The server holds only recent changes, so the
+  * reply says where the subscription really starts: if it is not
+  * {@code afterSeq}, the client should load the directory afresh with
+  * {@link #getAccountsList()} and {@link #getGroupsList()} after subscribing.
+  * A later subscription for the same {@code cUID} replaces this one.
+  *
+  * @param cUID      an integer identifying the current client user ID
+  * @param client    the client to send changes to
+  * @param afterSeq  the last change the client has applied, or {@code -1} to
+  *                  start from the latest change
+  * @return          the sequence number of the last change the subscription
+  *                  starts after
+  */
+  public long subscribeToDirectory(int cUID, ClientInterface client,
+      long afterSeq) throws RemoteException;
+
+  /**
+  * Stops sending directory changes to a client.
+  *
+  * @param cUID      an integer identifying the current client user ID
+  * @return          a {@code true} boolean if the client was subscribed
+  */
+  public boolean unsubscribeFromDirectory(int cUID) throws RemoteException;
+
 
   // Log In, Log Out
   // ---------------
@@ -170,9 +276,16 @@ public interface ServerInterface extends Remote {
   * if it is received after a conflicting later request by the client
   * (determined by comparing the client's {@code eSID}), such as a log-out.
   *
+  * <p>
+  * A client that cannot accept callbacks, such as one behind NAT or a
+  * firewall, passes a {@code null} {@code client} and then fetches its
+  * messages with {@link #pollMessages}. Messages for its account are held for
+  * it as for an offline account.
+  *
   * @param  cUID          an integer identifying the current client user ID
   * @param  eSID          the event sequence ID from the client
-  * @param  client        the ClientInterface used to communicate to this client
+  * @param  client        the ClientInterface used to communicate to this
+  *                       client, or {@code null} to poll for messages instead
   * @param  accountName   the accountName we wish to log in with
   * @return               a {@code true} boolean if the login succeeded
   */
@@ -204,12 +317,28 @@ public interface ServerInterface extends Remote {
   */  
   public String getLoginStatus(int cUID) throws RemoteException;  
 
+  /**
+  * Renews the lease on a client's log-in.
+  * <p>
+  * A log-in holds a lease, granted by {@link #logIn} and extended by each
+  * renewal. A client whose lease runs out is taken to have crashed and is
+  * logged out without being notified, so that messages for its account are
+  * stored rather than sent to a client that will never answer. A logged-in
+  * client should therefore renew well within the lease it was last granted.
+  *
+  * @param  cUID          an integer identifying the current client user ID
+  * @return               the length of the renewed lease in milliseconds, or
+  *                       {@code 0} if the client is not logged in
+  */
+  public long renewLease(int cUID) throws RemoteException;
+
   /**
   * Receives the messages not yet delivered to the specified account.
   * <p>
   * Upon logging in, a {@code client} should ask for undelivered messages that
-  * were sent since the account was last logged in. This method returns those
-  * messages.
+  * were sent since the account was last logged in. This method starts sending
+  * those messages, oldest first and ahead of any sent later, through the
+  * client's usual callbacks, and returns without waiting for them to arrive.
   *
   * @param client         the client making the request
   * @param accountName    the account the client has logged into
@@ -217,6 +346,29 @@ public interface ServerInterface extends Remote {
   */
   public boolean getUndeliveredMessages(ClientInterface client, String accountName) throws RemoteException;
 
+  /**
+  * Fetches messages held for the account a client is logged into, waiting
+  * for some to arrive if there are none.
+  * <p>
+  * This lets a client receive messages without the server calling it back.
+  * The {@code cursor} is the {@link MessageBatch#nextCursor} of the last
+  * batch the client received, which confirms that batch, or {@code 0} for a
+  * first poll; the server never confirms past the last batch it returned to
+  * the client. The call returns as soon as there is at least one message
+  * after the cursor, or with an empty batch once the timeout passes. The
+  * server caps the wait, so that a call never outlasts a socket's read
+  * timeout. Each poll also renews the client's lease.
+  *
+  * @param  cUID          an integer identifying the current client user ID
+  * @param  cursor        the cursor returned by the previous poll
+  * @param  maxMessages   the largest number of messages to return
+  * @param  timeoutMillis the longest time to wait for a message
+  * @return               the messages after the cursor, oldest first
+  * @throws RemoteException if the client is not logged in
+  */
+  public MessageBatch pollMessages(int cUID, long cursor, int maxMessages,
+      long timeoutMillis) throws RemoteException;
+
 
   // Send Messages
   // -------------
@@ -229,6 +381,18 @@ public interface ServerInterface extends Remote {
   * Duplicate message sends are avoided by examining the client's {@code eSID},
   * and in this case a {@code false} boolean is returned to signal previous
   * receipt.
+  * The server remembers only a fixed window of each client's most recent
+  * {@code eSID}s; a send whose {@code eSID} is older than that window, or
+  * older than the client's latest log-in, is also treated as previously
+  * received. The window lasts across log-outs, but is dropped once the client
+  * has been logged out and silent for a long while; every send is then
+  * treated as previously received until the client logs in again.
+  * <p>
+  * A stored message is on disk before this returns {@code true}. A message
+  * being pushed to a logged-in recipient is not: it is held in memory until
+  * the recipient's client accepts it, and is lost if the server stops first,
+  * although the send has been acknowledged. It is written to disk only if the
+  * push fails and the message is stored instead.
   *
   * @param  cUID          an integer identifying the current client user ID
   * @param  eSID          the client's event sequence ID for this message send
@@ -239,6 +403,8 @@ public interface ServerInterface extends Remote {
   *                       created
   * @return               a {@code true} boolean if the server has registered
   *                       this message send for the first time.
+  * @throws RemoteException if the sender or recipient is not an existing
+  *                       account; the send is then not recorded
   */
   public boolean sendMessageToAccount(int cUID, int eSID, String senderName,
       String recipientName, String message, int timestamp)
@@ -257,6 +423,10 @@ public interface ServerInterface extends Remote {
   * log in. Duplicate message sends are avoided by examining the client's
   * {@code eSID}, and in this case a {@code false} boolean is returned to signal
   * previous receipt.
+  * This method returns once every member's copy has been accepted; it does
+  * not wait for deliveries to logged-in members to complete, and those copies
+  * are held only in memory until delivered, as for
+  * {@link #sendMessageToAccount}.
   *
   * <p>
   * Similar to {@link #sendMessageToAccount}.
@@ -269,7 +439,32 @@ public interface ServerInterface extends Remote {
   * @param  timestamp     the client-generated timestamp when this message was created
   * @return               a boolean representing true if the message was sent, and false if it
   *                       was already sent.
+  * @throws RemoteException if the sender is not an existing account or the
+  *                       group does not exist; the send is then not recorded
   */
   public boolean sendMessageToGroup(int cUID, int eSID, String senderName,
       String groupName, String message, int timestamp) throws RemoteException;
+
+  /**
+  * Sends many messages in one call.
+  * <p>
+  * Each entry is handled as {@link #sendMessageToAccount} or
+  * {@link #sendMessageToGroup} would handle it, in the order given, and
+  * duplicates are recognized by each entry's {@code eSID}. An entry that
+  * fails, for example because it names an account that does not exist, is
+  * given {@link OutgoingMessage.Result#FAILED} and does not stop the others.
+  * An entry whose {@code eSID} is older than the window of recent sends is
+  * given {@link OutgoingMessage.Result#STALE} rather than reported as
+  * previously received. Like the single sends, the call returns
+  * once every entry has been accepted and any stored copies are durable;
+  * copies being pushed are not.
+  *
+  * @param  cUID          an integer identifying the current client user ID
+  * @param  senderName    the account name the messages are being sent from
+  * @param  messages      at most {@link OutgoingMessage#MAX_BATCH_SIZE}
+  *                       messages
+  * @return               each entry's result, in the same order
+  */
+  public OutgoingMessage.Result[] sendMessages(int cUID, String senderName,
+      OutgoingMessage[] messages) throws RemoteException;
 }
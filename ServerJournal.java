@@ -0,0 +1,918 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * The durable record of a {@code Server}'s accounts, groups and undelivered
+ * messages.
+ * <p>
+ * Each change the server must not lose across a restart is written to a
+ * {@link WriteAheadLog} as a typed record, and on start-up the records are
+ * replayed through a {@link Replayer} to rebuild that state. Messages pushed
+ * straight to a logged-in client are not recorded; a message is recorded once
+ * it is saved to an account's inbox, and the inbox's delivery cursor is
+ * recorded as backlog replays are confirmed. Each send the server accepts is
+ * recorded by its client's {@code cUID} and {@code eSID}, as is each floor a
+ * log-in puts under a client's window, so that the duplicate-detection
+ * windows are rebuilt on replay and a send retried after a restart is still
+ * recognized. A group message waiting for
+ * offline members is recorded once, with its position in the group's
+ * {@link GroupLog}, and each member's inbox records only the positions queued
+ * for it; replaying a logged group message whose position the restored log
+ * already holds has no effect.
+ * <p>
+ * So that restarts do not slow down as the log grows, the server periodically
+ * writes a binary snapshot of its state with {@link #beginSnapshot}. Start-up
+ * then loads the latest snapshot and replays only the log written after it,
+ * and the log segments a snapshot covers are deleted. A snapshot is taken
+ * while traffic continues: each account and group is copied under its own
+ * lock, together with the log sequence number at that moment, and on replay
+ * only the later records for that account or group are applied.
+ * <p>
+ * The server's {@code cUID} and {@code eSID} counters are protected by
+ * reserving blocks of IDs in the log ahead of use. After a restart each
+ * counter resumes at the end of its last reserved block, so no ID handed out
+ * before the restart is reused.
+ * <p>
+ * Record methods only buffer the record and return its sequence number;
+ * callers that must not acknowledge a change before it is durable pass that
+ * number to {@link #awaitDurable}, ideally after releasing any locks, so that
+ * concurrent changes share one {@code fsync}.
+ */
+public class ServerJournal implements Closeable {
+  /** the counter index for client user IDs */
+  public static final int CLIENT_UID_COUNTER = 0;
+
+  /** the counter index for server event sequence IDs */
+  public static final int EVENT_SID_COUNTER = 1;
+
+  /** the number of IDs reserved by each counter record */
+  private static final int RESERVATION_BLOCK = 1 << 16;
+
+  private static final String LOG_DIRECTORY = "log";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String SNAPSHOT_SUFFIX = ".snap";
+  private static final int SNAPSHOT_MAGIC = 0x524d4353;
+  private static final int SNAPSHOT_VERSION = 2;
+
+  private static final byte ACCOUNT_CREATED = 1;
+  private static final byte ACCOUNT_DELETED = 2;
+  private static final byte GROUP_CREATED = 3;
+  private static final byte GROUP_DELETED = 4;
+  private static final byte MESSAGE_SAVED = 5;
+  private static final byte INBOX_CONFIRMED = 6;
+  private static final byte COUNTER_RESERVED = 7;
+  private static final byte GROUP_MESSAGE_LOGGED = 8;
+  private static final byte GROUP_MESSAGES_QUEUED = 9;
+  private static final byte SEND_RECEIVED = 10;
+  private static final byte WINDOW_ADVANCED = 11;
+
+  private static final byte DIRECT_MESSAGE = 0;
+  private static final byte GROUP_MESSAGE = 1;
+
+  private static final byte SNAPSHOT_END = 0;
+  private static final byte SNAPSHOT_ACCOUNT = 1;
+  private static final byte SNAPSHOT_GROUP = 2;
+  private static final byte SNAPSHOT_WINDOW = 3;
+  private static final byte SNAPSHOT_GROUP_LOG = 4;
+
+  private static final byte INBOX_END = 0;
+  private static final byte INBOX_MESSAGE = 1;
+  private static final byte INBOX_GROUP_MESSAGES = 2;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final File directory;
+  private final WriteAheadLog log;
+
+  /** the first ID not yet covered by a reservation, per counter */
+  private final int[] reservedLimits = new int[2];
+
+  /**
+  * the sequence number of each counter's latest reservation record, or
+  * {@code 0} once that record is known to be durable; guarded by this
+  */
+  private final long[] reservationSeqs = new long[2];
+
+  /**
+  * the first ID not covered by a reservation known to be durable, per
+  * counter, while a later reservation is not yet known to be; guarded by this
+  */
+  private final int[] durableLimits = new int[2];
+
+  /** the last log sequence number covered by the latest snapshot */
+  private volatile long snapshotSeq;
+
+  /**
+  * Rebuilds server state from a snapshot and the records replayed after it.
+  */
+  public interface Replayer {
+    public void accountCreated(String accountName);
+    public void accountDeleted(String accountName);
+    public void groupCreated(String groupName, Set<String> memberNames);
+    public void groupDeleted(String groupName);
+    public void messageSaved(Message message);
+    public void inboxConfirmed(String accountName, int count);
+
+    /**
+    * Stores a group message once in its group's log.
+    *
+    * @param  position      the message's position in the group log
+    * @param  shared        the message, with no recipient
+    */
+    public void groupMessageLogged(long position, GroupMessage shared);
+
+    /**
+    * Queues a range of a group log's messages in an account's inbox.
+    */
+    public void groupMessagesQueued(String accountName, String groupName,
+        long from, long to);
+
+    /**
+    * Restores an empty inbox from a snapshot, before its entries and any
+    * later records for the account are replayed.
+    */
+    public void inboxRestored(String accountName, long cursor);
+
+    /**
+    * Restores an empty group log from a snapshot, before its entries are
+    * replayed.
+    */
+    public void groupLogRestored(String groupName, long head);
+
+    /**
+    * Restores a client's duplicate-detection window from a snapshot.
+    */
+    public void windowRestored(int cUID, EventWindow window);
+
+    /**
+    * Records a send's {@code eSID} in its client's window, opening the
+    * window if needed. Replaying a send already in the window has no effect.
+    */
+    public void sendReceived(int cUID, int eSID);
+
+    /**
+    * Advances a client's window, opening it if needed.
+    */
+    public void windowAdvanced(int cUID, int eSID);
+  }
+
+  /**
+  * Opens the journal in a directory, creating both if needed.
+  *
+  * @param  directory     where the journal's files are kept
+  */
+  public ServerJournal(File directory) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("cannot create journal directory " + directory);
+    }
+    this.directory = directory;
+    this.log = new WriteAheadLog(new File(directory, LOG_DIRECTORY));
+  }
+
+  /**
+  * Loads the latest snapshot, if any, then replays every intact record
+  * written after it and readies the journal for appending.
+  *
+  * @param  replayer      receives the recovered state
+  * @return               the number of log records replayed
+  */
+  public int replay(final Replayer replayer) throws IOException {
+    // the log sequence number at which each account or group was snapshotted;
+    // earlier records for it are already reflected in the snapshot
+    final Map<String, Long> accountsCapturedAt = new HashMap<String, Long>();
+    final Map<String, Long> groupsCapturedAt = new HashMap<String, Long>();
+
+    File snapshot = latestSnapshot();
+    if (snapshot != null) {
+      snapshotSeq = readSnapshot(snapshot, replayer, accountsCapturedAt,
+          groupsCapturedAt);
+    }
+
+    return log.replay(snapshotSeq, new WriteAheadLog.Handler() {
+      public void record(long seq, byte type, DataInputStream in)
+          throws IOException {
+        switch (type) {
+          case ACCOUNT_CREATED: {
+            String accountName = readString(in);
+            if (isNewer(seq, accountsCapturedAt, accountName)) {
+              replayer.accountCreated(accountName);
+            }
+            break;
+          }
+          case ACCOUNT_DELETED: {
+            String accountName = readString(in);
+            if (isNewer(seq, accountsCapturedAt, accountName)) {
+              replayer.accountDeleted(accountName);
+            }
+            break;
+          }
+          case GROUP_CREATED: {
+            String groupName = readString(in);
+            Set<String> memberNames = readStringSet(in);
+            if (isNewer(seq, groupsCapturedAt, groupName)) {
+              replayer.groupCreated(groupName, memberNames);
+            }
+            break;
+          }
+          case GROUP_DELETED: {
+            String groupName = readString(in);
+            if (isNewer(seq, groupsCapturedAt, groupName)) {
+              replayer.groupDeleted(groupName);
+            }
+            break;
+          }
+          case MESSAGE_SAVED: {
+            Message message = readMessage(in);
+            if (isNewer(seq, accountsCapturedAt, message.recipientName)) {
+              replayer.messageSaved(message);
+            }
+            break;
+          }
+          case INBOX_CONFIRMED: {
+            String accountName = readString(in);
+            int count = in.readInt();
+            if (isNewer(seq, accountsCapturedAt, accountName)) {
+              replayer.inboxConfirmed(accountName, count);
+            }
+            break;
+          }
+          case GROUP_MESSAGE_LOGGED: {
+            long position = in.readLong();
+            replayer.groupMessageLogged(position, readSharedGroupMessage(in));
+            break;
+          }
+          case GROUP_MESSAGES_QUEUED: {
+            String accountName = readString(in);
+            String groupName = readString(in);
+            long from = in.readLong();
+            long to = in.readLong();
+            if (isNewer(seq, accountsCapturedAt, accountName)) {
+              replayer.groupMessagesQueued(accountName, groupName, from, to);
+            }
+            break;
+          }
+          case SEND_RECEIVED: {
+            int cUID = in.readInt();
+            replayer.sendReceived(cUID, in.readInt());
+            break;
+          }
+          case WINDOW_ADVANCED: {
+            int cUID = in.readInt();
+            replayer.windowAdvanced(cUID, in.readInt());
+            break;
+          }
+          case COUNTER_RESERVED: {
+            int counter = in.readByte();
+            reservedLimits[counter] = Math.max(reservedLimits[counter], in.readInt());
+            break;
+          }
+          default:
+            throw new IOException("unknown journal record type " + type);
+        }
+      }
+    });
+  }
+
+  private static boolean isNewer(long seq, Map<String, Long> capturedAt,
+      String name) {
+    Long captured = capturedAt.get(name);
+    return captured == null || seq > captured;
+  }
+
+  /**
+  * Returns the first ID not covered by a reservation for a counter. After
+  * {@link #replay}, this is where the counter should resume.
+  *
+  * @param  counter       {@code CLIENT_UID_COUNTER} or {@code EVENT_SID_COUNTER}
+  */
+  public synchronized int getReservedLimit(int counter) {
+    return reservedLimits[counter];
+  }
+
+  /**
+  * Ensures an ID is covered by a durable reservation, blocking to record a
+  * new block if it is not.
+  * <p>
+  * The next block is appended once half the current one is used, and only
+  * waited for when an ID reaches it, so it is normally flushed by other
+  * records' commits long before then and callers do not wait. An ID that has
+  * reached a block another thread appended but has not yet seen flushed
+  * waits for that block, not only the caller that appended it.
+  *
+  * @param  counter       {@code CLIENT_UID_COUNTER} or {@code EVENT_SID_COUNTER}
+  * @param  id            the ID about to be handed out
+  */
+  public void reserve(int counter, int id) throws IOException {
+    long seq;
+    int limit;
+    synchronized (this) {
+      if (reservationSeqs[counter] == 0) {
+        durableLimits[counter] = reservedLimits[counter];
+      }
+      while (id + RESERVATION_BLOCK / 2 >= reservedLimits[counter]) {
+        reservedLimits[counter] += RESERVATION_BLOCK;
+        Record record = new Record();
+        record.out.writeByte(counter);
+        record.out.writeInt(reservedLimits[counter]);
+        reservationSeqs[counter] = log.append(COUNTER_RESERVED, record.toByteArray());
+      }
+      if (id < durableLimits[counter]) {
+        return;
+      }
+      seq = reservationSeqs[counter];
+      limit = reservedLimits[counter];
+    }
+
+    log.awaitDurable(seq);
+    synchronized (this) {
+      durableLimits[counter] = Math.max(durableLimits[counter], limit);
+      if (reservationSeqs[counter] == seq) {
+        reservationSeqs[counter] = 0;
+      }
+    }
+  }
+
+  public long accountCreated(String accountName) {
+    Record record = new Record();
+    record.writeString(accountName);
+    return log.append(ACCOUNT_CREATED, record.toByteArray());
+  }
+
+  public long accountDeleted(String accountName) {
+    Record record = new Record();
+    record.writeString(accountName);
+    return log.append(ACCOUNT_DELETED, record.toByteArray());
+  }
+
+  public long groupCreated(String groupName, Set<String> memberNames) {
+    Record record = new Record();
+    record.writeString(groupName);
+    record.writeStringSet(memberNames);
+    return log.append(GROUP_CREATED, record.toByteArray());
+  }
+
+  public long groupDeleted(String groupName) {
+    Record record = new Record();
+    record.writeString(groupName);
+    return log.append(GROUP_DELETED, record.toByteArray());
+  }
+
+  public long messageSaved(Message message) {
+    Record record = new Record();
+    record.writeMessage(message);
+    return log.append(MESSAGE_SAVED, record.toByteArray());
+  }
+
+  /**
+  * Records a group message stored once in its group's log. Must be called
+  * while holding the log's monitor, so that records are in position order.
+  *
+  * @param  position      the message's position in the group log
+  * @param  shared        the message, with no recipient
+  */
+  public long groupMessageLogged(long position, GroupMessage shared) {
+    Record record = new Record();
+    record.writeLong(position);
+    record.writeSharedGroupMessage(shared);
+    return log.append(GROUP_MESSAGE_LOGGED, record.toByteArray());
+  }
+
+  /**
+  * Records a range of a group log's messages queued in an account's inbox.
+  */
+  public long groupMessagesQueued(String accountName, String groupName,
+      long from, long to) {
+    Record record = new Record();
+    record.writeString(accountName);
+    record.writeString(groupName);
+    record.writeLong(from);
+    record.writeLong(to);
+    return log.append(GROUP_MESSAGES_QUEUED, record.toByteArray());
+  }
+
+  /**
+  * Records a send accepted from a client, so that its window can be rebuilt.
+  */
+  public long sendReceived(int cUID, int eSID) {
+    Record record = new Record();
+    record.writeInt(cUID);
+    record.writeInt(eSID);
+    return log.append(SEND_RECEIVED, record.toByteArray());
+  }
+
+  /**
+  * Records a client's window being opened or advanced to a new floor.
+  */
+  public long windowAdvanced(int cUID, int eSID) {
+    Record record = new Record();
+    record.writeInt(cUID);
+    record.writeInt(eSID);
+    return log.append(WINDOW_ADVANCED, record.toByteArray());
+  }
+
+  public long inboxConfirmed(String accountName, int count) {
+    Record record = new Record();
+    record.writeString(accountName);
+    record.writeInt(count);
+    return log.append(INBOX_CONFIRMED, record.toByteArray());
+  }
+
+  /**
+  * Blocks until the record with sequence number {@code seq}, and every record
+  * before it, is on disk.
+  *
+  * @param  seq           a sequence number returned by a record method
+  */
+  public void awaitDurable(long seq) throws IOException {
+    log.awaitDurable(seq);
+  }
+
+  /**
+  * Blocks until every record appended so far is on disk.
+  */
+  public void sync() throws IOException {
+    log.sync();
+  }
+
+  /**
+  * Returns the sequence number of the last record appended. An account or
+  * group copied into a snapshot while holding its lock reflects every record
+  * for it up to this number.
+  */
+  public long getAppendedSeq() {
+    return log.getAppendedSeq();
+  }
+
+  /**
+  * Returns the number of records appended since the latest snapshot.
+  */
+  public long getRecordsSinceSnapshot() {
+    return log.getAppendedSeq() - snapshotSeq;
+  }
+
+  /**
+  * Starts a snapshot.
+  * <p>
+  * The log is rolled to a new segment, so that once the snapshot is committed
+  * every earlier segment can be deleted. The caller then adds each account,
+  * group and window and calls {@link Snapshot#commit}. Only one snapshot may
+  * be in progress at a time.
+  *
+  * @return               the snapshot to fill in
+  */
+  public Snapshot beginSnapshot() throws IOException {
+    return new Snapshot(log.roll());
+  }
+
+  public void close() throws IOException {
+    log.close();
+  }
+
+  /**
+  * A snapshot being written.
+  * <p>
+  * Entries are streamed to a temporary file, which is checksummed, forced to
+  * disk and renamed into place by {@link #commit}. A snapshot that is never
+  * committed leaves the previous one in effect.
+  */
+  public class Snapshot {
+    private final long coveredSeq;
+    private final File tempFile;
+    private final CheckedOutputStream checked;
+    private final DataOutputStream out;
+    private final FileOutputStream file;
+
+    private Snapshot(long coveredSeq) throws IOException {
+      this.coveredSeq = coveredSeq;
+      this.tempFile = new File(directory, SNAPSHOT_PREFIX + coveredSeq + ".tmp");
+      this.file = new FileOutputStream(tempFile);
+      this.checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16),
+          new CRC32());
+      this.out = new DataOutputStream(checked);
+
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(SNAPSHOT_VERSION);
+      out.writeLong(coveredSeq);
+    }
+
+    /**
+    * Adds an account and its inbox. Must be called while holding the
+    * account's lock.
+    *
+    * @param  accountName   the account
+    * @param  exists        whether the account is in the server's account set
+    * @param  inbox         the account's inbox, or {@code null}
+    */
+    public void addAccount(String accountName, boolean exists, Inbox inbox)
+        throws IOException {
+      out.writeByte(SNAPSHOT_ACCOUNT);
+      writeString(out, accountName);
+      out.writeLong(log.getAppendedSeq());
+      out.writeBoolean(exists);
+
+      out.writeBoolean(inbox != null);
+      if (inbox == null) {
+        return;
+      }
+
+      out.writeLong(inbox.getCursor());
+      try {
+        inbox.visit(new Inbox.Visitor() {
+          public void message(Message message) {
+            try {
+              out.writeByte(INBOX_MESSAGE);
+              writeMessage(out, message);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+
+          public void groupMessages(GroupLog groupLog, long from, long to) {
+            try {
+              out.writeByte(INBOX_GROUP_MESSAGES);
+              writeString(out, groupLog.groupName);
+              out.writeLong(from);
+              out.writeLong(to);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      out.writeByte(INBOX_END);
+    }
+
+    /**
+    * Adds a group. Must be called while holding the group's lock.
+    *
+    * @param  groupName     the group
+    * @param  memberNames   its members
+    */
+    public void addGroup(String groupName, Set<String> memberNames)
+        throws IOException {
+      out.writeByte(SNAPSHOT_GROUP);
+      writeString(out, groupName);
+      out.writeLong(log.getAppendedSeq());
+      writeStringSet(out, memberNames);
+    }
+
+    /**
+    * Adds a group log's retained messages. Must be called while holding the
+    * log's monitor.
+    *
+    * @param  groupLog      the log
+    */
+    public void addGroupLog(GroupLog groupLog) throws IOException {
+      out.writeByte(SNAPSHOT_GROUP_LOG);
+      writeString(out, groupLog.groupName);
+      long head = groupLog.getHead();
+      GroupMessage[] messages = groupLog.read(head, groupLog.getEnd());
+      out.writeLong(head);
+      out.writeInt(messages.length);
+      for (GroupMessage shared : messages) {
+        writeSharedGroupMessage(out, shared);
+      }
+    }
+
+    /**
+    * Adds a client's duplicate-detection window.
+    *
+    * @param  cUID          the client
+    * @param  window        its window
+    */
+    public void addWindow(int cUID, EventWindow window) throws IOException {
+      out.writeByte(SNAPSHOT_WINDOW);
+      out.writeInt(cUID);
+      window.writeTo(out);
+    }
+
+    /**
+    * Finishes the snapshot, makes it the latest, and deletes the snapshots and
+    * log segments it replaces.
+    *
+    * @return               the number of log segments deleted
+    */
+    public int commit() throws IOException {
+      out.writeByte(SNAPSHOT_END);
+      synchronized (ServerJournal.this) {
+        out.writeInt(reservedLimits[CLIENT_UID_COUNTER]);
+        out.writeInt(reservedLimits[EVENT_SID_COUNTER]);
+      }
+      out.flush();
+      long checksum = checked.getChecksum().getValue();
+      new DataOutputStream(file).writeLong(checksum);
+      file.getFD().sync();
+      file.close();
+
+      File snapshotFile = new File(directory, SNAPSHOT_PREFIX +
+          String.format("%020d", coveredSeq) + SNAPSHOT_SUFFIX);
+      if (!tempFile.renameTo(snapshotFile)) {
+        throw new IOException("cannot rename snapshot to " + snapshotFile);
+      }
+      // the rename must be durable before anything it replaces is deleted, or
+      // a crash could keep the deletions and lose the snapshot
+      forceDirectory();
+      snapshotSeq = coveredSeq;
+
+      for (File old : snapshotFiles()) {
+        if (!old.equals(snapshotFile)) {
+          old.delete();
+        }
+      }
+      return log.deleteSegmentsBefore(coveredSeq);
+    }
+
+    /**
+    * Discards an unfinished snapshot.
+    */
+    public void abandon() {
+      try {
+        file.close();
+      } catch (IOException e) {
+        // nothing more to do
+      }
+      tempFile.delete();
+    }
+  }
+
+  /**
+  * Forces the journal directory's entries, such as a rename, to disk.
+  */
+  private void forceDirectory() throws IOException {
+    FileChannel entries = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+    try {
+      entries.force(true);
+    } finally {
+      entries.close();
+    }
+  }
+
+  /**
+  * Returns the newest snapshot file, or {@code null} if there is none.
+  */
+  private File latestSnapshot() {
+    File[] snapshots = snapshotFiles();
+    if (snapshots.length == 0) {
+      return null;
+    }
+    Arrays.sort(snapshots);
+    return snapshots[snapshots.length - 1];
+  }
+
+  private File[] snapshotFiles() {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX);
+      }
+    });
+    return files == null ? new File[0] : files;
+  }
+
+  /**
+  * Reads a snapshot into a replayer, checking its checksum first.
+  *
+  * @return               the last log sequence number the snapshot covers
+  */
+  private long readSnapshot(File snapshot, Replayer replayer,
+      Map<String, Long> accountsCapturedAt, Map<String, Long> groupsCapturedAt)
+      throws IOException {
+    long length = snapshot.length();
+    CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(
+        new FileInputStream(snapshot), 1 << 16), new CRC32());
+    DataInputStream in = new DataInputStream(checked);
+    try {
+      if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+        throw new IOException("not a snapshot: " + snapshot);
+      }
+      long coveredSeq = in.readLong();
+
+      while (true) {
+        byte tag = in.readByte();
+        if (tag == SNAPSHOT_END) {
+          break;
+        }
+        switch (tag) {
+          case SNAPSHOT_ACCOUNT: {
+            String accountName = readString(in);
+            accountsCapturedAt.put(accountName, in.readLong());
+            if (in.readBoolean()) {
+              replayer.accountCreated(accountName);
+            }
+            if (in.readBoolean()) {
+              replayer.inboxRestored(accountName, in.readLong());
+              readInboxEntries(in, accountName, replayer);
+            }
+            break;
+          }
+          case SNAPSHOT_GROUP_LOG: {
+            String groupName = readString(in);
+            long head = in.readLong();
+            int count = in.readInt();
+            replayer.groupLogRestored(groupName, head);
+            for (int i = 0; i < count; i++) {
+              replayer.groupMessageLogged(head + i, readSharedGroupMessage(in));
+            }
+            break;
+          }
+          case SNAPSHOT_GROUP: {
+            String groupName = readString(in);
+            groupsCapturedAt.put(groupName, in.readLong());
+            replayer.groupCreated(groupName, readStringSet(in));
+            break;
+          }
+          case SNAPSHOT_WINDOW: {
+            int cUID = in.readInt();
+            replayer.windowRestored(cUID, EventWindow.readFrom(in));
+            break;
+          }
+          default:
+            throw new IOException("unknown snapshot entry " + tag + " in " + snapshot);
+        }
+      }
+
+      reservedLimits[CLIENT_UID_COUNTER] = in.readInt();
+      reservedLimits[EVENT_SID_COUNTER] = in.readInt();
+
+      long expected = checked.getChecksum().getValue();
+      if (new DataInputStream(in).readLong() != expected) {
+        throw new IOException("snapshot failed its checksum: " + snapshot);
+      }
+      return coveredSeq;
+    } catch (EOFException e) {
+      throw new IOException("snapshot is truncated (" + length + " bytes): " + snapshot);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void readInboxEntries(DataInput in, String accountName,
+      Replayer replayer) throws IOException {
+    while (true) {
+      byte tag = in.readByte();
+      switch (tag) {
+        case INBOX_END:
+          return;
+        case INBOX_MESSAGE:
+          replayer.messageSaved(readMessage(in));
+          break;
+        case INBOX_GROUP_MESSAGES: {
+          String groupName = readString(in);
+          long from = in.readLong();
+          replayer.groupMessagesQueued(accountName, groupName, from, in.readLong());
+          break;
+        }
+        default:
+          throw new IOException("unknown inbox entry " + tag + " in snapshot");
+      }
+    }
+  }
+
+  private static void writeString(DataOutput out, String value) throws IOException {
+    byte[] encoded = value.getBytes(UTF_8);
+    out.writeInt(encoded.length);
+    out.write(encoded);
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private static void writeStringSet(DataOutput out, Set<String> values)
+      throws IOException {
+    out.writeInt(values.size());
+    for (String value : values) {
+      writeString(out, value);
+    }
+  }
+
+  private static Set<String> readStringSet(DataInput in) throws IOException {
+    int count = in.readInt();
+    Set<String> values = new HashSet<String>();
+    for (int i = 0; i < count; i++) {
+      values.add(readString(in));
+    }
+    return values;
+  }
+
+  private static void writeMessage(DataOutput out, Message message)
+      throws IOException {
+    boolean isGroup = message instanceof GroupMessage;
+    out.writeByte(isGroup ? GROUP_MESSAGE : DIRECT_MESSAGE);
+    out.writeInt(message.eSID);
+    if (isGroup) {
+      writeString(out, ((GroupMessage) message).groupName);
+    }
+    writeString(out, message.senderName);
+    writeString(out, message.recipientName);
+    writeString(out, message.message);
+    out.writeInt(message.timestamp);
+  }
+
+  /**
+  * Writes a group message held in a group log, which has no recipient.
+  */
+  private static void writeSharedGroupMessage(DataOutput out, GroupMessage shared)
+      throws IOException {
+    out.writeInt(shared.eSID);
+    writeString(out, shared.groupName);
+    writeString(out, shared.senderName);
+    writeString(out, shared.message);
+    out.writeInt(shared.timestamp);
+  }
+
+  private static GroupMessage readSharedGroupMessage(DataInput in)
+      throws IOException {
+    int eSID = in.readInt();
+    String groupName = readString(in);
+    String senderName = readString(in);
+    String message = readString(in);
+    return new GroupMessage(eSID, groupName, senderName, null, message,
+        in.readInt());
+  }
+
+  private static Message readMessage(DataInput in) throws IOException {
+    byte kind = in.readByte();
+    int eSID = in.readInt();
+    String groupName = kind == GROUP_MESSAGE ? readString(in) : null;
+    String senderName = readString(in);
+    String recipientName = readString(in);
+    String message = readString(in);
+    int timestamp = in.readInt();
+
+    if (kind == GROUP_MESSAGE) {
+      return new GroupMessage(eSID, groupName, senderName, recipientName,
+          message, timestamp);
+    }
+    return new DirectMessage(eSID, senderName, recipientName, message,
+        timestamp);
+  }
+
+  /**
+  * Builds one record's payload. Writes go to memory and cannot fail, so the
+  * helpers rethrow the impossible {@code IOException} unchecked.
+  */
+  private static class Record {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    final DataOutputStream out = new DataOutputStream(bytes);
+
+    void writeInt(int value) {
+      try {
+        out.writeInt(value);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    void writeLong(long value) {
+      try {
+        out.writeLong(value);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    void writeString(String value) {
+      try {
+        ServerJournal.writeString(out, value);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    void writeStringSet(Set<String> values) {
+      try {
+        ServerJournal.writeStringSet(out, values);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    void writeMessage(Message message) {
+      try {
+        ServerJournal.writeMessage(out, message);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    void writeSharedGroupMessage(GroupMessage shared) {
+      try {
+        ServerJournal.writeSharedGroupMessage(out, shared);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    byte[] toByteArray() {
+      return bytes.toByteArray();
+    }
+  }
+}
@@ -1,3 +1,5 @@
+import java.io.*;
+import java.net.*;
 import java.rmi.*;
 import java.rmi.server.*;
 import java.util.*;
@@ -10,11 +12,42 @@ public class ServerManager {
     System.setProperty("java.rmi.server.codebase", "file:/rmi-chat/bin");
 
     try {
-      System.setSecurityManager(new RMISecurityManager());
+      // "--nio" or "--nio=<port>" serves the NIO transport instead of RMI
+      int nioPort = -1;
+      List<String> arguments = new ArrayList<String>(Arrays.asList(argv));
+      if(!arguments.isEmpty() && arguments.get(0).startsWith("--nio")) {
+        String option = arguments.remove(0);
+        nioPort = option.startsWith("--nio=") ?
+            Integer.parseInt(option.substring("--nio=".length())) : NioProtocol.DEFAULT_PORT;
+      }
 
-      Server server = new Server();	
+      if(nioPort < 0) {
+        System.setSecurityManager(new RMISecurityManager());
+      }
 
-      Naming.rebind("rmi://localhost/ABC", server);
+      // an optional argument names a directory in which to journal server state
+      // so that it survives a restart
+      // over RMI, sockets get timeouts so that a hung client cannot hold a
+      // callback thread indefinitely
+      ChatSocketFactory socketFactory = nioPort < 0 ? ChatSocketFactory.fromSystemProperties() : null;
+      final Server server = new Server(!arguments.isEmpty() ? new File(arguments.get(0)) : null,
+          socketFactory);
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        public void run() {
+          try {
+            server.shutdown();
+          } catch (IOException e) {
+            System.out.println("[System] Could not close the journal: " + e);
+          }
+        }
+      });
+
+      if(nioPort < 0) {
+        Naming.rebind("rmi://localhost/ABC", server);
+      }
+      else {
+        new NioServer(server, new InetSocketAddress(nioPort));
+      }
 
       System.out.println("[System] Server is ready:");      
 
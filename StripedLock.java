@@ -0,0 +1,110 @@
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A fixed set of locks shared out among accounts.
+ * <p>
+ * RMI dispatches each incoming call on its own thread, so the {@code Server}
+ * must guard any state it reads and then writes. Rather than hold one lock for
+ * the whole server, each account's ID (see {@link NameDictionary}) maps onto
+ * one of a fixed number of stripes. Calls for different accounts usually land on different stripes and
+ * run in parallel, while calls for the same account always share a stripe and
+ * so take effect one at a time.
+ * <p>
+ * Operations that touch several accounts at once (e.g. a log-in that moves a
+ * client from one account to another) should use {@link #lockAll} so that
+ * stripes are always acquired in the same order and cannot deadlock.
+ */
+public class StripedLock {
+  private final ReentrantLock[] stripes;
+
+  /**
+  * Creates a lock with at least {@code stripeCount} stripes.
+  * <p>
+  * The count is rounded up to a power of two so that a stripe can be picked
+  * with a mask rather than a division.
+  *
+  * @param  stripeCount   the minimum number of stripes
+  */
+  public StripedLock(int stripeCount) {
+    int size = 1;
+    while (size < stripeCount) {
+      size <<= 1;
+    }
+
+    stripes = new ReentrantLock[size];
+    for (int i = 0; i < size; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+  * Returns the stripe index for a key.
+  * <p>
+  * IDs are dense, so they are scrambled before masking; otherwise accounts
+  * created together would march through the stripes in lockstep with any
+  * pattern in how they are used.
+  */
+  private int stripeIndex(int key) {
+    int h = key * 0x9E3779B9;
+    h ^= (h >>> 16);
+    return h & (stripes.length - 1);
+  }
+
+  /**
+  * Returns the lock guarding a single key.
+  *
+  * @param  key           an account ID
+  * @return               the lock for that account's stripe
+  */
+  public Lock lockFor(int key) {
+    return stripes[stripeIndex(key)];
+  }
+
+  /**
+  * Acquires the locks for all of the given keys.
+  * <p>
+  * Stripes are acquired in ascending index order and each stripe is acquired
+  * only once, however many of the keys map to it. Negative keys are ignored,
+  * which lets callers pass an optional second account directly.
+  *
+  * @param  keys          the account IDs to lock
+  */
+  public void lockAll(int... keys) {
+    for (int index : sortedStripes(keys)) {
+      stripes[index].lock();
+    }
+  }
+
+  /**
+  * Releases the locks acquired by a matching call to {@link #lockAll}.
+  *
+  * @param  keys          the same account IDs passed to {@code lockAll}
+  */
+  public void unlockAll(int... keys) {
+    int[] indices = sortedStripes(keys);
+    for (int i = indices.length - 1; i >= 0; i--) {
+      stripes[indices[i]].unlock();
+    }
+  }
+
+  private int[] sortedStripes(int... keys) {
+    int[] indices = new int[keys.length];
+    int count = 0;
+    for (int key : keys) {
+      if (key >= 0) {
+        indices[count++] = stripeIndex(key);
+      }
+    }
+    Arrays.sort(indices, 0, count);
+
+    // drop repeated stripes so no lock is taken twice
+    int unique = 0;
+    for (int i = 0; i < count; i++) {
+      if (unique == 0 || indices[unique - 1] != indices[i]) {
+        indices[unique++] = indices[i];
+      }
+    }
+    return Arrays.copyOf(indices, unique);
+  }
+}
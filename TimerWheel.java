@@ -0,0 +1,135 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs tasks after a delay, with a cost per scheduled task that does not grow
+ * with the number of tasks waiting.
+ * <p>
+ * Time is divided into ticks, and the wheel is a ring of slots, one per tick.
+ * A task is put in the slot its deadline falls in, along with the number of
+ * full turns of the wheel still to go. One thread advances the wheel a slot
+ * per tick, handing the tasks whose turn has come to an executor and counting
+ * down the rest. Scheduling is therefore constant-time, where a priority queue
+ * would take time logarithmic in the number of waiting tasks, at the price of
+ * deadlines being rounded up to the next tick.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class TimerWheel {
+  private static final class Timeout {
+    final Runnable task;
+
+    /** the full turns of the wheel left before the task is due */
+    long rounds;
+
+    Timeout(Runnable task, long rounds) {
+      this.task = task;
+      this.rounds = rounds;
+    }
+  }
+
+  private final long tickNanos;
+  private final Executor executor;
+
+  /** the slots, each holding the tasks due in it; guarded by this */
+  private final List<List<Timeout>> slots;
+
+  /** the number of ticks since the wheel started; guarded by this */
+  private long tick;
+
+  private final long startNanos;
+  private final Thread ticker;
+
+  /**
+  * Creates a wheel and starts its thread.
+  *
+  * @param  tickMillis    the length of a tick, to which delays are rounded up
+  * @param  slotCount     the number of slots; delays shorter than one turn of
+  *                       the wheel never need counting down
+  * @param  executor      runs the tasks that fall due
+  */
+  public TimerWheel(long tickMillis, int slotCount, Executor executor) {
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.executor = executor;
+    this.slots = new ArrayList<List<Timeout>>(slotCount);
+    for (int i = 0; i < slotCount; i++) {
+      slots.add(new ArrayList<Timeout>());
+    }
+
+    startNanos = System.nanoTime();
+    ticker = new Thread(new Runnable() {
+      public void run() {
+        turn();
+      }
+    }, "timer-wheel");
+    ticker.setDaemon(true);
+    ticker.start();
+  }
+
+  /**
+  * Runs a task on the executor once a delay has passed.
+  *
+  * @param  task          the task to run
+  * @param  delayMillis   the least time to wait
+  */
+  public void schedule(Runnable task, long delayMillis) {
+    long delayTicks = Math.max(1,
+        (TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1) / tickNanos);
+    synchronized (this) {
+      // the current slot has already been run, so count from the next
+      long due = tick + delayTicks;
+      int slotCount = slots.size();
+      slots.get((int) (due % slotCount)).add(new Timeout(task, (delayTicks - 1) / slotCount));
+    }
+  }
+
+  /**
+  * Stops the wheel. Tasks not yet due are never run.
+  */
+  public void stop() {
+    ticker.interrupt();
+  }
+
+  private void turn() {
+    List<Runnable> due = new ArrayList<Runnable>();
+    while (true) {
+      long nextTick;
+      synchronized (this) {
+        nextTick = tick + 1;
+      }
+
+      long sleepNanos = startNanos + nextTick * tickNanos - System.nanoTime();
+      if (sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+
+      synchronized (this) {
+        tick = nextTick;
+        Iterator<Timeout> timeouts = slots.get((int) (tick % slots.size())).iterator();
+        while (timeouts.hasNext()) {
+          Timeout timeout = timeouts.next();
+          if (timeout.rounds == 0) {
+            timeouts.remove();
+            due.add(timeout.task);
+          } else {
+            timeout.rounds--;
+          }
+        }
+      }
+
+      // run outside the lock, since the executor may run a task in this thread
+      for (Runnable task : due) {
+        try {
+          executor.execute(task);
+        } catch (RuntimeException e) {
+          System.out.println("[System] Timer task failed: " + e);
+        }
+      }
+      due.clear();
+    }
+  }
+}
@@ -0,0 +1,463 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * An append-only, checksummed log of records on disk.
+ * <p>
+ * Every record has a sequence number, one greater than the record before it,
+ * that stays the same across restarts. The log is kept as a series of segment
+ * files in one directory, each named for the sequence number of its first
+ * record. New records go to the newest segment; {@link #roll} starts a new one,
+ * and {@link #deleteSegmentsBefore} discards old segments once their records
+ * are no longer needed (for example, because a snapshot covers them).
+ * <p>
+ * Each record is framed as its payload length, a CRC-32 of its type and
+ * payload, a one-byte type, and the payload. On start-up the log is read back
+ * with {@link #replay}; reading stops at the first frame that is short or
+ * fails its checksum, which is where a crash interrupted a write, and the
+ * segment is cut back to the end of the last good record.
+ * <p>
+ * Appending only copies a record into a memory buffer. A caller that needs
+ * the record on disk then calls {@link #awaitDurable} with the sequence
+ * number {@link #append} returned. Writes use group commit: whichever waiting
+ * thread finds no flush in progress writes out everything buffered so far and
+ * forces it to disk, and every record covered by that one {@code fsync} is
+ * released at once. Under concurrent load many appends share a single
+ * {@code fsync}.
+ * <p>
+ * A new segment's directory entry is forced to disk when the segment is
+ * created, before any record in it can be reported durable, so that a crash
+ * cannot leave the log's durable records in a file that no longer exists.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class WriteAheadLog implements Closeable {
+  private static final int HEADER_SIZE = 9;
+  private static final String SEGMENT_SUFFIX = ".wal";
+
+  private final File directory;
+  private FileChannel channel;
+
+  /** the sequence number of the first record in the current segment */
+  private long segmentFirstSeq;
+
+  /** records appended but not yet handed to a flush */
+  private ByteArrayOutputStream buffer;
+
+  /** the sequence number of the last record appended */
+  private long appendedSeq;
+
+  /** the sequence number of the last record known to be on disk */
+  private long durableSeq;
+
+  private boolean flushing;
+  private IOException flushFailure;
+
+  private final CRC32 crc = new CRC32();
+
+  /**
+  * Receives the records read back from a log.
+  */
+  public interface Handler {
+    /**
+    * Handles one record.
+    *
+    * @param  seq           the record's sequence number
+    * @param  type          the record's type
+    * @param  payload       the record's payload
+    */
+    public void record(long seq, byte type, DataInputStream payload)
+        throws IOException;
+  }
+
+  /**
+  * Opens the log kept in a directory, creating the directory if needed.
+  * <p>
+  * Existing records are not read; call {@link #replay} before appending to
+  * recover them and to cut off any partly written tail.
+  *
+  * @param  directory     where the log's segments are kept
+  */
+  public WriteAheadLog(File directory) throws IOException {
+    if (!directory.isDirectory()) {
+      if (!directory.mkdirs()) {
+        throw new IOException("cannot create log directory " + directory);
+      }
+      forceDirectory(directory.getAbsoluteFile().getParentFile());
+    }
+    this.directory = directory;
+    this.buffer = new ByteArrayOutputStream();
+  }
+
+  /**
+  * Reads every intact record after {@code afterSeq}, in order, and positions
+  * the log for appending after the last record read.
+  *
+  * @param  afterSeq      records with this sequence number or lower are
+  *                       skipped; {@code 0} reads everything
+  * @param  handler       receives each record
+  * @return               the number of records passed to the handler
+  */
+  public synchronized int replay(long afterSeq, Handler handler)
+      throws IOException {
+    long[] segments = listSegments();
+    int records = 0;
+    long nextSeq = segments.length == 0 ? afterSeq + 1 : segments[0];
+    CRC32 check = new CRC32();
+
+    for (int s = 0; s < segments.length; s++) {
+      // skip segments wholly covered by afterSeq
+      if (s + 1 < segments.length && segments[s + 1] <= afterSeq + 1) {
+        nextSeq = segments[s + 1];
+        continue;
+      }
+
+      File file = segmentFile(segments[s]);
+      FileChannel segment = new RandomAccessFile(file, "rw").getChannel();
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          Channels.newInputStream(segment)));
+      long seq = segments[s];
+      long goodLength = 0;
+
+      while (true) {
+        int length;
+        int checksum;
+        byte type;
+        byte[] payload;
+        try {
+          length = in.readInt();
+          checksum = in.readInt();
+          type = in.readByte();
+          if (length < 0 || goodLength + HEADER_SIZE + length > segment.size()) {
+            break;
+          }
+          payload = new byte[length];
+          in.readFully(payload);
+        } catch (EOFException e) {
+          break;
+        }
+
+        check.reset();
+        check.update(type);
+        check.update(payload, 0, length);
+        if ((int) check.getValue() != checksum) {
+          break;
+        }
+
+        if (seq > afterSeq) {
+          handler.record(seq, type,
+              new DataInputStream(new ByteArrayInputStream(payload)));
+          records++;
+        }
+        goodLength += HEADER_SIZE + length;
+        seq++;
+      }
+
+      nextSeq = seq;
+      if (goodLength < segment.size()) {
+        System.out.println("[System] Discarding " + (segment.size() - goodLength) +
+            " bytes of incomplete log at the end of " + file);
+        segment.truncate(goodLength);
+        segment.force(true);
+      }
+
+      if (s + 1 < segments.length) {
+        segment.close();
+        if (segments[s + 1] != seq) {
+          // a damaged segment ends early; nothing after it can be trusted
+          System.out.println("[System] Log is damaged after record " + (seq - 1) +
+              "; ignoring later segments");
+          for (int later = s + 1; later < segments.length; later++) {
+            segmentFile(segments[later]).delete();
+          }
+          channel = openSegment(segments[s], goodLength);
+          segmentFirstSeq = segments[s];
+          break;
+        }
+      } else {
+        channel = segment;
+        channel.position(goodLength);
+        segmentFirstSeq = segments[s];
+      }
+    }
+
+    appendedSeq = Math.max(nextSeq - 1, afterSeq);
+    durableSeq = appendedSeq;
+    if (channel == null) {
+      segmentFirstSeq = appendedSeq + 1;
+      channel = openSegment(segmentFirstSeq, 0);
+    }
+    return records;
+  }
+
+  /**
+  * Buffers a record for writing.
+  * <p>
+  * The record is not durable until {@link #awaitDurable} has returned for its
+  * sequence number (or a later one).
+  *
+  * @param  type          the record's type
+  * @param  payload       the record's payload
+  * @return               the record's sequence number
+  */
+  public synchronized long append(byte type, byte[] payload) {
+    crc.reset();
+    crc.update(type);
+    crc.update(payload, 0, payload.length);
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(payload.length).putInt((int) crc.getValue()).put(type);
+    buffer.write(header.array(), 0, HEADER_SIZE);
+    buffer.write(payload, 0, payload.length);
+    return ++appendedSeq;
+  }
+
+  /**
+  * Returns the sequence number of the last record appended.
+  */
+  public synchronized long getAppendedSeq() {
+    return appendedSeq;
+  }
+
+  /**
+  * Blocks until the record with sequence number {@code seq}, and every record
+  * before it, has been forced to disk.
+  *
+  * @param  seq           a sequence number returned by {@link #append}
+  */
+  public void awaitDurable(long seq) throws IOException {
+    byte[] toWrite;
+    long flushSeq;
+    FileChannel target;
+
+    synchronized (this) {
+      while (true) {
+        if (flushFailure != null) {
+          throw flushFailure;
+        }
+        if (durableSeq >= seq) {
+          return;
+        }
+        if (!flushing) {
+          break;
+        }
+        waitForFlush();
+      }
+
+      // become the flusher for everything appended so far
+      flushing = true;
+      toWrite = takeBuffer();
+      flushSeq = appendedSeq;
+      target = channel;
+    }
+
+    IOException failure = null;
+    try {
+      write(target, toWrite);
+    } catch (IOException e) {
+      failure = e;
+    }
+    finishFlush(flushSeq, failure);
+  }
+
+  /**
+  * Appends a record and waits until it is durable.
+  *
+  * @param  type          the record's type
+  * @param  payload       the record's payload
+  */
+  public void appendAndSync(byte type, byte[] payload) throws IOException {
+    awaitDurable(append(type, payload));
+  }
+
+  /**
+  * Forces every appended record to disk.
+  */
+  public void sync() throws IOException {
+    long seq;
+    synchronized (this) {
+      seq = appendedSeq;
+    }
+    awaitDurable(seq);
+  }
+
+  /**
+  * Closes the current segment and starts a new one.
+  * <p>
+  * Every record appended before the call is written to the old segment and
+  * forced to disk; every later record goes to the new segment.
+  *
+  * @return               the sequence number of the last record in the old
+  *                       segment
+  */
+  public long roll() throws IOException {
+    byte[] toWrite;
+    long lastSeq;
+    FileChannel oldChannel;
+
+    synchronized (this) {
+      while (flushing) {
+        waitForFlush();
+      }
+      if (flushFailure != null) {
+        throw flushFailure;
+      }
+
+      flushing = true;
+      toWrite = takeBuffer();
+      lastSeq = appendedSeq;
+      oldChannel = channel;
+    }
+
+    IOException failure = null;
+    try {
+      write(oldChannel, toWrite);
+      FileChannel newChannel = openSegment(lastSeq + 1, 0);
+      synchronized (this) {
+        channel = newChannel;
+        segmentFirstSeq = lastSeq + 1;
+      }
+      oldChannel.close();
+    } catch (IOException e) {
+      failure = e;
+    }
+    finishFlush(lastSeq, failure);
+    return lastSeq;
+  }
+
+  /**
+  * Deletes every segment whose records all have sequence numbers of
+  * {@code seq} or lower. The current segment is never deleted.
+  *
+  * @param  seq           the highest sequence number no longer needed
+  * @return               the number of segments deleted
+  */
+  public int deleteSegmentsBefore(long seq) {
+    long[] segments = listSegments();
+    long current;
+    synchronized (this) {
+      current = segmentFirstSeq;
+    }
+
+    int deleted = 0;
+    for (int s = 0; s + 1 < segments.length; s++) {
+      if (segments[s + 1] <= seq + 1 && segments[s] < current &&
+          segmentFile(segments[s]).delete()) {
+        deleted++;
+      }
+    }
+    return deleted;
+  }
+
+  /**
+  * Flushes any buffered records and closes the current segment.
+  */
+  public void close() throws IOException {
+    sync();
+    synchronized (this) {
+      channel.close();
+    }
+  }
+
+  private byte[] takeBuffer() {
+    byte[] bytes = buffer.toByteArray();
+    buffer = new ByteArrayOutputStream(Math.max(32, bytes.length));
+    return bytes;
+  }
+
+  private static void write(FileChannel target, byte[] bytes) throws IOException {
+    ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+    while (wrapped.hasRemaining()) {
+      target.write(wrapped);
+    }
+    target.force(false);
+  }
+
+  private synchronized void finishFlush(long flushSeq, IOException failure)
+      throws IOException {
+    flushing = false;
+    if (failure != null) {
+      flushFailure = failure;
+    } else {
+      durableSeq = Math.max(durableSeq, flushSeq);
+    }
+    notifyAll();
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void waitForFlush() throws IOException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted waiting for log flush");
+    }
+  }
+
+  private File segmentFile(long firstSeq) {
+    return new File(directory, String.format("%020d", firstSeq) + SEGMENT_SUFFIX);
+  }
+
+  private FileChannel openSegment(long firstSeq, long position) throws IOException {
+    File file = segmentFile(firstSeq);
+    boolean created = !file.exists();
+    FileChannel segment = new RandomAccessFile(file, "rw").getChannel();
+    segment.truncate(position);
+    segment.position(position);
+    if (created) {
+      try {
+        forceDirectory(directory);
+      } catch (IOException e) {
+        segment.close();
+        throw e;
+      }
+    }
+    return segment;
+  }
+
+  /**
+  * Forces a directory's entries, such as a newly created segment, to disk.
+  */
+  private static void forceDirectory(File directory) throws IOException {
+    FileChannel entries = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+    try {
+      entries.force(true);
+    } finally {
+      entries.close();
+    }
+  }
+
+  /**
+  * Returns the first sequence numbers of the segments on disk, in order.
+  */
+  private long[] listSegments() {
+    String[] names = directory.list();
+    List<Long> firstSeqs = new ArrayList<Long>();
+    if (names != null) {
+      for (String name : names) {
+        if (name.endsWith(SEGMENT_SUFFIX)) {
+          try {
+            firstSeqs.add(Long.parseLong(
+                name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+          } catch (NumberFormatException e) {
+            // not one of ours
+          }
+        }
+      }
+    }
+    Collections.sort(firstSeqs);
+
+    long[] sorted = new long[firstSeqs.size()];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = firstSeqs.get(i);
+    }
+    return sorted;
+  }
+}
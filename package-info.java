@@ -9,7 +9,10 @@
  * {@link com.github.tenedor.rmi-chat.Server} will send received messages to a
  * {@link com.github.tenedor.rmi-chat.Client} logged into the recipient account
  * if it exists and will store unsendable messages until a
- * {@link com.github.tenedor.rmi-chat.Client} logs into that account.<p>
+ * {@link com.github.tenedor.rmi-chat.Client} logs into that account. A
+ * {@link com.github.tenedor.rmi-chat.Client} sending many messages can queue
+ * them, and they are sent in batches by a
+ * {@link com.github.tenedor.rmi-chat.PipelinedSender}.<p>
  *
  * There are three layers to the design on both the client side and the server
  * side: Interfaces, Implementations, and Managers. These are respectively named
@@ -35,7 +38,6 @@
  * Not yet implemented:
  * <ul>
  *   <li>Exception handling
- *   <li>Wildcard matching for listing account and group subsets
  * </ul>
  * <p>
  *
@@ -52,6 +54,11 @@
  * throw {@code RemoteException}. The current code does little to handle
  * these exceptions.<p>
  *
+ * The same interfaces can instead be served over plain TCP by a
+ * {@link com.github.tenedor.rmi-chat.NioServer}, which handles every
+ * connection on one selector thread and a compact binary protocol, and
+ * reached through a {@link com.github.tenedor.rmi-chat.NioServerStub}.<p>
+ *
  * How to run the system:<p>
  *
  * <ul>
@@ -59,6 +66,14 @@
  *       {@code rmiregistry}
  *   <li>Run the Server by executing {@code java ServerManager}
  *   <li>Run each of the Client machines by running {@code java ClientManager}
+ *   <li>To use the NIO transport instead, skip the rmiregistry and pass
+ *       {@code --nio[=<port>]} to {@code ServerManager} and
+ *       {@code --nio[=<host>[:<port>]]} to {@code ClientManager}
+ *   <li>On Java 21 or later, pass {@code -Dchat.virtualThreads=true} to the
+ *       server's JVM to make callbacks to clients on virtual threads
+ *   <li>A client that the server cannot call back, such as one behind NAT,
+ *       can pass {@code --poll} to {@code ClientManager} to fetch its
+ *       messages by polling instead
  *   <li>From a client machine, type the following commands:
  *     <ul>
  *     <li> {@code create_account <account name>}
@@ -66,8 +81,8 @@
  *     <li> {@code create_group <group name> <<list of group members>>}
  *     <li> {@code message <account name> <message>}
  *     <li> {@code message_group <group name> <message>}
- *     <li> {@code list_groups}
- *     <li> {@code list_accounts}
+ *     <li> {@code list_groups [<pattern>]}
+ *     <li> {@code list_accounts [<pattern>]}
  *     </ul>
  * </ul>
  */